@@ -0,0 +1,107 @@
+package kea.filters;
+
+import java.util.HashSet;
+
+/**
+ * A candidate phrase of a document, as scored by
+ * KEAFilter.extractCandidates().
+ *
+ * @version 1.0
+ */
+public class Candidate {
+
+	/** The id of the phrase (pseudo phrase or vocabulary id) */
+	private final String m_Id;
+
+	/** The original version of the phrase */
+	private final String m_Original;
+
+	/** The TFxIDF value */
+	private final double m_TFxIDF;
+
+	/** The relative position of the first occurrence */
+	private final double m_Distance;
+
+	/** The probability of being a keyphrase */
+	private final double m_Probability;
+
+	/** Whether the phrase is one of the given keyphrases */
+	private final boolean m_Keyphrase;
+
+	/** Whether there were keyphrases to compare the phrase with */
+	private final boolean m_Evaluated;
+
+	/** The rank among the candidates of the document */
+	private int m_Rank;
+
+	/** The spellings found in the document (top ranked candidates only) */
+	private HashSet<String> m_SurfaceForms = null;
+
+	Candidate(String id, String original, double tfidf, double distance,
+			double probability, boolean keyphrase, boolean evaluated) {
+		m_Id = id;
+		m_Original = original;
+		m_TFxIDF = tfidf;
+		m_Distance = distance;
+		m_Probability = probability;
+		m_Keyphrase = keyphrase;
+		m_Evaluated = evaluated;
+	}
+
+	public String getId() {
+		return m_Id;
+	}
+
+	public String getOriginal() {
+		return m_Original;
+	}
+
+	public double getTFxIDF() {
+		return m_TFxIDF;
+	}
+
+	public double getDistance() {
+		return m_Distance;
+	}
+
+	public double getProbability() {
+		return m_Probability;
+	}
+
+	/**
+	 * Returns true if the phrase is one of the keyphrases
+	 * given to extractCandidates().
+	 */
+	public boolean isKeyphrase() {
+		return m_Keyphrase;
+	}
+
+	/**
+	 * Returns false if there were no keyphrases to compare the phrase
+	 * with: none were given to extractCandidates(), or none of the
+	 * given ones is a valid phrase (for instance an empty ".key" file).
+	 */
+	public boolean isEvaluated() {
+		return m_Evaluated;
+	}
+
+	public int getRank() {
+		return m_Rank;
+	}
+
+	void setRank(int rank) {
+		m_Rank = rank;
+	}
+
+	/**
+	 * Returns the spellings of the phrase found in the document,
+	 * or null if the candidate is not among the top ranked phrases.
+	 */
+	public HashSet<String> getSurfaceForms() {
+		return m_SurfaceForms;
+	}
+
+	void setSurfaceForms(HashSet<String> surfaceForms) {
+		m_SurfaceForms = surfaceForms;
+	}
+}
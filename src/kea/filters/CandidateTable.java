@@ -0,0 +1,272 @@
+package kea.filters;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+import kea.util.StringIntMap;
+
+/**
+ * The candidate phrases of a document, as collected by
+ * KEAFilter.getPhrases(). Candidates are numbered (0, 1, 2, ...) in
+ * the order in which they were found, and every property of the
+ * candidates is kept in an array of its own, so that the feature
+ * values can be computed one feature at a time for all candidates.
+ * The spread of the positions of a candidate is kept as running
+ * statistics (Welford's method), so it takes the same space however
+ * often the candidate occurs.
+ *
+ * @version 1.0
+ */
+class CandidateTable {
+
+	/**
+	 * The ids of the candidates (stemmed phrases or ids in the
+	 * vocabulary), with their number of occurrences
+	 */
+	private StringIntMap m_Ids = new StringIntMap();
+
+	/** Per candidate: the original version of the phrase */
+	private String[] m_Originals = new String[64];
+
+	/** Per candidate: the position of its first occurrence */
+	private int[] m_FirstPositions = new int[64];
+
+	/** Keep statistics of the positions of the occurrences? */
+	private final boolean m_RecordPositions;
+
+	/** Per candidate: the number of positions recorded */
+	private int[] m_NumPositions;
+
+	/**
+	 * Per candidate: the mean of the positions, and the sum of the
+	 * squared differences of the positions from the mean
+	 */
+	private double[] m_PositionMean, m_PositionM2;
+
+	/** The maximum number of surface forms per candidate */
+	private final int m_MaxSurfaceForms;
+
+	/** Per candidate: the spellings found in the document */
+	private HashSet<String>[] m_SurfaceForms;
+
+	/**
+	 * Creates an empty table.
+	 *
+	 * @param recordPositions keep statistics of the positions?
+	 * @param maxSurfaceForms the number of spellings to keep per candidate
+	 */
+	@SuppressWarnings("unchecked")
+	CandidateTable(boolean recordPositions, int maxSurfaceForms) {
+		m_RecordPositions = recordPositions;
+		if (recordPositions) {
+			m_NumPositions = new int[64];
+			m_PositionMean = new double[64];
+			m_PositionM2 = new double[64];
+		}
+		m_MaxSurfaceForms = maxSurfaceForms;
+		if (maxSurfaceForms > 0) {
+			m_SurfaceForms = new HashSet[64];
+		}
+	}
+
+	/**
+	 * Returns the number of candidates.
+	 */
+	int size() {
+		return m_Ids.size();
+	}
+
+	/**
+	 * Returns the number of a candidate, or -1 if it is not in the table.
+	 */
+	int indexOf(String id) {
+		return m_Ids.indexOf(id);
+	}
+
+	/**
+	 * Adds a candidate that is not in the table yet.
+	 *
+	 * @param id the id of the candidate
+	 * @param original the original version of the phrase
+	 * @param position the position of the first occurrence
+	 * @param count the number of occurrences
+	 * @return the number of the candidate
+	 */
+	int add(String id, String original, int position, int count) {
+
+		int candidate = m_Ids.add(id, count);
+		if (candidate >= m_Originals.length) {
+			int capacity = Math.max(candidate + 1, 2 * m_Originals.length);
+			m_Originals = Arrays.copyOf(m_Originals, capacity);
+			m_FirstPositions = Arrays.copyOf(m_FirstPositions, capacity);
+			if (m_RecordPositions) {
+				m_NumPositions = Arrays.copyOf(m_NumPositions, capacity);
+				m_PositionMean = Arrays.copyOf(m_PositionMean, capacity);
+				m_PositionM2 = Arrays.copyOf(m_PositionM2, capacity);
+			}
+			if (m_SurfaceForms != null) {
+				m_SurfaceForms = Arrays.copyOf(m_SurfaceForms, capacity);
+			}
+		}
+		m_Originals[candidate] = original;
+		m_FirstPositions[candidate] = position;
+		if (m_RecordPositions) {
+			m_NumPositions[candidate] = 0;
+			m_PositionMean[candidate] = 0;
+			m_PositionM2[candidate] = 0;
+		}
+		return candidate;
+	}
+
+	/**
+	 * Adds an occurrence of a phrase: a new candidate with one
+	 * occurrence if the phrase is not in the table yet, otherwise
+	 * one more occurrence of its candidate. Records the position
+	 * if statistics of the positions are kept.
+	 *
+	 * @param id the id of the candidate
+	 * @param original the original version, used for a new candidate
+	 * @param position the position of the occurrence
+	 * @return the number of the candidate
+	 */
+	int addOccurrence(String id, String original, int position) {
+
+		int candidate = m_Ids.indexOf(id);
+		if (candidate < 0) {
+			candidate = add(id, original, position, 1);
+		} else {
+			m_Ids.add(id, 1);
+		}
+		recordPosition(candidate, position);
+		return candidate;
+	}
+
+	/**
+	 * Adds the position of an occurrence of a candidate to the
+	 * statistics of its positions, unless they are not kept.
+	 */
+	void recordPosition(int candidate, int position) {
+
+		if (!m_RecordPositions) {
+			return;
+		}
+		int n = ++m_NumPositions[candidate];
+		double delta = position - m_PositionMean[candidate];
+		m_PositionMean[candidate] += delta / n;
+		m_PositionM2[candidate] += delta * (position - m_PositionMean[candidate]);
+	}
+
+	/**
+	 * Adds a spelling of a candidate, unless the candidate already has
+	 * the maximum number of spellings or surface forms are not kept.
+	 */
+	void addSurfaceForm(int candidate, String form) {
+
+		if (m_SurfaceForms == null) {
+			return;
+		}
+		HashSet<String> forms = m_SurfaceForms[candidate];
+		if (forms == null) {
+			forms = new LinkedHashSet<String>();
+			m_SurfaceForms[candidate] = forms;
+		}
+		if (forms.size() < m_MaxSurfaceForms) {
+			forms.add(form);
+		}
+	}
+
+	/**
+	 * Returns true if the table keeps the spellings of the candidates.
+	 */
+	boolean keepsSurfaceForms() {
+		return m_SurfaceForms != null;
+	}
+
+	/**
+	 * Returns true if no more spellings are kept for a candidate.
+	 */
+	boolean hasAllSurfaceForms(int candidate) {
+		return (m_SurfaceForms == null) || ((m_SurfaceForms[candidate] != null) &&
+				(m_SurfaceForms[candidate].size() >= m_MaxSurfaceForms));
+	}
+
+	/**
+	 * Removes the candidates that occur less than minCount times.
+	 * The other candidates keep their order, but get new numbers.
+	 */
+	void removeRare(int minCount) {
+
+		StringIntMap ids = new StringIntMap(m_Ids.size());
+		int n = 0;
+		for (int i = 0; i < m_Ids.size(); i++) {
+			if (m_Ids.value(i) < minCount) {
+				continue;
+			}
+			ids.add(m_Ids.key(i), m_Ids.value(i));
+			m_Originals[n] = m_Originals[i];
+			m_FirstPositions[n] = m_FirstPositions[i];
+			if (m_RecordPositions) {
+				m_NumPositions[n] = m_NumPositions[i];
+				m_PositionMean[n] = m_PositionMean[i];
+				m_PositionM2[n] = m_PositionM2[i];
+			}
+			if (m_SurfaceForms != null) {
+				m_SurfaceForms[n] = m_SurfaceForms[i];
+			}
+			n++;
+		}
+		Arrays.fill(m_Originals, n, m_Originals.length, null);
+		if (m_SurfaceForms != null) {
+			Arrays.fill(m_SurfaceForms, n, m_SurfaceForms.length, null);
+		}
+		m_Ids = ids;
+	}
+
+	/**
+	 * Returns the id of a candidate.
+	 */
+	String id(int candidate) {
+		return m_Ids.key(candidate);
+	}
+
+	/**
+	 * Returns the original version of a candidate (may be null).
+	 */
+	String original(int candidate) {
+		return m_Originals[candidate];
+	}
+
+	/**
+	 * Returns the number of occurrences of a candidate.
+	 */
+	int count(int candidate) {
+		return m_Ids.value(candidate);
+	}
+
+	/**
+	 * Returns the position of the first occurrence of a candidate.
+	 */
+	int firstPosition(int candidate) {
+		return m_FirstPositions[candidate];
+	}
+
+	/**
+	 * Returns the (population) standard deviation of the recorded
+	 * positions of a candidate, or 0 if none were recorded.
+	 */
+	double positionDeviation(int candidate) {
+		if (!m_RecordPositions || (m_NumPositions[candidate] == 0)) {
+			return 0;
+		}
+		return Math.sqrt(m_PositionM2[candidate] / m_NumPositions[candidate]);
+	}
+
+	/**
+	 * Returns the spellings of a candidate found in the document,
+	 * or null if none are kept.
+	 */
+	HashSet<String> surfaceForms(int candidate) {
+		return (m_SurfaceForms == null) ? null : m_SurfaceForms[candidate];
+	}
+}
@@ -0,0 +1,81 @@
+package kea.filters;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import kea.util.Shards;
+import kea.util.StringIntMap;
+
+/**
+ * Counts the number of documents each phrase occurs in, with several
+ * threads. The documents are split into consecutive shards, one per
+ * thread. Each thread counts the phrases of its shard in its own
+ * StringIntMap, and the maps are merged in document order at the end.
+ * The result is therefore the same for any number of threads,
+ * including the order in which the phrases are added to it.
+ *
+ * @version 1.0
+ */
+public abstract class DocumentFrequencyBuilder {
+
+	/** The number of threads */
+	private final int m_NumThreads;
+
+	/**
+	 * Creates a builder using the given number of threads.
+	 */
+	public DocumentFrequencyBuilder(int numThreads) {
+		m_NumThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Returns the phrases of a document, each phrase once. Is called
+	 * from several threads at the same time, but only once per document.
+	 *
+	 * @param doc the number of the document
+	 * @return the phrases occurring in the document
+	 */
+	protected abstract Collection<String> getDocumentPhrases(int doc)
+	throws Exception;
+
+	/**
+	 * Counts the document frequencies of the phrases in the given
+	 * number of documents.
+	 *
+	 * @param numDocs the number of documents
+	 * @return the number of documents each phrase occurs in
+	 * @exception Exception if a document can't be processed
+	 */
+	public StringIntMap build(int numDocs) throws Exception {
+
+		int numShards = Shards.numShards(numDocs, m_NumThreads);
+		final StringIntMap[] shards = new StringIntMap[numShards];
+		Shards.run(numDocs, m_NumThreads, new Shards.Task() {
+			public void run(int shard, int from, int to) throws Exception {
+				shards[shard] = count(from, to);
+			}
+		});
+
+		// Merge in document order
+		StringIntMap counts = shards[0];
+		for (int s = 1; s < numShards; s++) {
+			counts.addAll(shards[s]);
+			shards[s] = null;
+		}
+		return counts;
+	}
+
+	/**
+	 * Counts the document frequencies in a range of documents.
+	 */
+	private StringIntMap count(int from, int to) throws Exception {
+		StringIntMap counts = new StringIntMap();
+		for (int doc = from; doc < to; doc++) {
+			Iterator<String> it = getDocumentPhrases(doc).iterator();
+			while (it.hasNext()) {
+				counts.add(it.next(), 1);
+			}
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,35 @@
+package kea.filters;
+
+/**
+ * A collection of training documents that can be read more than once.
+ * KEAFilter.train() reads every document twice, possibly from several
+ * threads at the same time, so that the documents don't have to be
+ * kept in memory.
+ *
+ * @version 1.0
+ */
+public interface DocumentSource {
+
+	/**
+	 * Returns the number of documents.
+	 */
+	int numDocuments();
+
+	/**
+	 * Returns the text of a document.
+	 *
+	 * @param doc the number of the document
+	 * @return the text, or null if the document has no text
+	 * @exception Exception if the text can't be read
+	 */
+	String getText(int doc) throws Exception;
+
+	/**
+	 * Returns the keyphrases of a document, one per line.
+	 *
+	 * @param doc the number of the document
+	 * @return the keyphrases, or null if the document has none
+	 * @exception Exception if the keyphrases can't be read
+	 */
+	String getKeyphrases(int doc) throws Exception;
+}
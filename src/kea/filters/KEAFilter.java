@@ -1,7 +1,26 @@
 package kea.filters;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.lang.Math;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -13,7 +32,16 @@ import kea.stemmers.SremovalStemmer;
 import kea.stemmers.Stemmer;
 import kea.stopwords.Stopwords;
 import kea.util.Counter;
+import kea.util.FrequencyTable;
+import kea.util.MappedFrequencyTable;
+import kea.util.PerfectHashFrequencyTable;
+import kea.util.PerfectHashFrequencyTableBuilder;
+import kea.util.PhraseNormalizer;
+import kea.util.Shards;
+import kea.util.StringIntMap;
+import kea.vocab.ConceptGraph;
 import kea.vocab.Vocabulary;
+import kea.vocab.VocabularyRegistry;
 import weka.core.Attribute;
 import weka.core.Capabilities;
 import weka.core.FastVector;
@@ -129,18 +157,65 @@ public class KEAFilter extends Filter implements OptionHandler {
 	/** The actual classifier used to compute probabilities */
 	private Classifier m_Classifier = null;
 
-	/** The dictionary containing the document frequencies */
-	public HashMap<String,Counter> m_Dictionary = null;
+	/** The classifier compiled into tables, null if it can't be compiled */
+	private transient NaiveBayesScorer m_Scorer = null;
 
-	/** The dictionary containing the keyphrases */
+	/** Has the classifier been compiled yet? */
+	private transient boolean m_ScorerCompiled = false;
+
+	/**
+	 * The document frequencies in the serialized form of the filter.
+	 * Only set while the filter is written or read, see writeObject().
+	 */
+	private HashMap<String,Counter> m_Dictionary = null;
+
+	/** The keyphrase frequencies in the serialized form of the filter */
 	private HashMap<String,Counter> m_KeyphraseDictionary = null;
 
+	/**
+	 * The document frequencies: a StringIntMap when built on the heap or
+	 * deserialized, a mapped table when loaded from a binary model file
+	 * or stored off the heap by train()
+	 */
+	private transient FrequencyTable m_DocumentFrequencies = null;
+
+	/** The keyphrase frequencies, null if they are not used */
+	private transient FrequencyTable m_KeyphraseFrequencies = null;
+
+	/**
+	 * The file train() stores the document frequencies in, off the heap,
+	 * or null to keep them on the heap
+	 */
+	private transient File m_DocumentFrequencyFile = null;
+
+	/** The number of phrases counted on the heap before spilling them to disk */
+	private static final int DOCUMENT_FREQUENCIES_IN_MEMORY = 1 << 21;
+
+	/** The first bytes of a binary model file ("KEAM") */
+	private static final int BINARY_MODEL_MAGIC = 0x4B45414D;
+
+	/**
+	 * The version of the binary model format. Every frequency table
+	 * starts with its type (sorted or perfect hash).
+	 */
+	private static final int BINARY_MODEL_VERSION = 1;
+
+	/** The types of the frequency tables in binary models */
+	private static final int SORTED_TABLE = 0;
+	private static final int PERFECT_HASH_TABLE = 1;
+
 	/** The number of documents in the global frequencies corpus */
 	private int m_NumDocs = 0;
 
 	/** Template for the classifier data */
 	private Instances m_ClassifierData = null;
 
+	/** The number of threads used for training */
+	private int m_NumThreads = 1;
+
+	/** The training documents, kept from one pass of training to the next */
+	private transient TrainingDocument[] m_TrainingDocuments = null;
+
 	/** The default stemmer to be used */
 	private Stemmer m_Stemmer = new SremovalStemmer();
 
@@ -151,8 +226,8 @@ public class KEAFilter extends Filter implements OptionHandler {
 	private String m_documentLanguage = "en";
 
 
-	/** The Vocabulary object */
-	public static Vocabulary m_Vocabulary;
+	/** The Vocabulary object, shared through the VocabularyRegistry */
+	private transient Vocabulary m_Vocabulary;
 
 	/** The Vocabulary name */
 	private String m_vocabulary = "agrovoc";
@@ -160,17 +235,61 @@ public class KEAFilter extends Filter implements OptionHandler {
 	/** The Vocabulary format */
 	private String m_vocabularyFormat = "skos";
 	
-	/** Save all surface forms for each stemmed phrase */
-	private HashMap<String,HashSet<String>> stemmed2surface;
-	
-	public KEAFilter(){
-		stemmed2surface = new HashMap<String, HashSet<String>>();
+	/** Rank all phrases instead of only the numPhrases best ones? */
+	private boolean m_FullRanking = false;
+
+	/** The maximum number of surface forms kept for each phrase */
+	private int m_MaxSurfaceForms = 10;
+
+	/** The surface forms of the top ranked phrases of the last document */
+	private transient HashMap<String,HashSet<String>> m_SurfaceForms = null;
+
+	/**
+	 * Returns the surface forms (the spellings found in the text) of a
+	 * phrase, given its id, if the phrase is among the top ranked phrases
+	 * of the document converted last. Returns null otherwise.
+	 * Each document gets new sets, so the result stays valid after
+	 * further documents have been processed.
+	 */
+	public HashSet<String> getSurfaceForms(String id) {
+		if (m_SurfaceForms == null) {
+			return null;
+		}
+		return m_SurfaceForms.get(id);
 	}
-	
-	/** Retrieves the HashMap which contains all original forms 
-	 * of a pseudo phrase */
+
+	/**
+	 * Retrieves the HashMap which contains the original forms of the
+	 * phrases. Only holds the top ranked phrases of the document
+	 * converted last, by their ids; the surface forms of all phrases
+	 * of all documents are no longer kept.
+	 *
+	 * @deprecated use getSurfaceForms(String)
+	 */
+	@Deprecated
 	public HashMap<String, HashSet<String>> getStemmed2surface() {
-		return stemmed2surface;
+		if (m_SurfaceForms == null) {
+			return new HashMap<String,HashSet<String>>();
+		}
+		return m_SurfaceForms;
+	}
+
+	/**
+	 * Get the maximum number of surface forms kept for each phrase.
+	 *
+	 * @return Value of maxSurfaceForms.
+	 */
+	public int getMaxSurfaceForms() {
+		return m_MaxSurfaceForms;
+	}
+
+	/**
+	 * Set the maximum number of surface forms kept for each phrase.
+	 *
+	 * @param newMaxSurfaceForms Value to assign to maxSurfaceForms.
+	 */
+	public void setMaxSurfaceForms(int newMaxSurfaceForms) {
+		m_MaxSurfaceForms = newMaxSurfaceForms;
 	}
 
 	/**
@@ -328,6 +447,47 @@ public class KEAFilter extends Filter implements OptionHandler {
 		m_MinPhraseLength = newMinPhraseLength;
 	}
 
+	/**
+	 * Get whether all phrases of a document are ranked.
+	 *
+	 * @return Value of fullRanking.
+	 */
+	public boolean getFullRanking() {
+		return m_FullRanking;
+	}
+
+	/**
+	 * Set whether all phrases of a document are ranked. By default only
+	 * the numPhrases best phrases get a rank and all others get rank
+	 * Integer.MAX_VALUE. Switch this on for evaluations that look at
+	 * the rank of every phrase.
+	 *
+	 * @param newFullRanking Value to assign to fullRanking.
+	 */
+	public void setFullRanking(boolean newFullRanking) {
+		m_FullRanking = newFullRanking;
+	}
+
+	/**
+	 * Get the number of threads used for training.
+	 *
+	 * @return Value of numThreads.
+	 */
+	public int getNumThreads() {
+		return m_NumThreads;
+	}
+
+	/**
+	 * Set the number of threads used for training: for building the
+	 * global dictionaries and computing the feature values of the
+	 * training data. The model is the same for any number of threads.
+	 *
+	 * @param newNumThreads Value to assign to numThreads.
+	 */
+	public void setNumThreads(int newNumThreads) {
+		m_NumThreads = newNumThreads;
+	}
+
 	/**
 	 * Get the value of numPhrases.
 	 *
@@ -497,25 +657,446 @@ public class KEAFilter extends Filter implements OptionHandler {
 	}
 
 
-	public void loadThesaurus(Stemmer st, Stopwords sw) {
-		m_Vocabulary = new Vocabulary(m_vocabulary,m_vocabularyFormat, m_documentLanguage);
+	/**
+	 * Returns a copy of this (trained) filter that can be used to extract
+	 * keyphrases in parallel with the original and with other copies.
+	 * The copy shares the read-only parts of the model -- the global
+	 * dictionaries, the stemmer, the stop words and the vocabulary --
+	 * and gets its own Weka queue and input and output formats. The
+	 * classifier is compiled once and the compiled version is shared;
+	 * a classifier that can't be compiled is copied, because its
+	 * filter is not safe for concurrent use.
+	 *
+	 * @return a copy of this filter that is ready to accept documents
+	 * @exception Exception if the filter has not been trained yet
+	 */
+	public KEAFilter copyForExtraction() throws Exception {
+
+		if (getInputFormat() == null || ((m_Classifier == null) && (m_Scorer == null))) {
+			throw new Exception("KEAFilter has not been trained yet");
+		}
+
+		KEAFilter copy = new KEAFilter();
+		copy.m_DocumentAtt = m_DocumentAtt;
+		copy.m_KeyphrasesAtt = m_KeyphrasesAtt;
+		copy.m_MaxPhraseLength = m_MaxPhraseLength;
+		copy.m_MinPhraseLength = m_MinPhraseLength;
+		copy.m_numPhrases = m_numPhrases;
+		copy.m_MaxSurfaceForms = m_MaxSurfaceForms;
+		copy.m_FullRanking = m_FullRanking;
+		copy.m_DESCRreplace = m_DESCRreplace;
+		copy.m_NODEfeature = m_NODEfeature;
+		copy.m_LENGTHfeature = m_LENGTHfeature;
+		copy.m_KFused = m_KFused;
+		copy.m_STDEVfeature = m_STDEVfeature;
+		copy.m_Debug = m_Debug;
+		copy.m_DisallowInternalPeriods = m_DisallowInternalPeriods;
+		copy.m_MinNumOccur = m_MinNumOccur;
+		copy.m_NumFeatures = m_NumFeatures;
+		copy.m_CheckForProperNouns = m_CheckForProperNouns;
+		copy.m_Stemmer = m_Stemmer;
+		copy.m_Stopwords = m_Stopwords;
+		copy.m_documentLanguage = m_documentLanguage;
+		copy.m_vocabulary = m_vocabulary;
+		copy.m_vocabularyFormat = m_vocabularyFormat;
+		copy.m_Vocabulary = m_Vocabulary;
+
+		copy.m_DocumentFrequencies = m_DocumentFrequencies;
+		copy.m_KeyphraseFrequencies = m_KeyphraseFrequencies;
+		copy.m_NumDocs = m_NumDocs;
+		copy.m_ClassifierData = m_ClassifierData;
+		NaiveBayesScorer scorer;
+		synchronized (this) {
+			if (!m_ScorerCompiled) {
+				m_Scorer = NaiveBayesScorer.compile(m_Classifier, m_ClassifierData);
+				m_ScorerCompiled = true;
+			}
+			scorer = m_Scorer;
+		}
+		copy.m_Scorer = scorer;
+		copy.m_ScorerCompiled = true;
+		if (scorer == null) {
+			copy.m_Classifier = Classifier.makeCopy(m_Classifier);
+		}
+
+		copy.setInputFormat(getInputFormat().stringFreeStructure());
+		copy.setOutputFormat(copy.determineOutputFormat());
+		return copy;
+	}
+
+	/**
+	 * Returns the file train() stores the document frequencies in,
+	 * or null if they are kept on the heap.
+	 */
+	public File getDocumentFrequencyFile() {
+		return m_DocumentFrequencyFile;
+	}
+
+	/**
+	 * Sets the file train() stores the document frequencies in. The
+	 * frequencies are then counted mostly on disk and looked up in the
+	 * memory-mapped file (see PerfectHashFrequencyTable), so the heap
+	 * does not grow with the number of distinct phrases. The model can
+	 * then only be saved with saveBinaryModel(), which copies the table.
+	 *
+	 * @param file the file, or null to keep the frequencies on the heap
+	 */
+	public void setDocumentFrequencyFile(File file) {
+		m_DocumentFrequencyFile = file;
+	}
+
+	/**
+	 * Returns true if the filter has global dictionaries, either
+	 * built by training or loaded from a model.
+	 */
+	public boolean hasGlobalDictionaries() {
+		return m_DocumentFrequencies != null;
+	}
+
+	/**
+	 * Sets the document frequencies, for instance ones counted in the
+	 * documents keyphrases are extracted from. With null, they are built
+	 * again from the next batch of documents.
+	 *
+	 * @param frequencies the number of documents each phrase occurs in
+	 */
+	public void setDocumentFrequencies(FrequencyTable frequencies) {
+		m_DocumentFrequencies = frequencies;
+	}
+
+	/**
+	 * Writes the filter. The frequency tables are not serializable, so
+	 * they are written as the HashMaps of Counters that older versions
+	 * of the filter kept them in, and models stay readable both ways.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
 
-		m_Vocabulary.setStemmer(st);
-		m_Vocabulary.setStopwords(sw);
-		m_Vocabulary.initialize();
+		if (((m_DocumentFrequencies != null) &&
+				!(m_DocumentFrequencies instanceof StringIntMap)) ||
+				((m_KeyphraseFrequencies != null) &&
+						!(m_KeyphraseFrequencies instanceof StringIntMap))) {
+			throw new NotSerializableException("Frequencies that are not on " +
+					"the heap can only be saved with saveBinaryModel()");
+		}
+		m_Dictionary = toCounters((StringIntMap)m_DocumentFrequencies);
+		m_KeyphraseDictionary = toCounters((StringIntMap)m_KeyphraseFrequencies);
 		try {
+			out.defaultWriteObject();
+		} finally {
+			m_Dictionary = null;
+			m_KeyphraseDictionary = null;
+		}
+	}
+
+	/**
+	 * Reads the filter, and converts the frequencies to StringIntMaps.
+	 */
+	private void readObject(ObjectInputStream in)
+	throws IOException, ClassNotFoundException {
+
+		in.defaultReadObject();
+		m_DocumentFrequencies = fromCounters(m_Dictionary);
+		m_KeyphraseFrequencies = fromCounters(m_KeyphraseDictionary);
+		m_Dictionary = null;
+		m_KeyphraseDictionary = null;
+	}
+
+	private static HashMap<String,Counter> toCounters(StringIntMap map) {
+		if (map == null) {
+			return null;
+		}
+		HashMap<String,Counter> counters = new HashMap<String,Counter>(2 * map.size());
+		for (int i = 0; i < map.size(); i++) {
+			counters.put(map.key(i), new Counter(map.value(i)));
+		}
+		return counters;
+	}
+
+	private static StringIntMap fromCounters(HashMap<String,Counter> counters) {
+		if (counters == null) {
+			return null;
+		}
+		StringIntMap map = new StringIntMap(counters.size());
+		Iterator<String> it = counters.keySet().iterator();
+		while (it.hasNext()) {
+			String phrase = it.next();
+			map.add(phrase, counters.get(phrase).value());
+		}
+		return map;
+	}
 
-			if (m_DESCRreplace) {
-				m_Vocabulary.buildUSE();
+	/**
+	 * Saves the trained filter in the binary model format, which
+	 * loadBinaryModel() maps into memory instead of deserializing it.
+	 * The file starts with a header holding the version of the format,
+	 * the options of the filter and the tables of the classifier,
+	 * followed by the document frequencies and the keyphrase frequencies.
+	 * These are stored as sorted string tables (see MappedFrequencyTable),
+	 * except for document frequencies that train() stored off the heap,
+	 * whose perfect hash table is copied as it is.
+	 *
+	 * @param file the file to write
+	 * @exception Exception if the filter has not been trained, or if its
+	 * classifier can't be stored in the binary format
+	 */
+	public void saveBinaryModel(File file) throws Exception {
+
+		if (!hasGlobalDictionaries() || ((m_Classifier == null) && (m_Scorer == null))) {
+			throw new Exception("KEAFilter has not been trained yet");
+		}
+		if ((m_DocumentFrequencies instanceof MappedFrequencyTable) ||
+				(m_KeyphraseFrequencies instanceof MappedFrequencyTable)) {
+			throw new Exception("The document frequencies can't be saved again");
+		}
+		if (!m_ScorerCompiled) {
+			m_Scorer = NaiveBayesScorer.compile(m_Classifier, m_ClassifierData);
+			m_ScorerCompiled = true;
+		}
+		if (m_Scorer == null) {
+			throw new Exception("The classifier " + m_Classifier.getClass().getName() +
+			" can't be saved in the binary model format");
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.writeUTF(m_Stemmer.getClass().getName());
+		header.writeUTF((m_Stopwords == null) ? "" : m_Stopwords.getClass().getName());
+		header.writeUTF(m_documentLanguage);
+		header.writeUTF(m_vocabulary);
+		header.writeUTF((m_vocabularyFormat == null) ? "" : m_vocabularyFormat);
+		header.writeInt(m_DocumentAtt);
+		header.writeInt(m_KeyphrasesAtt);
+		header.writeInt(m_MaxPhraseLength);
+		header.writeInt(m_MinPhraseLength);
+		header.writeInt(m_numPhrases);
+		header.writeInt(m_MaxSurfaceForms);
+		header.writeInt(m_MinNumOccur);
+		header.writeInt(m_NumFeatures);
+		header.writeInt(m_NumDocs);
+		header.writeBoolean(m_FullRanking);
+		header.writeBoolean(m_DESCRreplace);
+		header.writeBoolean(m_NODEfeature);
+		header.writeBoolean(m_LENGTHfeature);
+		header.writeBoolean(m_KFused);
+		header.writeBoolean(m_STDEVfeature);
+		header.writeBoolean(m_DisallowInternalPeriods);
+		header.writeBoolean(m_CheckForProperNouns);
+		header.writeBoolean(m_KeyphraseFrequencies != null);
+		m_Scorer.write(header);
+		header.close();
+
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(BINARY_MODEL_MAGIC);
+			out.writeInt(BINARY_MODEL_VERSION);
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+			for (int i = (4 - (bytes.size() & 3)) & 3; i > 0; i--) {
+				out.writeByte(0);
 			}
-			if (m_NODEfeature) {
-				m_Vocabulary.buildREL();
+			if (m_DocumentFrequencies instanceof StringIntMap) {
+				out.writeInt(SORTED_TABLE);
+				MappedFrequencyTable.write(out, (StringIntMap)m_DocumentFrequencies);
+			} else {
+				out.writeInt(PERFECT_HASH_TABLE);
+				((PerfectHashFrequencyTable)m_DocumentFrequencies).writeTo(out);
+			}
+			if (m_KeyphraseFrequencies != null) {
+				out.writeInt(SORTED_TABLE);
+				MappedFrequencyTable.write(out, (StringIntMap)m_KeyphraseFrequencies);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns true if a file is in the binary model format.
+	 */
+	public static boolean isBinaryModel(File file) throws IOException {
+
+		if (!file.isFile() || (file.length() < 8)) {
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readInt() == BINARY_MODEL_MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns true if a stream starts with a model in the binary
+	 * format. The stream must support mark() and is reset to where
+	 * it was.
+	 */
+	public static boolean isBinaryModel(InputStream in) throws IOException {
+
+		in.mark(4);
+		try {
+			int magic = 0;
+			for (int i = 0; i < 4; i++) {
+				int b = in.read();
+				if (b < 0) {
+					return false;
+				}
+				magic = (magic << 8) | b;
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+			return magic == BINARY_MODEL_MAGIC;
+		} finally {
+			in.reset();
+		}
+	}
+
+	/**
+	 * Loads a filter saved by saveBinaryModel(). The file is mapped
+	 * into memory and the frequency tables are read from the mapping,
+	 * so loading is fast and processes using the same model share its
+	 * pages. The filter is ready for extraction, but can't be trained
+	 * further.
+	 *
+	 * @param file the model file
+	 * @return the filter
+	 * @exception Exception if the file is not a binary model in a
+	 * supported version of the format
+	 */
+	public static KEAFilter loadBinaryModel(File file) throws Exception {
+
+		MappedByteBuffer buffer;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		return readBinaryModel(buffer, file.toString());
+	}
+
+	/**
+	 * Loads a filter saved by saveBinaryModel() from a stream, e.g.
+	 * a model shipped as a resource. The model is read into memory,
+	 * so prefer loadBinaryModel(File) for files. The stream is
+	 * not closed.
+	 *
+	 * @param in the stream to read the model from
+	 * @param name the name of the model, used in error messages
+	 * @return the filter
+	 * @exception Exception if the stream does not contain a binary
+	 * model in a supported version of the format
+	 */
+	public static KEAFilter loadBinaryModel(InputStream in, String name)
+	throws Exception {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		int n;
+		while ((n = in.read(chunk)) >= 0) {
+			bytes.write(chunk, 0, n);
+		}
+		return readBinaryModel(ByteBuffer.wrap(bytes.toByteArray()), name);
+	}
+
+	/**
+	 * Reads a filter saved by saveBinaryModel() from a buffer.
+	 */
+	private static KEAFilter readBinaryModel(ByteBuffer buffer, String source)
+	throws Exception {
+
+		if ((buffer.remaining() < 8) || (buffer.getInt() != BINARY_MODEL_MAGIC)) {
+			throw new Exception(source + " is not a binary KEA model");
+		}
+		int version = buffer.getInt();
+		if (version != BINARY_MODEL_VERSION) {
+			throw new Exception("Unsupported version " + version +
+					" of the binary model format in " + source);
+		}
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		buffer.position(buffer.position() + ((4 - (bytes.length & 3)) & 3));
+		DataInputStream header = new DataInputStream(new ByteArrayInputStream(bytes));
+
+		KEAFilter filter = new KEAFilter();
+		filter.m_Stemmer = (Stemmer)Class.forName(header.readUTF()).newInstance();
+		String stopwords = header.readUTF();
+		if (stopwords.length() > 0) {
+			filter.m_Stopwords = (Stopwords)Class.forName(stopwords).newInstance();
+		}
+		filter.m_documentLanguage = header.readUTF();
+		filter.m_vocabulary = header.readUTF();
+		filter.m_vocabularyFormat = header.readUTF();
+		filter.m_DocumentAtt = header.readInt();
+		filter.m_KeyphrasesAtt = header.readInt();
+		filter.m_MaxPhraseLength = header.readInt();
+		filter.m_MinPhraseLength = header.readInt();
+		filter.m_numPhrases = header.readInt();
+		filter.m_MaxSurfaceForms = header.readInt();
+		filter.m_MinNumOccur = header.readInt();
+		filter.m_NumFeatures = header.readInt();
+		filter.m_NumDocs = header.readInt();
+		filter.m_FullRanking = header.readBoolean();
+		filter.m_DESCRreplace = header.readBoolean();
+		filter.m_NODEfeature = header.readBoolean();
+		filter.m_LENGTHfeature = header.readBoolean();
+		filter.m_KFused = header.readBoolean();
+		filter.m_STDEVfeature = header.readBoolean();
+		filter.m_DisallowInternalPeriods = header.readBoolean();
+		filter.m_CheckForProperNouns = header.readBoolean();
+		boolean hasKeyphraseFrequencies = header.readBoolean();
+		filter.m_Scorer = NaiveBayesScorer.read(header);
+		filter.m_ScorerCompiled = true;
+
+		filter.m_DocumentFrequencies = readFrequencyTable(buffer);
+		if (hasKeyphraseFrequencies) {
+			filter.m_KeyphraseFrequencies = readFrequencyTable(buffer);
+		}
+
+		// The same input format as the one used for training
+		FastVector atts = new FastVector();
+		for (int i = 0; i <= Math.max(filter.m_DocumentAtt, filter.m_KeyphrasesAtt); i++) {
+			String name = (i == filter.m_DocumentAtt) ? "doc" :
+				(i == filter.m_KeyphrasesAtt) ? "keyphrases" : "att" + i;
+			atts.addElement(new Attribute(name, (FastVector) null));
+		}
+		filter.setInputFormat(new Instances("keyphrase_training_data", atts, 0));
+		filter.setOutputFormat(filter.determineOutputFormat());
+		return filter;
+	}
+
+	/**
+	 * Reads a frequency table of a binary model from a buffer.
+	 */
+	private static FrequencyTable readFrequencyTable(ByteBuffer buffer)
+	throws IOException {
+		int type = buffer.getInt();
+		switch (type) {
+		case SORTED_TABLE:
+			return new MappedFrequencyTable(buffer);
+		case PERFECT_HASH_TABLE:
+			return new PerfectHashFrequencyTable(buffer);
+		default:
+			throw new IOException("Unknown type " + type + " of frequency table");
 		}
 	}
 
+	/**
+	 * Sets the vocabulary used by this filter. The vocabulary is
+	 * only built the first time it is requested in this JVM; afterwards
+	 * the loaded index is shared (see VocabularyRegistry).
+	 */
+	public void loadThesaurus(Stemmer st, Stopwords sw) {
+		m_Vocabulary = VocabularyRegistry.getVocabulary(m_vocabulary,
+				m_vocabularyFormat, m_documentLanguage, st, sw);
+	}
+
+	/**
+	 * Returns the vocabulary loaded by loadThesaurus(), or null.
+	 */
+	public Vocabulary getThesaurus() {
+		return m_Vocabulary;
+	}
+
 
 	/**
 	 * Parses a given list of options controlling the behaviour of this object.
@@ -770,7 +1351,7 @@ public class KEAFilter extends Filter implements OptionHandler {
 			instance = m_NumbersFilter.output();
 		}
 
-		if (m_Dictionary == null) {
+		if (!hasGlobalDictionaries()) {
 			bufferInput(instance);
 			return false;
 		} else {
@@ -799,7 +1380,7 @@ public class KEAFilter extends Filter implements OptionHandler {
 			throw new Exception("No input instance format defined");
 		}
 
-		if (m_Dictionary == null) {
+		if (!hasGlobalDictionaries()) {
 			buildGlobalDictionaries();
 			buildClassifier();
 			convertPendingInstances();
@@ -811,7 +1392,10 @@ public class KEAFilter extends Filter implements OptionHandler {
 
 
 	/**
-	 * Builds the global dictionaries.
+	 * Builds the global dictionaries. The candidate phrases and the
+	 * keyphrases of each training document are kept, so that
+	 * buildClassifier() and convertPendingInstances() don't have to
+	 * extract them again.
 	 */
 	public void buildGlobalDictionaries() throws Exception {
 		if (m_Debug) {
@@ -820,46 +1404,31 @@ public class KEAFilter extends Filter implements OptionHandler {
 
 		// Build dictionary of n-grams with associated
 		// document frequencies
-		m_Dictionary = new HashMap<String,Counter>();
-		for (int i = 0; i < getInputFormat().numInstances(); i++) {
-			String str = getInputFormat().instance(i).stringValue(m_DocumentAtt);
-			HashMap<String,Counter> hash = getPhrasesForDictionary(str);
-			Iterator<String> it = hash.keySet().iterator();
-			while (it.hasNext()) {
-				String phrase = it.next();
-				Counter counter = m_Dictionary.get(phrase);
-				if (counter == null) {
-					m_Dictionary.put(phrase, new Counter());
-				} else {
-					counter.increment();
-				}
+		final Instances input = getInputFormat();
+		final TrainingDocument[] docs = new TrainingDocument[input.numInstances()];
+		m_DocumentFrequencies = new DocumentFrequencyBuilder(m_NumThreads) {
+			protected Collection<String> getDocumentPhrases(int i) {
+				Instance current = input.instance(i);
+				HashSet<String> phrases = new HashSet<String>();
+				docs[i] = getTrainingDocument(current.stringValue(m_DocumentAtt),
+						current.stringValue(m_KeyphrasesAtt), phrases);
+				return phrases;
 			}
-		}
+		}.build(docs.length);
+		m_TrainingDocuments = docs;
 
 		if (m_KFused) {       
 			
 
 			// Build dictionary of n-grams that occur as keyphrases
 			// with associated keyphrase frequencies
-			m_KeyphraseDictionary = new HashMap<String,Counter>();
-			for (int i = 0; i < getInputFormat().numInstances(); i++) {
-				String str = getInputFormat().instance(i).stringValue(m_KeyphrasesAtt);
-				HashMap<String,Counter> hash = getGivenKeyphrases(str, false);
-				if (hash != null) {
-					Iterator<String> it = hash.keySet().iterator();
-					while (it.hasNext()) {
-						String phrase = it.next();
-						Counter counter = m_KeyphraseDictionary.get(phrase);
-						if (counter == null) {
-							m_KeyphraseDictionary.put(phrase, new Counter());
-						} else {
-							counter.increment();
-						}
-					}
-				}
+			StringIntMap frequencies = new StringIntMap();
+			for (int i = 0; i < m_TrainingDocuments.length; i++) {
+				addKeyphrases(frequencies, m_TrainingDocuments[i].m_Keyphrases);
 			}
+			m_KeyphraseFrequencies = frequencies;
 		} else {
-			m_KeyphraseDictionary = null;
+			m_KeyphraseFrequencies = null;
 		}
 
 		// Set the number of documents in the global corpus
@@ -867,79 +1436,253 @@ public class KEAFilter extends Filter implements OptionHandler {
 	}
 
 	/**
-	 * Builds the classifier.
+	 * Trains the filter on the documents of a source, instead of
+	 * passing them to input() and calling batchFinished(). The documents
+	 * are not kept in memory: the source is read twice, once to build
+	 * the global dictionaries and once to compute the feature values
+	 * of the candidate phrases. Only the dictionaries and the feature
+	 * values are kept. The model is the same as the one built from the
+	 * same documents, in the same order, by batchFinished().
+	 * Must be called after setInputFormat().
+	 *
+	 * @param source the training documents
+	 * @exception Exception if a document can't be read
 	 */
-	// aly: The main function, where everything important happens
-	private void buildClassifier() throws Exception {
-		// Generate input format for classifier
-		FastVector atts = new FastVector();
-		for (int i = 0; i < getInputFormat().numAttributes(); i++) {
-			if (i == m_DocumentAtt) {
-				atts.addElement(new Attribute("TFxIDF"));
-				atts.addElement(new Attribute("First_occurrence"));
-				if (m_KFused) {
-					atts.addElement(new Attribute("Keyphrase_frequency"));
-				}
-				if (m_NODEfeature) {
-					atts.addElement(new Attribute("Relations_number"));
-				}
-				if (m_LENGTHfeature) {
-					atts.addElement(new Attribute("Phrase_length"));
-				}
-				if (m_STDEVfeature) {
-					atts.addElement(new Attribute("Standard_deviation"));
-				}
-			} else if (i == m_KeyphrasesAtt) {
-				FastVector vals = new FastVector(2);
-				vals.addElement("False");
-				vals.addElement("True");
-				atts.addElement(new Attribute("Keyphrase?", vals));
-				// use this instead if numeric class value is used
-				// atts.addElement(new Attribute("Keyphrase?"));
-			} 
+	@SuppressWarnings("unchecked")
+	public void train(final DocumentSource source) throws Exception {
+
+		if (getInputFormat() == null) {
+			throw new Exception("No input instance format defined");
 		}
-		m_ClassifierData = new Instances("ClassifierData", atts, 0);
-		m_ClassifierData.setClassIndex(m_NumFeatures);
 
 		if (m_Debug) {
-			System.err.println("--- Converting instances for classifier");
+			System.err.println("--- Building global dictionaries");
 		}
-		// Convert pending input instances into data for classifier
-		for(int i = 0; i < getInputFormat().numInstances(); i++) {
-			Instance current = getInputFormat().instance(i);
-
-			// Get the key phrases for the document
-			String keyphrases = current.stringValue(m_KeyphrasesAtt);
-			HashMap<String,Counter> hashKeyphrases = getGivenKeyphrases(keyphrases, false);
-			HashMap<String,Counter> hashKeysEval = getGivenKeyphrases(keyphrases, true);
-
-			// Get the phrases for the document
-			HashMap<String,FastVector> hash = new HashMap<String,FastVector>();
-			int length = getPhrases(hash, current.stringValue(m_DocumentAtt));
-			// hash = getComposits(hash);
 
-			// Compute the feature values for each phrase and
-			// add the instance to the data for the classifier
+		// First pass: the document frequencies and, if used, the
+		// keyphrases of each document for the keyphrase frequencies
+		final int numDocs = source.numDocuments();
+		final HashMap<String,Counter>[] keyphrases = new HashMap[numDocs];
+		if (m_DocumentFrequencyFile == null) {
+			m_DocumentFrequencies = new DocumentFrequencyBuilder(m_NumThreads) {
+				protected Collection<String> getDocumentPhrases(int i) throws Exception {
+					return readTrainingPhrases(source, i, keyphrases);
+				}
+			}.build(numDocs);
+		} else {
+			// Count the phrases off the heap
+			final PerfectHashFrequencyTableBuilder builder =
+				new PerfectHashFrequencyTableBuilder(
+						m_DocumentFrequencyFile.getAbsoluteFile().getParentFile(),
+						DOCUMENT_FREQUENCIES_IN_MEMORY);
+			Shards.run(numDocs, m_NumThreads, new Shards.Task() {
+				public void run(int shard, int from, int to) throws Exception {
+					for (int i = from; i < to; i++) {
+						builder.addAll(readTrainingPhrases(source, i, keyphrases));
+					}
+				}
+			});
+			builder.write(m_DocumentFrequencyFile);
+			m_DocumentFrequencies = PerfectHashFrequencyTable.map(m_DocumentFrequencyFile);
+		}
 
-			Iterator<String> it = hash.keySet().iterator();
-			while (it.hasNext()) {
-				String phrase = it.next();
-				FastVector phraseInfo = (FastVector)hash.get(phrase);
-
-				double[] vals =  featVals(phrase, phraseInfo, true,
-						hashKeysEval, hashKeyphrases, length, hash);
-				//System.err.println(vals);
-				Instance inst = new Instance(current.weight(), vals);
-				// .err.println(phrase + "\t" + inst.toString());
-				m_ClassifierData.add(inst);
+		if (m_KFused) {
+			StringIntMap frequencies = new StringIntMap();
+			for (int i = 0; i < numDocs; i++) {
+				addKeyphrases(frequencies, keyphrases[i]);
+				keyphrases[i] = null;
+			}
+			m_KeyphraseFrequencies = frequencies;
+		} else {
+			m_KeyphraseFrequencies = null;
+		}
+		m_NumDocs = numDocs;
+
+		// Second pass: the feature values
+		final double[][][] vals = new double[numDocs][][];
+		Shards.run(numDocs, m_NumThreads, new Shards.Task() {
+			public void run(int shard, int from, int to) throws Exception {
+				for (int i = from; i < to; i++) {
+					TrainingDocument doc = getTrainingDocument(readText(source, i),
+							readKeyphrases(source, i), null);
+					computeFeatureValues(doc);
+					vals[i] = doc.m_Vals;
+				}
 			}
+		});
+		double[] weights = new double[numDocs];
+		Arrays.fill(weights, 1.0);
+		buildClassifier(vals, weights);
+	}
+
+	/**
+	 * Reads a training document from a source and returns its phrases.
+	 * Its keyphrases are kept in keyphrases[doc] if the keyphrase
+	 * frequency feature is used.
+	 */
+	private Collection<String> readTrainingPhrases(DocumentSource source, int doc,
+			HashMap<String,Counter>[] keyphrases) throws Exception {
+		HashSet<String> phrases = new HashSet<String>();
+		getPhrases(new CandidateTable(m_STDEVfeature, 0), phrases, readText(source, doc));
+		if (m_KFused) {
+			keyphrases[doc] = getGivenKeyphrases(readKeyphrases(source, doc), false);
 		}
+		return phrases;
+	}
 
-		if (m_Debug) {
-			System.err.println("--- Building classifier");
+	/**
+	 * Reads the text of a document from a source, and prepares it
+	 * the way input() prepares the document attribute.
+	 */
+	private String readText(DocumentSource source, int doc) throws Exception {
+		String text = source.getText(doc);
+		if (text == null) {
+			return "";
+		}
+		text = m_PunctFilter.tokenize(text);
+		if (m_vocabulary.equals("none")) {
+			text = NumbersFilter.removeNumbers(text);
 		}
+		return text;
+	}
 
-		// Build classifier
+	/**
+	 * Reads the keyphrases of a document from a source, and prepares
+	 * them the way input() prepares the keyphrase attribute.
+	 */
+	private String readKeyphrases(DocumentSource source, int doc) throws Exception {
+		String keyphrases = source.getKeyphrases(doc);
+		if (keyphrases == null) {
+			return "";
+		}
+		if (m_vocabulary.equals("none")) {
+			keyphrases = NumbersFilter.removeNumbers(keyphrases);
+		}
+		return keyphrases;
+	}
+
+	/**
+	 * Extracts the candidate phrases and the given keyphrases of a
+	 * training document. The phrases are also added to allPhrases,
+	 * unless it is null.
+	 */
+	private TrainingDocument getTrainingDocument(String text, String keyphrases,
+			HashSet<String> allPhrases) {
+		TrainingDocument doc = new TrainingDocument();
+		doc.m_Candidates = new CandidateTable(m_STDEVfeature, 0);
+		doc.m_Length = getPhrases(doc.m_Candidates, allPhrases, text);
+		doc.m_Keyphrases = getGivenKeyphrases(keyphrases, false);
+		doc.m_KeysEval = getGivenKeyphrases(keyphrases, true);
+		return doc;
+	}
+
+	/**
+	 * Counts the keyphrases of a training document in the keyphrase
+	 * frequencies.
+	 */
+	private static void addKeyphrases(StringIntMap frequencies,
+			HashMap<String,Counter> hash) {
+		if (hash != null) {
+			Iterator<String> it = hash.keySet().iterator();
+			while (it.hasNext()) {
+				frequencies.add(it.next(), 1);
+			}
+		}
+	}
+
+	/**
+	 * Computes the feature values of the candidate phrases of a
+	 * training document.
+	 */
+	private void computeFeatureValues(TrainingDocument doc) {
+		doc.m_Vals = featVals(doc.m_Candidates, true,
+				doc.m_KeysEval, doc.m_Keyphrases, doc.m_Length);
+	}
+
+	/**
+	 * Builds the classifier from the training documents kept by
+	 * buildGlobalDictionaries().
+	 */
+	private void buildClassifier() throws Exception {
+
+		// Compute the feature values for each phrase of each document,
+		// with m_NumThreads threads. The values are kept for
+		// convertPendingInstances().
+		final TrainingDocument[] docs = m_TrainingDocuments;
+		Shards.run(docs.length, m_NumThreads, new Shards.Task() {
+			public void run(int shard, int from, int to) {
+				for (int i = from; i < to; i++) {
+					computeFeatureValues(docs[i]);
+				}
+			}
+		});
+
+		double[][][] vals = new double[docs.length][][];
+		double[] weights = new double[docs.length];
+		for (int i = 0; i < docs.length; i++) {
+			vals[i] = docs[i].m_Vals;
+			weights[i] = getInputFormat().instance(i).weight();
+		}
+		buildClassifier(vals, weights);
+	}
+
+	/**
+	 * Builds the classifier from the feature values of the candidate
+	 * phrases of each training document.
+	 *
+	 * @param values the feature values of each phrase of each document
+	 * @param weights the weight of each document
+	 */
+	// aly: The main function, where everything important happens
+	private void buildClassifier(double[][][] values, double[] weights)
+	throws Exception {
+		// Generate input format for classifier
+		FastVector atts = new FastVector();
+		for (int i = 0; i < getInputFormat().numAttributes(); i++) {
+			if (i == m_DocumentAtt) {
+				atts.addElement(new Attribute("TFxIDF"));
+				atts.addElement(new Attribute("First_occurrence"));
+				if (m_KFused) {
+					atts.addElement(new Attribute("Keyphrase_frequency"));
+				}
+				if (m_NODEfeature) {
+					atts.addElement(new Attribute("Relations_number"));
+				}
+				if (m_LENGTHfeature) {
+					atts.addElement(new Attribute("Phrase_length"));
+				}
+				if (m_STDEVfeature) {
+					atts.addElement(new Attribute("Standard_deviation"));
+				}
+			} else if (i == m_KeyphrasesAtt) {
+				FastVector vals = new FastVector(2);
+				vals.addElement("False");
+				vals.addElement("True");
+				atts.addElement(new Attribute("Keyphrase?", vals));
+				// use this instead if numeric class value is used
+				// atts.addElement(new Attribute("Keyphrase?"));
+			} 
+		}
+		m_ClassifierData = new Instances("ClassifierData", atts, 0);
+		m_ClassifierData.setClassIndex(m_NumFeatures);
+
+		if (m_Debug) {
+			System.err.println("--- Converting instances for classifier");
+		}
+		// Add the instances to the data for the classifier,
+		// in the order of the documents
+		for(int i = 0; i < values.length; i++) {
+			for (int j = 0; j < values[i].length; j++) {
+				Instance inst = new Instance(weights[i], values[i][j]);
+				m_ClassifierData.add(inst);
+			}
+		}
+
+		if (m_Debug) {
+			System.err.println("--- Building classifier");
+		}
+
+		// Build classifier
 
 		
 		FilteredClassifier fclass = new FilteredClassifier();		
@@ -1024,6 +1767,7 @@ public class KEAFilter extends Filter implements OptionHandler {
 		// System.out.print(m_ClassifierData);   
 		//System.exit(1);
 		m_Classifier.buildClassifier(m_ClassifierData);
+		m_ScorerCompiled = false;
 
 		if (m_Debug) {
 			System.err.println("========= Classifier  ===========");
@@ -1040,149 +1784,149 @@ public class KEAFilter extends Filter implements OptionHandler {
 		m_ClassifierData = new Instances(m_ClassifierData, 0);
 	}
 
+	/**
+	 * Returns the number of documents in the global corpus a phrase
+	 * occurs in (0 if it does not occur in any).
+	 */
+	private int documentFrequency(String id) {
+		return m_DocumentFrequencies.frequency(id);
+	}
+
+	/**
+	 * Returns the number of training documents a phrase is a
+	 * keyphrase of.
+	 */
+	private int keyphraseFrequency(String id) {
+		if (m_KeyphraseFrequencies != null) {
+			return m_KeyphraseFrequencies.frequency(id);
+		}
+		return 0;
+	}
+
 	/** 
-	 * Conmputes the feature values for a given phrase.
+	 * Computes the feature values of all candidate phrases of a
+	 * document. Each feature is computed for all candidates before
+	 * the next one, from the columns of the candidate table.
+	 * Returns the values of each candidate, with the class value last.
 	 */
-	private double[] featVals(String id, FastVector phraseInfo, 
+	private double[][] featVals(CandidateTable candidates, 
 			boolean training, HashMap<String,Counter> hashKeysEval,
-			HashMap<String,Counter> hashKeyphrases, int length, HashMap<String,FastVector> hash) {
-
-		// Compute feature values
-		Counter counterLocal = (Counter)phraseInfo.elementAt(1);
-		double[] newInst = new double[m_NumFeatures + 1];
+			HashMap<String,Counter> hashKeyphrases, int length) {
 
+		int n = candidates.size();
+		double[][] vals = new double[n][m_NumFeatures + 1];
 
 		// Compute TFxIDF
-		Counter counterGlobal = (Counter)m_Dictionary.get(id);
-		double localVal = counterLocal.value(), globalVal = 0;
-		if (counterGlobal != null) {
-			globalVal = counterGlobal.value();
-			if (training) {
-				globalVal = globalVal - 1;
+		for (int c = 0; c < n; c++) {
+			int documentFrequency = documentFrequency(candidates.id(c));
+			double localVal = candidates.count(c), globalVal = 0;
+			if (documentFrequency > 0) {
+				globalVal = documentFrequency;
+				if (training) {
+					globalVal = globalVal - 1;
+				}
 			}
-		}
 
-		// Just devide by length to get approximation of probability
-		// that phrase in document is our phrase
-		// newInst[m_TfidfIndex] = (localVal / ((double)length));
-		newInst[m_TfidfIndex] = (localVal / ((double)length)) *
-		(-Math.log((globalVal + 1)/ ((double)m_NumDocs + 1)));
+			// Just devide by length to get approximation of probability
+			// that phrase in document is our phrase
+			// vals[c][m_TfidfIndex] = (localVal / ((double)length));
+			vals[c][m_TfidfIndex] = (localVal / ((double)length)) *
+			(-Math.log((globalVal + 1)/ ((double)m_NumDocs + 1)));
+		}
 
 		// Compute first occurrence
-		Counter counterFirst = (Counter)phraseInfo.elementAt(0);
-		newInst[m_FirstOccurIndex] = (double)counterFirst.value() /
-		(double)length;
-
+		for (int c = 0; c < n; c++) {
+			vals[c][m_FirstOccurIndex] = (double)candidates.firstPosition(c) /
+			(double)length;
+		}
 
 		// Is keyphrase frequency attribute being used?
 		if (m_KFused) {
-			Counter keyphraseC = (Counter)m_KeyphraseDictionary.get(id);
-			if ((training) && (hashKeyphrases != null) &&
-					(hashKeyphrases.containsKey(id))) {
-				newInst[m_KeyFreqIndex] = keyphraseC.value() - 1;
-			} else {
-				if (keyphraseC != null) {
-					newInst[m_KeyFreqIndex] = keyphraseC.value();
+			for (int c = 0; c < n; c++) {
+				String id = candidates.id(c);
+				int keyphraseFrequency = keyphraseFrequency(id);
+				if ((training) && (hashKeyphrases != null) &&
+						(hashKeyphrases.containsKey(id))) {
+					vals[c][m_KeyFreqIndex] = keyphraseFrequency - 1;
 				} else {
-					newInst[m_KeyFreqIndex] = 0;
+					vals[c][m_KeyFreqIndex] = keyphraseFrequency;
 				}
 			}
 		}
 
 		// Is term appearance attribute being used?
+		// (the spread of the positions relative to the length)
 		if (m_STDEVfeature) {	
-			FastVector app = (FastVector)phraseInfo.elementAt(3);
-
-			double[] vals = new double[app.size()];
-			for (int i = 0; i < vals.length; i++) {
-				vals[i] = ((Counter)app.elementAt(i)).value() /
-				(double)length; ;
+			for (int c = 0; c < n; c++) {
+				vals[c][m_STDEVIndex] = candidates.positionDeviation(c) /
+				(double)length;
 			}
-
-			double mean = Utils.mean(vals);
-			double summ = 0.0;
-			for (int i = 0; i < vals.length; i++) {
-				double a = vals[i];
-				//System.err.println("Appearence " + i + " is at " + a);
-				summ += (a - mean)*(a - mean);				
-			}
-			double stdev = Math.sqrt(summ/(double)app.size());
-
-			newInst[m_STDEVIndex] = stdev;
-
-			/* Using instead of STDEV feature a thesaurus based feature (experiment)
-			 if (m_Vocabulary.getRelated(id,"compositeOf") != null) {
-			 //System.err.println(m_Vocabulary.getOrig(id) + " is a composite!");
-			  newInst[m_STDEVIndex] = 1.0;
-			  } else {
-			  newInst[m_STDEVIndex] = 0.0;
-			  }
-			 */
-
 		} 
 
 		// Is node degree attribute being used?   
 		if (m_NODEfeature) {	
-
-			Vector<String> idsRT = m_Vocabulary.getRelated(id);
-
-			int intern = 0;			
-			if (idsRT != null) {
-				for (int d = 0; d < idsRT.size(); d++) {
-					if (hash.get(idsRT.elementAt(d)) != null) {
-						intern++;
-					}					
-				}
+			// The related terms that are candidates too,
+			// found by the numbers of the concepts
+			ConceptGraph graph = m_Vocabulary.getConceptGraph();
+			int[] concepts = new int[n];
+			for (int c = 0; c < n; c++) {
+				concepts[c] = graph.indexOf(candidates.id(c));
 			}
+			int[] sortedConcepts = concepts.clone();
+			Arrays.sort(sortedConcepts);
+			for (int c = 0; c < n; c++) {
+				int intern = 0;			
+				if (concepts[c] >= 0) {
+					for (int r = graph.firstRelation(concepts[c]); r < graph.endRelation(concepts[c]); r++) {
+						if (Arrays.binarySearch(sortedConcepts, graph.target(r)) >= 0) {
+							intern++;
+						}					
+					}
+				}
 
-			newInst[m_NodeIndex] = (double)intern;
-
+				vals[c][m_NodeIndex] = (double)intern;
+			}
 		}
 
 		// Is term length attribute being used?
 		if (m_LENGTHfeature) {
-			String original;
-			if (m_vocabulary.equals("none")) {
-				original = id;
-			} else  {
-				original = m_Vocabulary.getOrig(id);
-			}
-			if (original == null) {
-				System.err.println("problem with id " + id);
-				newInst[m_LengthIndex] = 1.0;
-			} else {
-				String [] words = original.split(" ");
-				newInst[m_LengthIndex] = (double)words.length;
+			for (int c = 0; c < n; c++) {
+				String id = candidates.id(c);
+				String original;
+				if (m_vocabulary.equals("none")) {
+					original = id;
+				} else  {
+					original = m_Vocabulary.getOrig(id);
+				}
+				if (original == null) {
+					System.err.println("problem with id " + id);
+					vals[c][m_LengthIndex] = 1.0;
+				} else {
+					String [] words = original.split(" ");
+					vals[c][m_LengthIndex] = (double)words.length;
+				}
 			}
-
 		}
 
 		// Compute class value
+		for (int c = 0; c < n; c++) {
+			if (hashKeysEval == null) { // no author-assigned keyphrases
+				vals[c][m_NumFeatures] = Instance.missingValue();
 
-		if (hashKeysEval == null) { // no author-assigned keyphrases
-			newInst[m_NumFeatures] = Instance.missingValue();
+			} else if (!hashKeysEval.containsKey(candidates.id(c))) {
 
-		} else if (!hashKeysEval.containsKey(id)) {
-
-			newInst[m_NumFeatures] = 0; // Not a keyphrase
-
-		} else {
-			//hashKeysEval.remove(id);
-			//newInst[m_NumFeatures] = 1; // Keyphrase
+				vals[c][m_NumFeatures] = 0; // Not a keyphrase
 
-			// Learning from multiple-indexer's data
-			// System.err.println(m_Indexers);
-			// System.err.println("Calculating class value with m_Indexers = " + m_Indexers);
-
-			// double c = (double)((Counter)hashKeysEval.get(id)).value()/m_Indexers;
-			// newInst[m_NumFeatures] = c; // Keyphrase
+			} else {
+				// Learning from multiple-indexer's data:
+				// double c = (double)((Counter)hashKeysEval.get(id)).value()/m_Indexers;
 
-			// Or simple learning from 1 indexer:
-			newInst[m_NumFeatures] = 1.0; // Keyphrase
+				// Or simple learning from 1 indexer:
+				vals[c][m_NumFeatures] = 1.0; // Keyphrase
+			}
 		}
-	
-		
-		return newInst;
+
+		return vals;
 	}
 
 	/**
@@ -1195,7 +1939,27 @@ public class KEAFilter extends Filter implements OptionHandler {
 			System.err.println("--- Converting pending instances");
 		}
 
-		// Create output format for filter
+		setOutputFormat(determineOutputFormat());
+
+		// Convert pending input instances into output data
+		for(int i = 0; i < getInputFormat().numInstances(); i++) {
+			Instance current = getInputFormat().instance(i);
+			FastVector vector = convertInstance(current, true, m_TrainingDocuments[i]);
+			m_TrainingDocuments[i] = null;
+			Enumeration en = vector.elements();
+			while (en.hasMoreElements()) {
+				Instance inst = (Instance)en.nextElement();
+				push(inst);
+			}
+		}
+		m_TrainingDocuments = null;
+	}
+
+	/**
+	 * Creates the output format for the filter from the input format.
+	 */
+	private Instances determineOutputFormat() {
+
 		FastVector atts = new FastVector();
 		for (int i = 0; i < getInputFormat().numAttributes(); i++) {
 			if (i == m_DocumentAtt) {
@@ -1238,26 +2002,24 @@ public class KEAFilter extends Filter implements OptionHandler {
 				atts.addElement(getInputFormat().attribute(i));
 			}
 		}
-		Instances outFormat = new Instances("KEAdata", atts, 0);
-		setOutputFormat(outFormat);
-
-		// Convert pending input instances into output data
-		for(int i = 0; i < getInputFormat().numInstances(); i++) {
-			Instance current = getInputFormat().instance(i);
-			FastVector vector = convertInstance(current, true);
-			Enumeration en = vector.elements();
-			while (en.hasMoreElements()) {
-				Instance inst = (Instance)en.nextElement();
-				push(inst);
-			}
-		}
-	} 
+		return new Instances("KEAdata", atts, 0);
+	}
 
 	/**
 	 * Converts an instance.
 	 */
 	private FastVector convertInstance(Instance instance, boolean training) 
 	throws Exception {
+		return convertInstance(instance, training, null);
+	}
+
+	/**
+	 * Converts an instance. If doc is not null, it holds the phrases,
+	 * keyphrases and feature values of the (training) document, which
+	 * are then not computed again.
+	 */
+	private FastVector convertInstance(Instance instance, boolean training,
+			TrainingDocument doc) throws Exception {
 
 		FastVector vector = new FastVector();
 
@@ -1269,14 +2031,27 @@ public class KEAFilter extends Filter implements OptionHandler {
 		HashMap<String,Counter> hashKeyphrases = null;
 		HashMap<String,Counter> hashKeysEval = null;
 		if (!instance.isMissing(m_KeyphrasesAtt)) {
-			String keyphrases = instance.stringValue(m_KeyphrasesAtt);
-			hashKeyphrases = getGivenKeyphrases(keyphrases, false);
-			hashKeysEval = getGivenKeyphrases(keyphrases, true);
+			if (doc != null) {
+				hashKeyphrases = doc.m_Keyphrases;
+				hashKeysEval = doc.m_KeysEval;
+			} else {
+				String keyphrases = instance.stringValue(m_KeyphrasesAtt);
+				hashKeyphrases = getGivenKeyphrases(keyphrases, false);
+				hashKeysEval = getGivenKeyphrases(keyphrases, true);
+			}
 		}
 
 		// Get the phrases for the document
-		HashMap<String,FastVector> hash = new HashMap<String,FastVector>();
-		int length = getPhrases(hash, instance.stringValue(m_DocumentAtt));
+		CandidateTable candidates;
+		int length;
+		if (doc != null) {
+			candidates = doc.m_Candidates;
+			length = doc.m_Length;
+		} else {
+			candidates = new CandidateTable(m_STDEVfeature,
+					training ? 0 : m_MaxSurfaceForms);
+			length = getPhrases(candidates, instance.stringValue(m_DocumentAtt));
+		}
 		//	hash = getComposits(hash);
 
 		/* Experimental:
@@ -1329,28 +2104,22 @@ public class KEAFilter extends Filter implements OptionHandler {
 		int probsAttIndex = m_DocumentAtt + numFeatures - 1;    
 		//int classAttIndex = numFeatures;
 
-		// Go through the phrases and convert them into instances
-		Iterator<String> it = hash.keySet().iterator();
-		while (it.hasNext()) {
-			String id = (String)it.next();
-			FastVector phraseInfo = (FastVector)hash.get(id);
-
-
-
-			double[] vals =  featVals(id, phraseInfo, training,
-					hashKeysEval, hashKeyphrases, length, hash);
-
-			Instance inst = new Instance(instance.weight(), vals);
+		// Compute the feature values, unless training did already
+		double[][] allVals;
+		if ((doc != null) && (doc.m_Vals != null)) {
+			allVals = doc.m_Vals;
+		} else {
+			allVals = featVals(candidates, training,
+					hashKeysEval, hashKeyphrases, length);
+		}
 
-			inst.setDataset(m_ClassifierData);
+		// Go through the phrases and convert them into instances
+		for (int c = 0; c < candidates.size(); c++) {
+			String id = candidates.id(c);
+			double[] vals = allVals[c];
 
 			// Get probability of a phrase being key phrase
-			double[] probs = m_Classifier.distributionForInstance(inst);
-
-
-			double prob = probs[1];
-			// If numeric class is used change to:
-			// double prob = probs[0];
+			double prob = classify(vals, instance.weight());
 
 			// Compute attribute values for final instance
 			double[] newInst = 
@@ -1367,7 +2136,7 @@ public class KEAFilter extends Filter implements OptionHandler {
 					newInst[pos++] = index;
 
 					// Add original version
-					String orig = (String)phraseInfo.elementAt(2);
+					String orig = candidates.original(c);
 
 					if (orig != null) {
 						index = outputFormatPeek().attribute(pos).addStringValue(orig);
@@ -1377,25 +2146,25 @@ public class KEAFilter extends Filter implements OptionHandler {
 					newInst[pos++] = index;
 
 					// Add TFxIDF
-					newInst[pos++] = inst.value(m_TfidfIndex);
+					newInst[pos++] = vals[m_TfidfIndex];
 
 					// Add distance
-					newInst[pos++] = inst.value(m_FirstOccurIndex);
+					newInst[pos++] = vals[m_FirstOccurIndex];
 
 					// Add other features
 						if (m_KFused) {
-							newInst[pos++] = inst.value(m_KeyFreqIndex);
+							newInst[pos++] = vals[m_KeyFreqIndex];
 						}
 					
 					if (m_NODEfeature) {
-						newInst[pos++] = inst.value(m_NodeIndex);
+						newInst[pos++] = vals[m_NodeIndex];
 					}
 					if (m_LENGTHfeature) {
-						newInst[pos++] = inst.value(m_LengthIndex);
+						newInst[pos++] = vals[m_LengthIndex];
 					}
 
 					if (m_STDEVfeature) {
-						newInst[pos++] = inst.value(m_STDEVIndex);
+						newInst[pos++] = vals[m_STDEVIndex];
 					}
 					
 					// Add probability 
@@ -1406,7 +2175,7 @@ public class KEAFilter extends Filter implements OptionHandler {
 					newInst[pos++] = Instance.missingValue();
 
 				} else if (i == m_KeyphrasesAtt) {
-					newInst[pos++] = inst.classValue();
+					newInst[pos++] = vals[m_NumFeatures];
 				} else {
 					newInst[pos++] = instance.value(i);
 				}
@@ -1477,74 +2246,150 @@ public class KEAFilter extends Filter implements OptionHandler {
 			}
 		}
 
-		// Sort phrases according to their distance (stable sort)
-		double[] vals = new double[vector.size()];
-		for (int i = 0; i < vals.length; i++) {
-			vals[i] = ((Instance)vector.elementAt(i)).value(distAttIndex);
+		// Sort phrases and compute their rank
+		double[] probs = new double[vector.size()];
+		double[] tfidfs = new double[vector.size()];
+		double[] dists = new double[vector.size()];
+		for (int i = 0; i < probs.length; i++) {
+			Instance inst = (Instance)vector.elementAt(i);
+			probs[i] = inst.value(probsAttIndex);
+			tfidfs[i] = inst.value(tfidfAttIndex);
+			dists[i] = inst.value(distAttIndex);
+		}
+		int[] ranks = new int[probs.length];
+		int[] order = PhraseRanker.rank(probs, tfidfs, dists,
+				m_FullRanking ? probs.length : m_numPhrases, ranks);
+
+		// Ranked phrases first, then all others in their original order
+		boolean[] ranked = new boolean[probs.length];
+		for (int i = 0; i < order.length; i++) {
+			ranked[order[i]] = true;
+		}
+		int[] newOrder = new int[probs.length];
+		System.arraycopy(order, 0, newOrder, 0, order.length);
+		int pos = order.length;
+		for (int i = 0; i < probs.length; i++) {
+			if (!ranked[i]) {
+				newOrder[pos++] = i;
+			}
 		}
+
 		FastVector newVector = new FastVector(vector.size());
-		int[] sortedIndices = Utils.stableSort(vals);
-		for (int i = 0; i < vals.length; i++) {
-			newVector.addElement(vector.elementAt(sortedIndices[i]));
+		m_SurfaceForms = new HashMap<String,HashSet<String>>();
+		for (int i = 0; i < newOrder.length; i++) {
+			Instance currentInstance = (Instance)vector.elementAt(newOrder[i]);
+			int rank = ranks[newOrder[i]];
+
+			// Keep the surface forms of the phrases that will be extracted
+			if (!training && (rank <= m_numPhrases)) {
+				String id = currentInstance.stringValue(m_DocumentAtt);
+				int c = candidates.indexOf(id);
+				if ((c >= 0) && (candidates.surfaceForms(c) != null)) {
+					m_SurfaceForms.put(id, candidates.surfaceForms(c));
+				}
+			}
+			currentInstance.setValue(probsAttIndex + 1, rank);
+			newVector.addElement(currentInstance);
 		}
 		vector = newVector;
+		return vector;
+	}
+
+	/**
+	 * Returns the probability that a phrase with the given feature
+	 * values is a keyphrase. Uses the compiled version of the
+	 * classifier if it can be compiled.
+	 */
+	private double classify(double[] vals, double weight) throws Exception {
 
-		// Sort phrases according to their tfxidf value (stable sort)
-		for (int i = 0; i < vals.length; i++) {
-			vals[i] = -((Instance)vector.elementAt(i)).value(tfidfAttIndex);
+		if (!m_ScorerCompiled) {
+			m_Scorer = NaiveBayesScorer.compile(m_Classifier, m_ClassifierData);
+			m_ScorerCompiled = true;
 		}
-		newVector = new FastVector(vector.size());
-		sortedIndices = Utils.stableSort(vals);
-		for (int i = 0; i < vals.length; i++) {
-			newVector.addElement(vector.elementAt(sortedIndices[i]));
+		if (m_Scorer != null) {
+			return m_Scorer.probability(vals, 1);
 		}
-		vector = newVector;
 
-		// Sort phrases according to their probability (stable sort)
-		for (int i = 0; i < vals.length; i++) {
-			vals[i] = 1 - ((Instance)vector.elementAt(i)).value(probsAttIndex);
+		Instance inst = new Instance(weight, vals);
+		inst.setDataset(m_ClassifierData);
+		return m_Classifier.distributionForInstance(inst)[1];
+		// If numeric class is used change to:
+		// return m_Classifier.distributionForInstance(inst)[0];
+	}
+
+	/**
+	 * Extracts the candidate phrases from a document and scores them,
+	 * without going through the output format of the filter: no output
+	 * instances are created and no strings are added to the output
+	 * header, so the memory used does not grow with the number of
+	 * documents processed. The filter has to be trained.
+	 *
+	 * @param text the text of the document
+	 * @param keyphrases the author-assigned keyphrases (one per line),
+	 * or null if there are none
+	 * @return the numPhrases best candidates (all candidates if full
+	 * ranking is switched on) in order of their rank, best first
+	 * @exception Exception if the filter has not been trained
+	 */
+	public ArrayList<Candidate> extractCandidates(String text, String keyphrases)
+	throws Exception {
+
+		if (!hasGlobalDictionaries() || ((m_Classifier == null) && (m_Scorer == null))) {
+			throw new Exception("KEA filter has not been trained");
 		}
-		newVector = new FastVector(vector.size());
-		sortedIndices = Utils.stableSort(vals);
-		for (int i = 0; i < vals.length; i++) {
-			newVector.addElement(vector.elementAt(sortedIndices[i]));
+
+		// Same preprocessing as in input()
+		text = m_PunctFilter.tokenize(text);
+		if (m_vocabulary.equals("none")) {
+			text = NumbersFilter.removeNumbers(text);
 		}
-		vector = newVector;
 
-		// Compute rank of phrases. Check for subphrases that are ranked
-		// lower than superphrases and assign probability -1 and set the
-		// rank to Integer.MAX_VALUE
-		int rank = 1;
-		for (int i = 0; i < vals.length; i++) {
-			Instance currentInstance = (Instance)vector.elementAt(i);
-			// Short cut: if phrase very unlikely make rank very low and continue
-			if (Utils.grOrEq(vals[i], 1.0)) {
-				currentInstance.setValue(probsAttIndex + 1, Integer.MAX_VALUE);
-				continue;
+		HashMap<String,Counter> hashKeysEval = null;
+		if (keyphrases != null) {
+			if (m_vocabulary.equals("none")) {
+				keyphrases = NumbersFilter.removeNumbers(keyphrases);
 			}
+			hashKeysEval = getGivenKeyphrases(keyphrases, true);
+		}
 
-			// Otherwise look for super phrase starting with first phrase
-			// in list that has same probability, TFxIDF value, and distance as
-			// current phrase. We do this to catch all superphrases
-			// that have same probability, TFxIDF value and distance as current phrase.
-			int startInd = i;
-			while (startInd < vals.length) {
-				Instance inst = (Instance)vector.elementAt(startInd);
-				if ((inst.value(tfidfAttIndex) != 
-					currentInstance.value(tfidfAttIndex)) ||
-					(inst.value(probsAttIndex) != 
-						currentInstance.value(probsAttIndex)) ||
-						(inst.value(distAttIndex) !=
-							currentInstance.value(distAttIndex))) {
-					break;
-				}
-				startInd++;
+		CandidateTable table = new CandidateTable(m_STDEVfeature, m_MaxSurfaceForms);
+		int length = getPhrases(table, text);
+		double[][] vals = featVals(table, false, hashKeysEval, null, length);
+
+		Candidate[] candidates = new Candidate[table.size()];
+		double[] probs = new double[candidates.length];
+		double[] tfidfs = new double[candidates.length];
+		double[] dists = new double[candidates.length];
+		for (int n = 0; n < candidates.length; n++) {
+			probs[n] = classify(vals[n], 1.0);
+			tfidfs[n] = vals[n][m_TfidfIndex];
+			dists[n] = vals[n][m_FirstOccurIndex];
+
+			String id = table.id(n);
+			String orig = table.original(n);
+			if (orig == null) {
+				orig = id;
 			}
-			currentInstance.setValue(probsAttIndex + 1, rank++);
+			candidates[n] = new Candidate(id, orig, tfidfs[n], dists[n],
+					probs[n], vals[n][m_NumFeatures] == 1.0, hashKeysEval != null);
+		}
+
+		int[] ranks = new int[candidates.length];
+		int[] order = PhraseRanker.rank(probs, tfidfs, dists,
+				m_FullRanking ? candidates.length : m_numPhrases, ranks);
 
+		ArrayList<Candidate> result = new ArrayList<Candidate>(order.length);
+		for (int i = 0; i < order.length; i++) {
+			Candidate candidate = candidates[order[i]];
+			candidate.setRank(ranks[order[i]]);
+			if (candidate.getRank() <= m_numPhrases) {
+				candidate.setSurfaceForms(table.surfaceForms(order[i]));
+			}
+			result.add(candidate);
 		}
-		return vector;
+		return result;
 	}
+
 	/*
 	 private HashMap getComposits(HashMap dict) {
 	 HashMap dictClone = (HashMap)dict.clone();
@@ -1595,107 +2440,124 @@ public class KEAFilter extends Filter implements OptionHandler {
 	 */
 	public HashMap<String,Counter> getPhrasesForDictionary(String str) {
 
-		String[] buffer = new String[m_MaxPhraseLength];
-		HashMap<String,Counter> hash = new HashMap<String,Counter>();
-
-		StringTokenizer tok = new StringTokenizer(str, "\n");
-		while (tok.hasMoreTokens()) {
-			String phrase = tok.nextToken();
-			//  System.err.println("Sentence " + phrase);
-			int numSeen = 0;
-			StringTokenizer wordTok = new StringTokenizer(phrase, " ");
-			while (wordTok.hasMoreTokens()) {
-				String word = wordTok.nextToken();
-				// System.err.println(word);
-				// Store word in buffer
-				for (int i = 0; i < m_MaxPhraseLength - 1; i++) {
-					buffer[i] = buffer[i + 1];
-				}
-				buffer[m_MaxPhraseLength - 1] = word;
-
-				// How many are buffered?
-				numSeen++;
-				if (numSeen > m_MaxPhraseLength) {
-					numSeen = m_MaxPhraseLength;
-				}
-
-				// Don't consider phrases that end with a stop word
-				if (m_Stopwords.isStopword(buffer[m_MaxPhraseLength - 1])) {
-					continue;
-				}
-
-				// Loop through buffer and add phrases to hashtable
-				StringBuffer phraseBuffer = new StringBuffer();
-				for (int i = 1; i <= numSeen; i++) {
-					if (i > 1) {
-						phraseBuffer.insert(0, ' ');
-					}
-					phraseBuffer.insert(0, buffer[m_MaxPhraseLength - i]);
+		final HashMap<String,Counter> hash = new HashMap<String,Counter>();
 
-					// Don't consider phrases that begin with a stop word
-					if ((i > 1) && 
-							(m_Stopwords.isStopword(buffer[m_MaxPhraseLength - i]))) {
-						continue;
-					}
-
-					// Only consider phrases with minimum length
-					if (i >= m_MinPhraseLength) {
-
-						// Match against the Vocabulary
-						String orig = phraseBuffer.toString();
-
-						// Create internal representation:
-						// either a stemmed version or a pseudo phrase:
-						String pseudo = pseudoPhrase(orig);
-						// System.err.println("Checking " + orig + " -- " + pseudo);
-
-						String id;
-						if (m_vocabulary.equals("none")) {
-							//	String pseudo = pseudoPhrase(orig);
-							id = pseudo;
-						} else {
-							id = (String)m_Vocabulary.getID(orig);
-						}
+		if (m_vocabulary.equals("none")) {
+			NGramScanner scanner = new NGramScanner(this, m_Stemmer, m_Stopwords,
+					m_MinPhraseLength, m_MaxPhraseLength, false);
+			scanner.scan(str);
+			for (int i = 0; i < scanner.numCandidates(); i++) {
+				hash.put(scanner.pseudoPhrase(i), new Counter(scanner.count(i)));
+			}
+			return hash;
+		}
 
-						if (id != null) {								
-							Counter count = (Counter)hash.get(id);
-							if (count == null) {
-								hash.put(id, new Counter());
-							} else {
-								count.increment();
-							}
-							//	System.err.println(orig + "\t" + id);
-						}						
-					}
+		scanVocabularyPhrases(str, new VocabularyPhraseHandler() {
+			public void phrase(String id, String orig, int start) {
+				Counter count = hash.get(id);
+				if (count == null) {
+					hash.put(id, new Counter());
+				} else {
+					count.increment();
 				}
 			}
-		}	
+		});
 		return hash;
 	}
 
 
 	/**
-	 * Expects an empty hashtable. Fills the hashtable
-	 * with the stemmed n-grams occuring in the given string
-	 * (as keys). Stores the position, the number of occurences,
-	 * and the most commonly occurring orgininal version of
-	 * each n-gram.
+	 * Expects an empty candidate table. Fills the table
+	 * with the stemmed n-grams occuring in the given string.
+	 * Stores the position, the number of occurences,
+	 * and an orgininal version of each n-gram, and the
+	 * spread of its positions if the table keeps it.
 	 *
 	 * N-grams that occur less than m_MinNumOccur are not used.
 	 *
+	 * If the table keeps surface forms, it is filled with up to
+	 * m_MaxSurfaceForms spellings of each n-gram as found in the string.
+	 *
 	 * Returns the total number of words (!) in the string.
 	 */	
-	private int getPhrases(HashMap<String,FastVector> hash, String str) {
+	private int getPhrases(CandidateTable candidates, String str) {
+		return getPhrases(candidates, null, str);
+	}
+
+	/**
+	 * Does the same as getPhrases(candidates, str). If
+	 * allPhrases is not null, it is also filled with all n-grams,
+	 * including those that occur less than m_MinNumOccur times (the
+	 * n-grams getPhrasesForDictionary() returns).
+	 */
+	private int getPhrases(final CandidateTable candidates,
+			HashSet<String> allPhrases, String str) {
 		
 		//FileOutputStream out = new FileOutputStream("candidates_kea41.txt");		
 		//PrintWriter printer = new PrintWriter(new OutputStreamWriter(out)); 
 
-		// hash = table to store all the information about phrases extracted from "str"
+		// candidates = table to store all the information about phrases extracted from "str"
 		// str  = the content of the document, separated by newlines in sentences
 
+		if (m_vocabulary.equals("none")) {
+			return getPseudoPhrases(candidates, allPhrases, str);
+		}
+
+		int pos = scanVocabularyPhrases(str, new VocabularyPhraseHandler() {
+			public void phrase(String id, String orig, int start) {
+
+				// Use the spelling of the descriptor, and keep the one
+				// in the document as a surface form. If the phrase was
+				// already extracted from "str", its values are updated,
+				// if not a new candidate is added.
+				int candidate = candidates.addOccurrence(id, m_Vocabulary.getOrig(id), start);
+				candidates.addSurfaceForm(candidate, orig);
+			}
+		});
+
+		if (allPhrases != null) {
+			for (int c = 0; c < candidates.size(); c++) {
+				allPhrases.add(candidates.id(c));
+			}
+		}
+
+		// Delete the phrases occurring less than m_MinNumOccur times
+		candidates.removeRare(m_MinNumOccur);
+		return pos;
+	}
+
+	/**
+	 * Receives the n-grams of a string that match the vocabulary,
+	 * see scanVocabularyPhrases().
+	 */
+	private interface VocabularyPhraseHandler {
+
+		/**
+		 * Called for every occurrence of an n-gram, with the id of its
+		 * term, its spelling in the string and the position of its
+		 * first word.
+		 */
+		void phrase(String id, String orig, int pos);
+	}
+
+	/**
+	 * Passes the n-grams occurring in the given string (sentences
+	 * separated by newlines) that match the vocabulary to the handler.
+	 * N-grams that begin or end with a stop word and n-grams that are
+	 * too short are skipped. Phrases with complex words are looked up
+	 * by their spelling, the others by their stems, as long as the
+	 * stems are part of a term.
+	 *
+	 * Returns the total number of words (!) in the string, plus one.
+	 */
+	private int scanVocabularyPhrases(String str, VocabularyPhraseHandler handler) {
+
 		String[] buffer = new String[m_MaxPhraseLength];
 
-		// Extracting strings of a predefined length from "str":
+		// The stem ids of the buffered words, and the sorted stem ids
+		// of the current n-gram
+		int[] wordStems = new int[m_MaxPhraseLength];
+		int[] stems = new int[m_MaxPhraseLength];
 
 		StringTokenizer tok = new StringTokenizer(str, "\n");
 		int pos = 1; 
@@ -1710,8 +2572,10 @@ public class KEAFilter extends Filter implements OptionHandler {
 				// Store word in buffer
 				for (int i = 0; i < m_MaxPhraseLength - 1; i++) {
 					buffer[i] = buffer[i + 1];
+					wordStems[i] = wordStems[i + 1];
 				}
 				buffer[m_MaxPhraseLength - 1] = word;
+				wordStems[m_MaxPhraseLength - 1] = m_Vocabulary.getStemId(word);
 
 				// How many are buffered?
 				numSeen++;
@@ -1725,119 +2589,120 @@ public class KEAFilter extends Filter implements OptionHandler {
 					continue;
 				}	
 
-				// Loop through buffer and add phrases to hashtable
+				// Loop through buffer and pass the phrases to the handler
 				StringBuffer phraseBuffer = new StringBuffer();
+				int numStems = 0;
+				boolean complex = false, partOfTerm = true;
 				for (int i = 1; i <= numSeen; i++) {
 					if (i > 1) {
 						phraseBuffer.insert(0, ' ');
 					}
 					phraseBuffer.insert(0, buffer[m_MaxPhraseLength - i]);
 
+					int stem = wordStems[m_MaxPhraseLength - i];
+					if (stem == Vocabulary.COMPLEX_WORD) {
+						complex = true;
+					} else if (stem == Vocabulary.UNKNOWN_STEM) {
+						partOfTerm = false;
+					} else if ((stem >= 0) && partOfTerm) {
+						numStems = insertStem(stems, numStems, stem);
+						partOfTerm = m_Vocabulary.isPartOfTerm(stems, numStems);
+					}
+
 					// Don't consider phrases that begin with a stop word
 					if ((i > 1) && 
 							(m_Stopwords.isStopword(buffer[m_MaxPhraseLength - i]))) {
 						continue;
 					}
 
-					// Final restriction:
 					// Only consider phrases with minimum length
 					if (i >= m_MinPhraseLength) {
 
 						// orig = each detected phase in its original spelling  
 						String orig = phraseBuffer.toString();
 
-						// Create internal representation:
-						// either a stemmed version or a pseudo phrase: 
+						// Match against the Vocabulary
 						String id;
-						if (m_vocabulary.equals("none")) {
-							String pseudo = pseudoPhrase(orig);
-							id = pseudo;
-						} else {
-//							Match against the Vocabulary		
+						if (complex) {
 							id = (String)m_Vocabulary.getID(orig);
+						} else if (partOfTerm && (numStems > 0)) {
+							id = m_Vocabulary.getID(stems, numStems);
+						} else {
+							id = null;
 						}
-			
-						//	 System.out.println(orig + "\t" + pseudo + " \t " + id);
-
 						if (id != null) {
+							handler.phrase(id, orig, pos + 1 - i);
+						} 
+					}
+				}
+				pos++;
+			}
+		}
+		return pos;
+	}
 
-							// if Vocabulary is used, derive the correct spelling
-							// of the descriptor, else use one of the spellings as in the document
-							if (!m_vocabulary.equals("none")) {
-								orig = m_Vocabulary.getOrig(id);
-							}
-
-							// Get the vector of the current phrase from the hash table.
-							// If it was already extracted from "str", the values will be
-							// updated in next steps, if not a new vector will be created.
-
-							FastVector vec = (FastVector)hash.get(id);
-
-							if (vec == null) {
-
-								// Specifying the size of the vector
-								// According to additional selected features:
+	/**
+	 * Inserts a stem id into the first numStems elements of stems,
+	 * which are in ascending order, and returns the new number of stems.
+	 */
+	private static int insertStem(int[] stems, int numStems, int stem) {
+		int i = numStems;
+		while ((i > 0) && (stems[i - 1] > stem)) {
+			stems[i] = stems[i - 1];
+			i--;
+		}
+		stems[i] = stem;
+		return numStems + 1;
+	}
 
-								if (m_STDEVfeature) {
-									vec = new FastVector(3);
-								} else {
-									vec = new FastVector(2);
-								}
 
-								// Update hashtable with all the info
-								vec.addElement(new Counter(pos + 1 - i)); //0
-								vec.addElement(new Counter()); //1
-								vec.addElement(orig); //2
 
-								if (m_STDEVfeature) {
-									FastVector app = new FastVector();
-									app.addElement(new Counter(pos + 1 - i));
-									vec.addElement(app); 
-								}
-								hash.put(id, vec);
-							} else {
+	/**
+	 * Does the same as getPhrases() when no vocabulary is used. The
+	 * n-grams are collected by an NGramScanner, and strings are only
+	 * built for the n-grams that occur at least m_MinNumOccur times,
+	 * unless allPhrases is to be filled.
+	 */
+	private int getPseudoPhrases(CandidateTable candidates,
+			HashSet<String> allPhrases, String str) {
 
-								// If the phrase already was identified,
-								// update its values in the old vector
+		NGramScanner scanner = new NGramScanner(this, m_Stemmer, m_Stopwords,
+				m_MinPhraseLength, m_MaxPhraseLength,
+				m_STDEVfeature || candidates.keepsSurfaceForms());
+		scanner.scan(str);
 
-								// Update number of occurrences
-								((Counter)((FastVector)vec).elementAt(1)).increment();
+		for (int i = 0; i < scanner.numCandidates(); i++) {
 
-								if (m_STDEVfeature) {
+			String id = null;
+			if (allPhrases != null) {
+				id = scanner.pseudoPhrase(i);
+				allPhrases.add(id);
+			}
 
-									FastVector app = (FastVector)vec.elementAt(3); 
-									app.addElement(new Counter(pos + 1 - i));
-									vec.addElement(app); 
-								}
+			// Occurring less than m_MinNumOccur?
+			if (scanner.count(i) < m_MinNumOccur) {
+				continue;
+			}
 
-							}								
-						} 
-					}
+			if (id == null) {
+				id = scanner.pseudoPhrase(i);
+			}
+			int first = scanner.firstOccurrence(i);
+			int candidate = candidates.add(id, scanner.original(first),
+					scanner.start(first), scanner.count(i));
+			if (m_STDEVfeature) {
+				for (int occ = first; occ >= 0; occ = scanner.nextOccurrence(occ)) {
+					candidates.recordPosition(candidate, scanner.start(occ));
 				}
-				pos++;
 			}
-		}
-
-		// Replace secondary hashtables with most commonly occurring
-		// version of each phrase (canonical) form. Delete all words
-		// that are proper nouns.
-		Iterator<String> phrases = hash.keySet().iterator();
-
-		while (phrases.hasNext()) {
-			String phrase = (String)phrases.next();
-			FastVector info = (FastVector)hash.get(phrase);
-			
-			// Occurring less than m_MinNumOccur? //m_MinNumOccur			
-			if (((Counter)((FastVector)info).elementAt(1)).value() < m_MinNumOccur) {
-				phrases.remove();
-				continue;
+			for (int occ = first; (occ >= 0) && !candidates.hasAllSurfaceForms(candidate);
+					occ = scanner.nextOccurrence(occ)) {
+				candidates.addSurfaceForm(candidate, scanner.original(occ));
 			}
 		}
-		return pos;
+		return scanner.length();
 	}
 
-
-
 	/**
 	 * Gets all the phrases in the given string and puts them into the
 	 * hashtable.  Also stores the original version of the stemmed
@@ -1904,107 +2769,9 @@ public class KEAFilter extends Filter implements OptionHandler {
 	 * which are stemmed and sorted into alphabetical order. 
 	 */
 	public String pseudoPhrase(String str) {
-//		System.err.print(str + "\t");
-		String[] pseudophrase;
-		String[] words;
-		String str_nostop;
-		String stemmed;
-		String ori = str;
-	
-//		if (str.matches(".+?'s")) {      //SPnew does not work
-////			System.err.print("UNCHANGED: " + ori + "\t"); //SPnew
-//			String[] elements = str.split("'s");
-//			str = elements[0];
-//			ori = str;                 //SPnew to account for surface form Germany instead of Germany's
-////			System.err.print("ORI: " + ori + "\t");
-//		}
-			str = str.toLowerCase();
-			
-		// This is often the case with Mesh Terms,
-		// where a term is accompanied by another specifying term
-		// e.g. Monocytes/*immunology/microbiology
-		// we ignore everything after the "/" symbol.
-		if (str.matches(".+?/.+?")) {
-			String[] elements = str.split("/");		
-			str = elements[0];
-		}	
-		if (str.matches(".+?'s")) {                  //SPnew delete apostrophe s as in: Germany's otherwise PorterStemmer provides empty stem
-//			System.out.println("pseudo before: " + str);
-			String[] elements = str.split("'s");
-			str = elements[0];
-//			System.out.println("pseudo after: 's " + str);
-		}
-		// removes scop notes in brackets
-		// should be replaced with a cleaner solution
-		if (str.matches(".+?\\(.+?")) {
-			String[] elements = str.split("\\(");		
-			str = elements[0];			
-		}	
-		if (str.matches(".+?\\'.+?")) {
-			String[] elements = str.split("\\'");		
-			str = elements[1];			
-		}	
-
-
-		// Remove some non-alphanumeric characters
-
-		// str = str.replace('/', ' ');
-		str = str.replace('-', ' ');
-		str = str.replace('&', ' ');
-
-
-		str = str.replaceAll("\\*", "");
-		str = str.replaceAll("\\, "," ");
-		str = str.replaceAll("\\. "," ");
-		str = str.replaceAll("\\:","");
-
-
-		str = str.trim();
-
-		// Stem string
-		words = str.split(" ");
-		str_nostop = "";
-		for (int i = 0; i < words.length; i++) {
-			if (!m_Stopwords.isStopword(words[i])) {
-				if (str_nostop.equals("")) {
-					str_nostop = words[i];
-				} else {
-					str_nostop = str_nostop + " " + words[i];
-				}
-			}
-		}
-		
-		stemmed = m_Stemmer.stemString(str_nostop);
-		
-		String[] currentwords = stemmed.split(" ");
-		Arrays.sort(currentwords);
-		String sortedStemmedPhrase = join(currentwords);
-
-		if (stemmed2surface.containsKey(sortedStemmedPhrase)){
-			stemmed2surface.get(sortedStemmedPhrase).add(ori);
-		}
-		else {
-			stemmed2surface.put(sortedStemmedPhrase, new HashSet<String>());
-			stemmed2surface.get(sortedStemmedPhrase).add(ori);
-		}
-//		System.out.println("OUT: STEM: " + sortedStemmedPhrase + "ORI: " + ori);
-		return sortedStemmedPhrase;
+		return PhraseNormalizer.filterPseudoPhrase(str, m_Stemmer, m_Stopwords);
 	}
-
-	/** 
-	 * Joins an array of strings to a single string.
-	 */
-	private static String join(String[] str) {
-		String result = "";
-		for(int i = 0; i < str.length; i++) {
-			if (result != "") {
-				result = result + " " + str[i];
-			} else {
-				result = str[i];
-			}
-		}
-		return result;
-	}	
+	
 
 
 
@@ -0,0 +1,434 @@
+package kea.filters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+
+import kea.stemmers.Stemmer;
+import kea.stopwords.Stopwords;
+import kea.util.IntTupleMap;
+
+/**
+ * Collects the candidate n-grams of a document when no vocabulary is
+ * used, giving the same candidates and pseudo phrases as building every
+ * n-gram as a string and passing it to KEAFilter.pseudoPhrase().
+ *
+ * Every distinct word of the document is looked at once: it gets an id,
+ * a stop word flag and, if it consists of letters and digits only, the
+ * id of its stem. An n-gram made of such words is then identified by
+ * the sorted ids of the stems of its non-stop words, which is exactly
+ * what its pseudo phrase encodes, so no strings are built for it.
+ * N-grams containing other words (with hyphens, apostrophes, slashes,
+ * ...) go through pseudoPhrase() as before. Strings for the phrase
+ * and its original version are only built for candidates that are
+ * actually used.
+ *
+ * A scanner is meant for a single document.
+ *
+ * @version 1.0
+ */
+class NGramScanner {
+
+	/** The filter, for pseudo phrases of n-grams with complex words */
+	private final KEAFilter m_Filter;
+
+	private final Stemmer m_Stemmer;
+	private final Stopwords m_Stopwords;
+	private final int m_MinPhraseLength, m_MaxPhraseLength;
+
+	/** Record where each n-gram occurs? */
+	private final boolean m_RecordOccurrences;
+
+	/** The ids of the distinct words */
+	private final HashMap<String,Integer> m_WordIds = new HashMap<String,Integer>();
+
+	/** The distinct words */
+	private final ArrayList<String> m_Words = new ArrayList<String>();
+
+	/** Per word: stem id, or -1 for stop words and complex words */
+	private int[] m_WordStems = new int[256];
+
+	/** Per word: is it a stop word? */
+	private boolean[] m_WordStop = new boolean[256];
+
+	/** Per word: does it consist of letters and digits only? */
+	private boolean[] m_WordSimple = new boolean[256];
+
+	/** The ids of the distinct stems */
+	private final HashMap<String,Integer> m_StemIds = new HashMap<String,Integer>();
+
+	/** The distinct stems */
+	private final ArrayList<String> m_Stems = new ArrayList<String>();
+
+	/** The word ids of the document, one per position */
+	private int[] m_Text = new int[1024];
+
+	/** The candidates identified by their stem ids */
+	private final IntTupleMap m_Tuples = new IntTupleMap();
+
+	/** Per tuple: the candidate */
+	private int[] m_TupleCandidates = new int[256];
+
+	/** The number of tuples that have a candidate */
+	private int m_NumTuples = 0;
+
+	/** The candidates identified by their pseudo phrase */
+	private final HashMap<String,Integer> m_PseudoIds = new HashMap<String,Integer>();
+
+	/** The number of candidates */
+	private int m_NumCandidates = 0;
+
+	/** Per candidate: tuple number, or -1 if identified by pseudo phrase */
+	private int[] m_CandTuple = new int[256];
+
+	/** Per candidate: the pseudo phrase, if not identified by stem ids */
+	private String[] m_CandPseudo = new String[256];
+
+	/** Per candidate: the number of occurrences */
+	private int[] m_CandCount = new int[256];
+
+	/** Per candidate: the first and last occurrence */
+	private int[] m_CandFirst = new int[256], m_CandLast = new int[256];
+
+	/** Per occurrence: start position, length and next occurrence */
+	private int[] m_OccStart = new int[1024], m_OccLength = new int[1024],
+		m_OccNext = new int[1024];
+
+	/** The number of occurrences recorded */
+	private int m_NumOccurrences = 0;
+
+	/** The number of positions in the document */
+	private int m_Length = 0;
+
+	NGramScanner(KEAFilter filter, Stemmer stemmer, Stopwords stopwords,
+			int minPhraseLength, int maxPhraseLength, boolean recordOccurrences) {
+		m_Filter = filter;
+		m_Stemmer = stemmer;
+		m_Stopwords = stopwords;
+		m_MinPhraseLength = minPhraseLength;
+		m_MaxPhraseLength = maxPhraseLength;
+		m_RecordOccurrences = recordOccurrences;
+	}
+
+	/**
+	 * Collects the n-grams of a document (sentences separated by
+	 * newlines, words by spaces). Positions are counted as in
+	 * KEAFilter.getPhrases(): the first word is at position 1.
+	 */
+	void scan(String str) {
+
+		int[] stems = new int[m_MaxPhraseLength];
+		int pos = 1;
+		StringTokenizer tok = new StringTokenizer(str, "\n");
+		while (tok.hasMoreTokens()) {
+			String sentence = tok.nextToken();
+			int numSeen = 0;
+			StringTokenizer wordTok = new StringTokenizer(sentence, " ");
+			while (wordTok.hasMoreTokens()) {
+				int word = wordId(wordTok.nextToken());
+				if (pos > m_Text.length) {
+					m_Text = Arrays.copyOf(m_Text, m_Text.length * 2);
+				}
+				m_Text[pos - 1] = word;
+
+				numSeen++;
+				if (numSeen > m_MaxPhraseLength) {
+					numSeen = m_MaxPhraseLength;
+				}
+
+				// Don't consider phrases that end with a stop word
+				if (m_WordStop[word]) {
+					pos++;
+					continue;
+				}
+
+				int numStems = 0;
+				boolean simple = true;
+				for (int i = 1; i <= numSeen; i++) {
+					int current = m_Text[pos - i];
+					simple = simple && m_WordSimple[current];
+					if (m_WordStems[current] >= 0) {
+						stems[numStems++] = m_WordStems[current];
+					}
+
+					// Don't consider phrases that begin with a stop word
+					if ((i > 1) && m_WordStop[current]) {
+						continue;
+					}
+					if (i >= m_MinPhraseLength) {
+						int candidate;
+						if (simple) {
+							candidate = candidate(stems, numStems);
+						} else {
+							candidate = candidate(m_Filter.pseudoPhrase(original(pos - i, i)));
+						}
+						occurrence(candidate, pos - i, i);
+					}
+				}
+				pos++;
+			}
+		}
+		m_Length = pos;
+	}
+
+	/**
+	 * Returns the number of positions in the document plus one,
+	 * like KEAFilter.getPhrases().
+	 */
+	int length() {
+		return m_Length;
+	}
+
+	/**
+	 * Returns the number of candidates.
+	 */
+	int numCandidates() {
+		return m_NumCandidates;
+	}
+
+	/**
+	 * Returns the number of occurrences of a candidate.
+	 */
+	int count(int candidate) {
+		return m_CandCount[candidate];
+	}
+
+	/**
+	 * Returns the first occurrence of a candidate, to be passed
+	 * to start(), original() and nextOccurrence().
+	 */
+	int firstOccurrence(int candidate) {
+		return m_CandFirst[candidate];
+	}
+
+	/**
+	 * Returns the occurrence after the given one, or -1.
+	 * Only available if occurrences are recorded.
+	 */
+	int nextOccurrence(int occurrence) {
+		return m_OccNext[occurrence];
+	}
+
+	/**
+	 * Returns the position of the first word of an occurrence.
+	 */
+	int start(int occurrence) {
+		return m_OccStart[occurrence] + 1;
+	}
+
+	/**
+	 * Returns the pseudo phrase of a candidate.
+	 */
+	String pseudoPhrase(int candidate) {
+
+		int tuple = m_CandTuple[candidate];
+		if (tuple < 0) {
+			return m_CandPseudo[candidate];
+		}
+		String[] stems = new String[m_Tuples.length(tuple)];
+		for (int i = 0; i < stems.length; i++) {
+			stems[i] = m_Stems.get(m_Tuples.get(tuple, i));
+		}
+		Arrays.sort(stems);
+		StringBuffer result = new StringBuffer(stems[0]);
+		for (int i = 1; i < stems.length; i++) {
+			result.append(' ').append(stems[i]);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Returns the original version of an occurrence.
+	 */
+	String original(int occurrence) {
+		return original(m_OccStart[occurrence], m_OccLength[occurrence]);
+	}
+
+	/**
+	 * Returns the words at the given index (0-based) joined by spaces.
+	 */
+	private String original(int start, int length) {
+		StringBuffer result = new StringBuffer(m_Words.get(m_Text[start]));
+		for (int i = 1; i < length; i++) {
+			result.append(' ').append(m_Words.get(m_Text[start + i]));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Returns the id of a word, looking at the word if it is new.
+	 */
+	private int wordId(String word) {
+
+		Integer id = m_WordIds.get(word);
+		if (id != null) {
+			return id.intValue();
+		}
+
+		int index = m_Words.size();
+		m_Words.add(word);
+		m_WordIds.put(word, Integer.valueOf(index));
+		if (index >= m_WordStems.length) {
+			m_WordStems = Arrays.copyOf(m_WordStems, index * 2);
+			m_WordStop = Arrays.copyOf(m_WordStop, index * 2);
+			m_WordSimple = Arrays.copyOf(m_WordSimple, index * 2);
+		}
+
+		m_WordStop[index] = m_Stopwords.isStopword(word);
+		m_WordStems[index] = -1;
+		String lower = word.toLowerCase();
+		m_WordSimple[index] = isLetterOrDigit(word) && isLowerCaseLetterOrDigit(lower);
+		if (m_WordSimple[index] && !m_WordStop[index]) {
+			String stem = m_Stemmer.stemCached(lower);
+			if ((stem.length() == 0) || (stem.indexOf(' ') >= 0)) {
+				// Let pseudoPhrase() deal with this
+				m_WordSimple[index] = false;
+			} else {
+				m_WordStems[index] = stemId(stem);
+			}
+		}
+		return index;
+	}
+
+	private static boolean isLetterOrDigit(String word) {
+		if (word.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < word.length(); i++) {
+			if (!Character.isLetterOrDigit(word.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the word is made of letters and digits that
+	 * lower-casing leaves as they are.
+	 */
+	private static boolean isLowerCaseLetterOrDigit(String word) {
+		if (word.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (!Character.isLetterOrDigit(c) || (Character.toLowerCase(c) != c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int stemId(String stem) {
+		Integer id = m_StemIds.get(stem);
+		if (id == null) {
+			id = Integer.valueOf(m_Stems.size());
+			m_Stems.add(stem);
+			m_StemIds.put(stem, id);
+		}
+		return id.intValue();
+	}
+
+	/**
+	 * Returns the candidate for the given stem ids (in any order).
+	 * Changes the order of the ids.
+	 */
+	private int candidate(int[] stems, int numStems) {
+
+		// Insertion sort: there are at most m_MaxPhraseLength ids
+		for (int i = 1; i < numStems; i++) {
+			int id = stems[i];
+			int j = i - 1;
+			while ((j >= 0) && (stems[j] > id)) {
+				stems[j + 1] = stems[j];
+				j--;
+			}
+			stems[j + 1] = id;
+		}
+		int tuple = m_Tuples.add(stems, numStems);
+		if (tuple == m_NumTuples) {
+			m_NumTuples++;
+			m_TupleCandidates = grow(m_TupleCandidates, tuple + 1);
+			m_TupleCandidates[tuple] = newCandidate(tuple, null);
+		}
+		return m_TupleCandidates[tuple];
+	}
+
+	/**
+	 * Returns the candidate for the given pseudo phrase. If the pseudo
+	 * phrase consists of non-empty stems separated by single spaces, it
+	 * is the same candidate as the n-grams with these stems.
+	 */
+	private int candidate(String pseudo) {
+
+		String[] parts = pseudo.split(" ", -1);
+		boolean wellFormed = true;
+		for (int i = 0; wellFormed && (i < parts.length); i++) {
+			wellFormed = parts[i].length() > 0;
+		}
+		if (wellFormed) {
+			int[] stems = new int[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				stems[i] = stemId(parts[i]);
+			}
+			return candidate(stems, stems.length);
+		}
+
+		Integer id = m_PseudoIds.get(pseudo);
+		if (id == null) {
+			id = Integer.valueOf(newCandidate(-1, pseudo));
+			m_PseudoIds.put(pseudo, id);
+		}
+		return id.intValue();
+	}
+
+	private int newCandidate(int tuple, String pseudo) {
+		int candidate = m_NumCandidates++;
+		if (candidate >= m_CandTuple.length) {
+			m_CandTuple = grow(m_CandTuple, candidate + 1);
+			m_CandPseudo = Arrays.copyOf(m_CandPseudo, m_CandTuple.length);
+			m_CandCount = grow(m_CandCount, candidate + 1);
+			m_CandFirst = grow(m_CandFirst, candidate + 1);
+			m_CandLast = grow(m_CandLast, candidate + 1);
+		}
+		m_CandTuple[candidate] = tuple;
+		m_CandPseudo[candidate] = pseudo;
+		m_CandCount[candidate] = 0;
+		return candidate;
+	}
+
+	/**
+	 * Records an occurrence of a candidate. Without recording
+	 * occurrences, only the first one is kept.
+	 */
+	private void occurrence(int candidate, int start, int length) {
+
+		m_CandCount[candidate]++;
+		if (!m_RecordOccurrences && (m_CandCount[candidate] > 1)) {
+			return;
+		}
+		int occurrence = m_NumOccurrences++;
+		if (occurrence >= m_OccStart.length) {
+			m_OccStart = grow(m_OccStart, occurrence + 1);
+			m_OccLength = grow(m_OccLength, occurrence + 1);
+			m_OccNext = grow(m_OccNext, occurrence + 1);
+		}
+		m_OccStart[occurrence] = start;
+		m_OccLength[occurrence] = length;
+		m_OccNext[occurrence] = -1;
+		if (m_CandCount[candidate] == 1) {
+			m_CandFirst[candidate] = occurrence;
+		} else {
+			m_OccNext[m_CandLast[candidate]] = occurrence;
+		}
+		m_CandLast[candidate] = occurrence;
+	}
+
+	private static int[] grow(int[] array, int minLength) {
+		if (array.length >= minLength) {
+			return array;
+		}
+		return Arrays.copyOf(array, Math.max(minLength, array.length * 2));
+	}
+}
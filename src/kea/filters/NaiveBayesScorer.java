@@ -0,0 +1,266 @@
+package kea.filters;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.NaiveBayesSimple;
+import weka.classifiers.meta.FilteredClassifier;
+import weka.core.Instances;
+import weka.filters.Filter;
+import weka.filters.supervised.attribute.Discretize;
+
+/**
+ * The classifier built by KEAFilter (Discretize followed by
+ * NaiveBayesSimple) compiled into flat tables: the cut points of every
+ * feature and, for every class, the probability of each interval.
+ * Scoring a feature vector takes one binary search per feature and
+ * the same multiplications NaiveBayesSimple does, in the same order,
+ * so the probabilities are identical to those of the Weka classifier.
+ * Scoring allocates no memory and does not change the scorer, so one
+ * scorer can be used from several threads.
+ *
+ * @version 1.0
+ */
+class NaiveBayesScorer {
+
+	/** The cut points of each feature (null if it has a single interval) */
+	private final double[][] m_CutPoints;
+
+	/** The features in the order NaiveBayesSimple multiplies them */
+	private final int[] m_Features;
+
+	/** The probability of each interval, per class and feature */
+	private final double[][][] m_Probs;
+
+	/** The prior probability of each class */
+	private final double[] m_Priors;
+
+	private NaiveBayesScorer(double[][] cutPoints, int[] features,
+			double[][][] probs, double[] priors) {
+		m_CutPoints = cutPoints;
+		m_Features = features;
+		m_Probs = probs;
+		m_Priors = priors;
+	}
+
+	/**
+	 * Compiles a trained classifier. Returns null if the classifier
+	 * is not a FilteredClassifier with a Discretize filter (with default
+	 * output) and a NaiveBayesSimple classifier, in which case it has to
+	 * be used through distributionForInstance().
+	 *
+	 * @param classifier the trained classifier
+	 * @param format the format of the data the classifier was trained on
+	 * @return the scorer, or null
+	 */
+	static NaiveBayesScorer compile(Classifier classifier, Instances format) {
+
+		if (!(classifier instanceof FilteredClassifier)) {
+			return null;
+		}
+		Filter filter = ((FilteredClassifier)classifier).getFilter();
+		Classifier nb = ((FilteredClassifier)classifier).getClassifier();
+		if ((filter.getClass() != Discretize.class) ||
+				(nb.getClass() != NaiveBayesSimple.class)) {
+			return null;
+		}
+		Discretize discretize = (Discretize)filter;
+		if (discretize.getMakeBinary()) {
+			return null;
+		}
+
+		try {
+			Instances discretized = discretize.getOutputFormat();
+			double[][][] counts = (double[][][])field("m_Counts").get(nb);
+			double[] priors = (double[])field("m_Priors").get(nb);
+			if ((counts == null) || (priors == null) ||
+					(discretized.numAttributes() != format.numAttributes()) ||
+					(discretized.classIndex() != format.classIndex())) {
+				return null;
+			}
+
+			int numClasses = priors.length;
+			double[][] cutPoints = new double[format.numAttributes()][];
+			int[] features = new int[format.numAttributes() - 1];
+			double[][][] probs = new double[numClasses][features.length][];
+			int attIndex = 0;
+			for (int i = 0; i < format.numAttributes(); i++) {
+				if (i == format.classIndex()) {
+					continue;
+				}
+				if (!discretized.attribute(i).isNominal()) {
+					return null;
+				}
+				double[] cuts = discretize.getCutPoints(i);
+				int numBins = (cuts == null) ? 1 : cuts.length + 1;
+				if (discretized.attribute(i).numValues() != numBins) {
+					return null;
+				}
+				if (cuts != null) {
+					cutPoints[i] = (double[])cuts.clone();
+				}
+				for (int j = 0; j < numClasses; j++) {
+					if (counts[j][attIndex].length != numBins) {
+						return null;
+					}
+					probs[j][attIndex] = (double[])counts[j][attIndex].clone();
+				}
+				features[attIndex++] = i;
+			}
+			return new NaiveBayesScorer(cutPoints, features, probs,
+					(double[])priors.clone());
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the tables of the scorer, for read().
+	 *
+	 * @param out where to write the tables
+	 * @exception IOException if the tables can't be written
+	 */
+	void write(DataOutput out) throws IOException {
+
+		out.writeInt(m_CutPoints.length);
+		for (int i = 0; i < m_CutPoints.length; i++) {
+			writeDoubles(out, m_CutPoints[i]);
+		}
+		out.writeInt(m_Features.length);
+		for (int k = 0; k < m_Features.length; k++) {
+			out.writeInt(m_Features[k]);
+		}
+		writeDoubles(out, m_Priors);
+		for (int j = 0; j < m_Priors.length; j++) {
+			for (int k = 0; k < m_Features.length; k++) {
+				writeDoubles(out, m_Probs[j][k]);
+			}
+		}
+	}
+
+	/**
+	 * Reads the tables of a scorer written by write().
+	 *
+	 * @param in where to read the tables from
+	 * @return the scorer
+	 * @exception IOException if the tables can't be read
+	 */
+	static NaiveBayesScorer read(DataInput in) throws IOException {
+
+		double[][] cutPoints = new double[in.readInt()][];
+		for (int i = 0; i < cutPoints.length; i++) {
+			cutPoints[i] = readDoubles(in);
+		}
+		int[] features = new int[in.readInt()];
+		for (int k = 0; k < features.length; k++) {
+			features[k] = in.readInt();
+		}
+		double[] priors = readDoubles(in);
+		double[][][] probs = new double[priors.length][features.length][];
+		for (int j = 0; j < priors.length; j++) {
+			for (int k = 0; k < features.length; k++) {
+				probs[j][k] = readDoubles(in);
+			}
+		}
+		return new NaiveBayesScorer(cutPoints, features, probs, priors);
+	}
+
+	/**
+	 * Writes an array of doubles, which may be null.
+	 */
+	private static void writeDoubles(DataOutput out, double[] vals)
+	throws IOException {
+		if (vals == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(vals.length);
+		for (int i = 0; i < vals.length; i++) {
+			out.writeDouble(vals[i]);
+		}
+	}
+
+	/**
+	 * Reads an array of doubles written by writeDoubles().
+	 */
+	private static double[] readDoubles(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		double[] vals = new double[length];
+		for (int i = 0; i < length; i++) {
+			vals[i] = in.readDouble();
+		}
+		return vals;
+	}
+
+	/**
+	 * Returns a field of NaiveBayesSimple, made accessible.
+	 */
+	private static Field field(String name) throws Exception {
+		Field field = NaiveBayesSimple.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return field;
+	}
+
+	/**
+	 * Returns the probability of the given class for a feature vector
+	 * laid out like the training data (missing values allowed).
+	 *
+	 * @param vals the feature values
+	 * @param classValue the index of the class
+	 * @return the same value as distributionForInstance()[classValue]
+	 */
+	double probability(double[] vals, int classValue) {
+
+		double sum = 0, result = 0;
+		for (int j = 0; j < m_Priors.length; j++) {
+			double[][] probs = m_Probs[j];
+			double prob = 1;
+			for (int k = 0; k < m_Features.length; k++) {
+				double val = vals[m_Features[k]];
+				if (!Double.isNaN(val)) {
+					prob *= probs[k][bin(m_CutPoints[m_Features[k]], val)];
+				}
+			}
+			prob *= m_Priors[j];
+			sum += prob;
+			if (j == classValue) {
+				result = prob;
+			}
+		}
+
+		// Same checks as Utils.normalize()
+		if (Double.isNaN(sum)) {
+			throw new IllegalArgumentException("Can't normalize array. Sum is NaN.");
+		}
+		if (sum == 0) {
+			throw new IllegalArgumentException("Can't normalize array. Sum is zero.");
+		}
+		return result / sum;
+	}
+
+	/**
+	 * Returns the interval of a value: the index of the first cut point
+	 * that is greater than or equal to the value, as in Discretize.
+	 */
+	private static int bin(double[] cuts, double val) {
+		if (cuts == null) {
+			return 0;
+		}
+		int lo = 0, hi = cuts.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (val <= cuts[mid]) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return lo;
+	}
+}
@@ -146,34 +146,8 @@ public class NumbersFilter extends Filter {
       if ((!instance.attribute(i).isString()) || instance.isMissing(i)) {
 	instVals[i] = instance.value(i);
       } else {
-	String str = instance.stringValue(i);
-
-	StringBuffer resultStr = new StringBuffer();
-	StringTokenizer tok = new StringTokenizer(str, " \t\n", true);
-	while (tok.hasMoreTokens()) {
-	  String token = tok.nextToken();
-
-	  // Everything that doesn't contain at least
-	  // one letter is considered to be a number
-	  boolean isNumber = true;
-	  for (int j = 0; j < token.length(); j++) {
-	    if (Character.isLetter(token.charAt(j))) {
-	      isNumber = false;
-	      break;
-	    }
-	  }
-	  if (!isNumber) {
-	    resultStr.append(token);
-	  } else {
-	    if (token.equals(" ") || token.equals("\t") ||
-		token.equals("\n")) {
-	      resultStr.append(token);
-	    } else {
-	      resultStr.append(" \n ");
-	    }
-	  }
-	}
-	int index = getOutputFormat().attribute(i).addStringValue(resultStr.toString());
+	String str = removeNumbers(instance.stringValue(i));
+	int index = getOutputFormat().attribute(i).addStringValue(str);
 	instVals[i] = (double)index;
       }
     }
@@ -181,7 +155,43 @@ public class NumbersFilter extends Filter {
     inst.setDataset(getOutputFormat());
     push(inst);
   }
- 
+
+  /**
+   * Removes all numbers from a string. A phrase boundary is inserted
+   * where a number is found.
+   *
+   * @param str the string to process
+   * @return the string without numbers
+   */
+  public static String removeNumbers(String str) {
+
+    StringBuffer resultStr = new StringBuffer();
+    StringTokenizer tok = new StringTokenizer(str, " \t\n", true);
+    while (tok.hasMoreTokens()) {
+      String token = tok.nextToken();
+
+      // Everything that doesn't contain at least
+      // one letter is considered to be a number
+      boolean isNumber = true;
+      for (int j = 0; j < token.length(); j++) {
+	if (Character.isLetter(token.charAt(j))) {
+	  isNumber = false;
+	  break;
+	}
+      }
+      if (!isNumber) {
+	resultStr.append(token);
+      } else {
+	if (token.equals(" ") || token.equals("\t") ||
+	    token.equals("\n")) {
+	  resultStr.append(token);
+	} else {
+	  resultStr.append(" \n ");
+	}
+      }
+    }
+    return resultStr.toString();
+  }
 }
 
 
@@ -0,0 +1,154 @@
+package kea.filters;
+
+import weka.core.Utils;
+
+/**
+ * Ranks the candidate phrases of a document. Phrases are ordered by
+ * probability (highest first), phrases with the same probability by
+ * TFxIDF value (highest first) and then by distance (lowest first);
+ * phrases that are equal in all three keep their original order.
+ * Missing values are sorted last, as in Utils.stableSort().
+ *
+ * Only the best k phrases are sorted, using a bounded heap, so the
+ * cost is O(n log k) rather than O(n log n).
+ *
+ * @version 1.0
+ */
+class PhraseRanker {
+
+	/** The sort keys, all sorted in ascending order */
+	private final double[] m_Prob, m_TFxIDF, m_Dist;
+
+	/** The heap, with the worst phrase at the root */
+	private final int[] m_Heap;
+
+	/** The number of phrases in the heap */
+	private int m_Size = 0;
+
+	private PhraseRanker(double[] probs, double[] tfidfs, double[] dists, int k) {
+		m_Prob = new double[probs.length];
+		m_TFxIDF = new double[probs.length];
+		m_Dist = new double[probs.length];
+		for (int i = 0; i < probs.length; i++) {
+			m_Prob[i] = key(1 - probs[i]);
+			m_TFxIDF[i] = key(-tfidfs[i]);
+			m_Dist[i] = key(dists[i]);
+		}
+		m_Heap = new int[k];
+	}
+
+	/**
+	 * Finds the best k phrases and sorts them. Fills ranks with the rank
+	 * of each phrase: phrases that are very unlikely to be keyphrases
+	 * and phrases that are not among the best k get rank
+	 * Integer.MAX_VALUE, all others are numbered from 1 in sorted order.
+	 *
+	 * @param probs the probabilities of the phrases
+	 * @param tfidfs the TFxIDF values of the phrases
+	 * @param dists the distances of the phrases
+	 * @param k the number of phrases to sort
+	 * @param ranks the array to fill with the ranks
+	 * @return the indices of the best k phrases in sorted order
+	 */
+	static int[] rank(double[] probs, double[] tfidfs, double[] dists,
+			int k, int[] ranks) {
+
+		k = Math.max(0, Math.min(k, probs.length));
+		PhraseRanker ranker = new PhraseRanker(probs, tfidfs, dists, k);
+		for (int i = 0; i < probs.length; i++) {
+			ranker.offer(i);
+			ranks[i] = Integer.MAX_VALUE;
+		}
+		int[] order = ranker.sorted();
+
+		int rank = 1;
+		for (int i = 0; i < order.length; i++) {
+			// Short cut: if phrase very unlikely make rank very low
+			if (!Utils.grOrEq(1 - probs[order[i]], 1.0)) {
+				ranks[order[i]] = rank++;
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Sort key for a value: missing values are treated as
+	 * Double.MAX_VALUE, as in Utils.stableSort().
+	 */
+	private static double key(double value) {
+		return Double.isNaN(value) ? Double.MAX_VALUE : value;
+	}
+
+	/**
+	 * Compares two phrases. Returns a negative number if phrase a is
+	 * ranked before phrase b, and a positive number otherwise.
+	 */
+	private int compare(int a, int b) {
+		if (m_Prob[a] != m_Prob[b]) {
+			return (m_Prob[a] < m_Prob[b]) ? -1 : 1;
+		}
+		if (m_TFxIDF[a] != m_TFxIDF[b]) {
+			return (m_TFxIDF[a] < m_TFxIDF[b]) ? -1 : 1;
+		}
+		if (m_Dist[a] != m_Dist[b]) {
+			return (m_Dist[a] < m_Dist[b]) ? -1 : 1;
+		}
+		return a - b;
+	}
+
+	/**
+	 * Adds a phrase if it is among the best k seen so far.
+	 */
+	private void offer(int phrase) {
+		if (m_Size < m_Heap.length) {
+			int pos = m_Size++;
+			while (pos > 0) {
+				int parent = (pos - 1) / 2;
+				if (compare(m_Heap[parent], phrase) > 0) {
+					break;
+				}
+				m_Heap[pos] = m_Heap[parent];
+				pos = parent;
+			}
+			m_Heap[pos] = phrase;
+		} else if ((m_Size > 0) && (compare(phrase, m_Heap[0]) < 0)) {
+			siftDown(phrase, m_Size);
+		}
+	}
+
+	/**
+	 * Puts a phrase at the root and moves it down into place,
+	 * considering only the first size elements of the heap.
+	 */
+	private void siftDown(int phrase, int size) {
+		int pos = 0;
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= size) {
+				break;
+			}
+			if ((child + 1 < size) && (compare(m_Heap[child + 1], m_Heap[child]) > 0)) {
+				child++;
+			}
+			if (compare(m_Heap[child], phrase) < 0) {
+				break;
+			}
+			m_Heap[pos] = m_Heap[child];
+			pos = child;
+		}
+		m_Heap[pos] = phrase;
+	}
+
+	/**
+	 * Empties the heap and returns the phrases, best first.
+	 */
+	private int[] sorted() {
+		int[] result = new int[m_Size];
+		for (int i = m_Size - 1; i >= 0; i--) {
+			result[i] = m_Heap[0];
+			siftDown(m_Heap[i], i);
+		}
+		m_Size = 0;
+		return result;
+	}
+}
@@ -0,0 +1,35 @@
+package kea.filters;
+
+import java.util.HashMap;
+
+import kea.util.Counter;
+
+/**
+ * What KEAFilter keeps of a training document between the passes of
+ * training, so that every document is tokenized and its candidate
+ * phrases are generated only once: the candidate phrases, the given
+ * keyphrases and, once the classifier data has been generated, the
+ * feature values of each candidate.
+ *
+ * @version 1.0
+ */
+class TrainingDocument {
+
+	/** The candidate phrases, as filled in by KEAFilter.getPhrases() */
+	CandidateTable m_Candidates;
+
+	/** The number of words in the document */
+	int m_Length;
+
+	/** The given keyphrases, for the keyphrase frequency feature */
+	HashMap<String,Counter> m_Keyphrases;
+
+	/** The given keyphrases, for the class values */
+	HashMap<String,Counter> m_KeysEval;
+
+	/**
+	 * The feature values of the candidate phrases, in the order of
+	 * m_Candidates (null until computed)
+	 */
+	double[][] m_Vals;
+}
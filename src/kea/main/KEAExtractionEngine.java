@@ -0,0 +1,116 @@
+package kea.main;
+
+import java.util.ArrayList;
+
+import kea.filters.Candidate;
+import kea.filters.KEAFilter;
+
+/**
+ * Extracts keyphrases from single documents with a trained and fully
+ * configured KEAFilter. The filter given to the constructor is treated
+ * as an immutable model: it is never fed any documents itself. Every
+ * thread that calls extractKeyphrases() works on its own copy of the
+ * filter (see KEAFilter.copyForExtraction()), which shares the
+ * dictionaries, the vocabulary and the stemmer with the model, so that
+ * one loaded model can serve any number of threads at the same time.
+ *
+ * @version 1.0
+ */
+public class KEAExtractionEngine {
+
+	/** The trained model, never modified after construction */
+	private final KEAFilter m_Model;
+
+	/** The number of phrases to extract */
+	private final int m_numPhrases;
+
+	/** Per-thread copies of the model */
+	private final ThreadLocal<KEAFilter> m_Workers = new ThreadLocal<KEAFilter>() {
+		protected KEAFilter initialValue() {
+			try {
+				return m_Model.copyForExtraction();
+			} catch (Exception e) {
+				throw new IllegalStateException("Can't set up KEA filter for extraction", e);
+			}
+		}
+	};
+
+	/**
+	 * Creates an engine for the given model. The model has to be trained
+	 * and configured (stemmer, stop words, vocabulary, number of phrases)
+	 * before it is passed in, and must not be changed afterwards.
+	 *
+	 * @param model the trained KEA filter
+	 * @exception Exception if the model has not been trained
+	 */
+	public KEAExtractionEngine(KEAFilter model) throws Exception {
+		if (!model.hasGlobalDictionaries()) {
+			throw new Exception("The model doesn't contain global dictionaries.");
+		}
+		m_Model = model;
+		m_numPhrases = model.getNumPhrases();
+
+		// Fail early if the model can't be copied
+		m_Workers.get();
+	}
+
+	/**
+	 * Returns the number of phrases extracted per document.
+	 */
+	public int getNumPhrases() {
+		return m_numPhrases;
+	}
+
+	/**
+	 * Extracts the top ranked keyphrases from the given text.
+	 * Can be called concurrently from several threads.
+	 *
+	 * @param text the text of the document
+	 * @return the keyphrases, best first
+	 */
+	public ArrayList<KeyPhrase> extractKeyphrases(String text) throws Exception {
+
+		ArrayList<Candidate> candidates = extractCandidates(text, null);
+
+		ArrayList<KeyPhrase> output = new ArrayList<KeyPhrase>();
+		for (int i = 0; i < candidates.size(); i++) {
+			Candidate candidate = candidates.get(i);
+			String unstemmed = candidate.getOriginal();
+			if (unstemmed.matches(".+?'s")) {      //SPnew works! unstemmed of Germany's is Germany
+				String[] elements = unstemmed.split("'s");
+				unstemmed = elements[0];
+			}
+			output.add(new KeyPhrase(
+					candidate.getId(),
+					unstemmed,
+					candidate.getSurfaceForms(),
+					i,
+					candidate.getProbability()));
+		}
+		return output;
+	}
+
+	/**
+	 * Extracts the top ranked candidates from the given text, marking
+	 * those that are among the given author-assigned keyphrases.
+	 * Can be called concurrently from several threads.
+	 *
+	 * @param text the text of the document
+	 * @param keyphrases the author-assigned keyphrases (one per line),
+	 * or null if there are none
+	 * @return the candidates ranked within the number of phrases, best first
+	 */
+	public ArrayList<Candidate> extractCandidates(String text, String keyphrases)
+	throws Exception {
+
+		ArrayList<Candidate> candidates =
+			m_Workers.get().extractCandidates(text, keyphrases);
+
+		int n = 0;
+		while ((n < candidates.size()) &&
+				(candidates.get(n).getRank() <= m_numPhrases)) {
+			n++;
+		}
+		return new ArrayList<Candidate>(candidates.subList(0, n));
+	}
+}
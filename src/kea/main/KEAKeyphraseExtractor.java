@@ -21,17 +21,26 @@ package kea.main;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import weka.core.Attribute;
 import weka.core.FastVector;
@@ -40,13 +49,16 @@ import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
 import weka.core.Utils;
+import kea.filters.Candidate;
+import kea.filters.DocumentFrequencyBuilder;
 import kea.filters.KEAFilter;
 import kea.filters.KEAPhraseFilter;
 import kea.stemmers.SremovalStemmer;
+import kea.stemmers.StemCache;
 import kea.stemmers.Stemmer;
 import kea.stopwords.Stopwords;
 import kea.stopwords.Stopwords;
-import kea.util.Counter;
+import kea.util.StringIntMap;
 
 /**
  * Extracts keyphrases from the documents in a given directory.
@@ -124,10 +136,19 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 	/** The KEA filter object */
 	KEAFilter m_KEAFilter = null;
 	
+	/**
+	 * The engine used by extractKeyphrasesToList, built on first use
+	 * and dropped when the options or the model change
+	 */
+	private KEAExtractionEngine m_Engine = null;
+	
 	
 	/** The number of phrases to extract. */
 	int m_numPhrases = 10;
 	
+	/** The maximum number of surface forms kept for each phrase. */
+	int m_maxSurfaceForms = 10;
+	
 	/** The stemmer to be used */
 	private Stemmer m_Stemmer = new SremovalStemmer();
 	
@@ -144,6 +165,10 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 	boolean m_buildGlobal = false;
 	
 	
+	/** The number of documents processed at the same time. */
+	int m_numThreads = 1;
+	
+	
 	/**
 	 * Get the value of AdditionalInfo.
 	 *
@@ -185,6 +210,26 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 		m_buildGlobal = newBuildGlobal;
 	}
 	
+	/**
+	 * Get the number of documents processed at the same time.
+	 *
+	 * @return Value of numThreads.
+	 */
+	public int getNumThreads() {
+		
+		return m_numThreads;
+	}
+	
+	/**
+	 * Set the number of documents processed at the same time.
+	 *
+	 * @param newNumThreads Value to assign to numThreads.
+	 */
+	public void setNumThreads(int newNumThreads) {
+		
+		m_numThreads = newNumThreads;
+	}
+	
 	/**
 	 * Get the value of numPhrases.
 	 *
@@ -208,9 +253,10 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 	 * Set the Stemmer value.
 	 * @param newStemmer The new Stemmer value.
 	 */
-	public void setStemmer(Stemmer newStemmer) {
+	public synchronized void setStemmer(Stemmer newStemmer) {
 		
 		this.m_Stemmer = newStemmer;
+		m_Engine = null;
 	}
 	
 	
@@ -227,9 +273,10 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 	 * Set the Stopwords value.
 	 * @param newStopwords The new Stopwords value.
 	 */
-	public void setStopwords(Stopwords newStopwords) {
+	public synchronized void setStopwords(Stopwords newStopwords) {
 		
 		this.m_Stopwords = newStopwords;
+		m_Engine = null;
 	}
 	
 	
@@ -238,9 +285,31 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 	 *
 	 * @param newnumPhrases Value to assign to numPhrases.
 	 */
-	public void setNumPhrases(int newnumPhrases) {
+	public synchronized void setNumPhrases(int newnumPhrases) {
 		
 		m_numPhrases = newnumPhrases;
+		m_Engine = null;
+	}
+	
+	/**
+	 * Get the maximum number of surface forms kept for each phrase.
+	 *
+	 * @return Value of maxSurfaceForms.
+	 */
+	public int getMaxSurfaceForms() {
+		
+		return m_maxSurfaceForms;
+	}
+	
+	/**
+	 * Set the maximum number of surface forms kept for each phrase.
+	 *
+	 * @param newMaxSurfaceForms Value to assign to maxSurfaceForms.
+	 */
+	public synchronized void setMaxSurfaceForms(int newMaxSurfaceForms) {
+		
+		m_maxSurfaceForms = newMaxSurfaceForms;
+		m_Engine = null;
 	}
 	
 	/**
@@ -299,9 +368,10 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 	 *
 	 * @param newvocabulary Value to assign to vocabulary name.
 	 */
-	public void setVocabulary(String newvocabulary) {
+	public synchronized void setVocabulary(String newvocabulary) {
 		
 		m_vocabulary = newvocabulary;
+		m_Engine = null;
 	}
 	
 	/**
@@ -319,9 +389,10 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 	 *
 	 * @param newvocabularyFormat Value to assign to vocabularyFormat .
 	 */
-	public void setVocabularyFormat(String newvocabularyFormat) {
+	public synchronized void setVocabularyFormat(String newvocabularyFormat) {
 		
 		m_vocabularyFormat = newvocabularyFormat;
+		m_Engine = null;
 	}
 	/**
 	 * Get the value of document language.
@@ -338,9 +409,10 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 	 *
 	 * @param newdocumentLanguage Value to assign to document language.
 	 */
-	public void setDocumentLanguage(String newdocumentLanguage) {
+	public synchronized void setDocumentLanguage(String newdocumentLanguage) {
 		
 		m_documentLanguage = newdocumentLanguage;
+		m_Engine = null;
 	}
 	
 	
@@ -418,6 +490,9 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 	 * -a<br>
 	 * Also write stemmed phrase and score into ".key" file.<p>
 	 *
+	 * -w "number of threads"<br>
+	 * Specifies number of documents processed in parallel (default: 1).<p>
+	 *
 	 * @param options the list of options as an array of strings
 	 * @exception Exception if an option is not supported
 	 */
@@ -486,6 +561,13 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 			setNumPhrases(5);
 		}
 		
+		String numThreads = Utils.getOption('w', options);
+		if (numThreads.length() > 0) {
+			setNumThreads(Integer.parseInt(numThreads));
+		} else {
+			setNumThreads(1);
+		}
+		
 		
 		String stemmerString = Utils.getOption('t', options);
 		if (stemmerString.length() > 0) {
@@ -513,7 +595,7 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 	 */
 	public String [] getOptions() {
 		
-		String [] options = new String [21];
+		String [] options = new String [23];
 		int current = 0;
 		
 		options[current++] = "-l"; 
@@ -530,6 +612,8 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 		options[current++] = "" + (getDocumentLanguage());
 		options[current++] = "-n"; 
 		options[current++] = "" + (getNumPhrases());
+		options[current++] = "-w"; 
+		options[current++] = "" + (getNumThreads());
 		options[current++] = "-t"; 
 		options[current++] = "" + (getStemmer().getClass().getName());		
 		options[current++] = "-s"; 
@@ -560,7 +644,7 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 	 */
 	public Enumeration listOptions() {
 		
-		Vector newVector = new Vector(13);
+		Vector newVector = new Vector(14);
 		
 		newVector.addElement(new Option(
 				"\tSpecifies name of directory.",
@@ -583,6 +667,9 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 		newVector.addElement(new Option(
 				"\tSpecifies number of phrases to be output (default: 5).",
 				"n", 1, "-n"));
+		newVector.addElement(new Option(
+				"\tSpecifies number of documents processed in parallel (default: 1).",
+				"w", 1, "-w <number of threads>"));
 		newVector.addElement(new Option(
 				"\tSet the stemmer to use (default: SremovalStemmer).",
 				"t", 1, "-t <name of stemmer class>"));
@@ -626,115 +713,82 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 		return stems;
 	}
 	
-	public ArrayList<KeyPhrase> extractKeyphrasesToList(String text) {
-
-		m_KEAFilter.setNumPhrases(m_numPhrases);
+	/**
+	 * Configures the loaded model with the options of this extractor
+	 * and loads the vocabulary.
+	 */
+	private void configureFilter() {
+		
+		m_KEAFilter.setNumPhrases(m_numPhrases);    
+		m_KEAFilter.setMaxSurfaceForms(m_maxSurfaceForms);
 		m_KEAFilter.setVocabulary(m_vocabulary);
 		m_KEAFilter.setVocabularyFormat(m_vocabularyFormat);
 		m_KEAFilter.setDocumentLanguage(getDocumentLanguage());
 		m_KEAFilter.setStemmer(m_Stemmer);
 		m_KEAFilter.setStopwords(m_Stopwords);
-
+		
 		if (getVocabulary().equals("none")) {
 			m_KEAFilter.m_NODEfeature = false;
 		} else {
-			m_KEAFilter.loadThesaurus(m_Stemmer, m_Stopwords);
+			m_KEAFilter.loadThesaurus(m_Stemmer,m_Stopwords);
 		}
-
-		FastVector atts = new FastVector(3);
-		atts.addElement(new Attribute("doc", (FastVector) null));
-		atts.addElement(new Attribute("keyphrases", (FastVector) null));
-		atts.addElement(new Attribute("filename", (String) null));
-		Instances data = new Instances("keyphrase_training_data", atts, 0);
-
-		if (m_KEAFilter.m_Dictionary == null) {
-			// Build dictionary of n-grams with associated
-			// document frequencies
-			m_KEAFilter.m_Dictionary = new HashMap();
-
-			// Enumeration over all files in the directory (now in the hash):
-			KEAPhraseFilter kpf = new KEAPhraseFilter();
-
-			HashMap hash = m_KEAFilter.getPhrasesForDictionary(kpf
-					.tokenize(text));
-			Iterator it = hash.keySet().iterator();
-			while (it.hasNext()) {
-				String phrase = (String) it.next();
-				Counter counter = (Counter) m_KEAFilter.m_Dictionary
-						.get(phrase);
-				if (counter == null) {
-					m_KEAFilter.m_Dictionary.put(phrase, new Counter());
-				} else {
-					counter.increment();
-				}
-			}
+	}
+	
+	/**
+	 * Returns the engine for extracting keyphrases from single texts.
+	 * The engine is created from the loaded model on the first call,
+	 * and created again after the options or the model have changed.
+	 * It can be used from several threads at the same time.
+	 */
+	public synchronized KEAExtractionEngine getEngine() throws Exception {
+		
+		if (m_Engine == null) {
+			configureFilter();
+			m_Engine = new KEAExtractionEngine(m_KEAFilter);
 		}
-
-		// Extract keyphrases
-
-		double[] newInst = new double[2];
-
-		newInst[0] = (double) data.attribute(0).addStringValue(text);
-		newInst[1] = (double) data.attribute(1).addStringValue("");
-
-		data.add(new Instance(1.0, newInst));
+		return m_Engine;
+	}
+	
+	/**
+	 * Extracts the keyphrases from a single text. Can be called from
+	 * several threads at the same time.
+	 *
+	 * @param text the text
+	 * @return the keyphrases, best first
+	 * @exception IllegalStateException if the keyphrases can't be
+	 * extracted, for instance because the vocabulary can't be loaded
+	 */
+	public ArrayList<KeyPhrase> extractKeyphrasesToList(String text) {
 
 		try {
-			m_KEAFilter.input(data.instance(0));
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-		data = data.stringFreeStructure();
-		
-		Instance[] topRankedInstances = new Instance[m_numPhrases];
-		Instance inst;
+			KEAExtractionEngine engine;
+			synchronized (this) {
+				if (m_Engine == null && !m_KEAFilter.hasGlobalDictionaries()) {
+					configureFilter();
 
-		// Iterating over all extracted keyphrases (inst)
-		while ((inst = m_KEAFilter.output()) != null) {
+					// Build dictionary of n-grams with associated
+					// document frequencies
+					StringIntMap dictionary = new StringIntMap();
 
-			int index = (int) inst.value(m_KEAFilter.getRankIndex()) - 1;
+					KEAPhraseFilter kpf = new KEAPhraseFilter();
 
-			if (index < m_numPhrases) {
-				topRankedInstances[index] = inst;
-			}
-		}
-		
-		ArrayList<KeyPhrase> output = new ArrayList<KeyPhrase>();
-		
-		for (int i = 0; i < m_numPhrases; i++) {
-			if (topRankedInstances[i] != null){
-				
-				String next = topRankedInstances[i].stringValue(m_KEAFilter.getStemmedPhraseIndex());
-				String unstemmed = topRankedInstances[i].
-						stringValue(m_KEAFilter.getUnstemmedPhraseIndex()); 
-				if (unstemmed.matches(".+?'s")) {      //SPnew works! unstemmed of Germany's is Germany
-//					System.err.print("UNCHANGED: " + unstemmed + "\t"); //SPnew
-					String[] elements = unstemmed.split("'s");
-					unstemmed = elements[0];
-//					System.err.print("UNSTEMMED: " + unstemmed + "\t"); //SPnew
+					HashMap hash = m_KEAFilter.getPhrasesForDictionary(kpf
+							.tokenize(text));
+					Iterator it = hash.keySet().iterator();
+					while (it.hasNext()) {
+						dictionary.add((String) it.next(), 1);
+					}
+					m_KEAFilter.setDocumentFrequencies(dictionary);
+					m_Engine = new KEAExtractionEngine(m_KEAFilter);
 				}
-//				System.out.println("UNSTEMMED: " + unstemmed);
-//				System.out.println(topRankedInstances[i].
-//								stringValue(m_KEAFilter.getUnstemmedPhraseIndex()));
-//				System.out.println("surface: " + m_KEAFilter.getStemmed2surface().get(next)); //SPnew
-				KeyPhrase kp = new KeyPhrase(
-						next, 
-						unstemmed,
-//						topRankedInstances[i].                                     //ORI
-//						stringValue(m_KEAFilter.getUnstemmedPhraseIndex()),        //ORI
-						m_KEAFilter.getStemmed2surface().get(next),
-						i,
-						topRankedInstances[i].
-						value(m_KEAFilter.
-								getProbabilityIndex())
-						);
-			output.add(kp);
+				engine = getEngine();
 			}
-			
+			return engine.extractKeyphrases(text);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("Can't extract keyphrases: " + e.getMessage(), e);
 		}
-		return output;
 	}
 	
 	/**
@@ -749,18 +803,7 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 		if (stems.size() == 0) {
 			throw new Exception("Couldn't find any data!");
 		}
-		m_KEAFilter.setNumPhrases(m_numPhrases);    
-		m_KEAFilter.setVocabulary(m_vocabulary);
-		m_KEAFilter.setVocabularyFormat(m_vocabularyFormat);
-		m_KEAFilter.setDocumentLanguage(getDocumentLanguage());
-		m_KEAFilter.setStemmer(m_Stemmer);
-		m_KEAFilter.setStopwords(m_Stopwords);
-		
-		if (getVocabulary().equals("none")) {
-			m_KEAFilter.m_NODEfeature = false;
-		} else {
-			m_KEAFilter.loadThesaurus(m_Stemmer,m_Stopwords);
-		}
+		configureFilter();
 		
 		FastVector atts = new FastVector(3);
 		atts.addElement(new Attribute("doc", (FastVector) null));
@@ -768,11 +811,16 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 		atts.addElement(new Attribute("filename", (String) null));
 		Instances data = new Instances("keyphrase_training_data", atts, 0);
 		
-		if (m_KEAFilter.m_Dictionary == null) {
+		if (!m_KEAFilter.hasGlobalDictionaries()) {
 			buildGlobalDictionaries(stems);
 		}
 		
 		System.err.println("-- Extracting Keyphrases... ");
+		if (m_numThreads > 1) {
+			extractKeyphrasesInParallel(stems, stats);
+			printStatistics(stats);
+			return;
+		}
 		// Extract keyphrases
 		Enumeration elem = stems.keys();
 		// Enumeration over all files in the directory (now in the hash):
@@ -890,7 +938,7 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 									stringValue(m_KEAFilter.getStemmedPhraseIndex()));
 							String next = topRankedInstances[i].stringValue(m_KEAFilter.getStemmedPhraseIndex());
 							printer.print("\t");
-							printer.print(m_KEAFilter.getStemmed2surface().get(next));
+							printer.print(m_KEAFilter.getSurfaceForms(next));
 							printer.print("\t");
 							printer.print(Utils.
 									doubleToString(topRankedInstances[i].
@@ -916,6 +964,15 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 				out.close();
 			}
 		}
+		printStatistics(stats);
+		// m_KEAFilter.batchFinished();
+	}
+	
+	/**
+	 * Prints the average number of correctly extracted keyphrases.
+	 */
+	private void printStatistics(Vector stats) {
+		
 		double[] st = new double[stats.size()];
 		for (int i = 0; i < stats.size(); i++) {
 			st[i] = ((Double)stats.elementAt(i)).doubleValue();
@@ -927,73 +984,249 @@ public class KEAKeyphraseExtractor implements OptionHandler {
 				Utils.doubleToString(avg, 2) + " +/- " + 
 				Utils.doubleToString(stdDev, 2));
 		System.err.println("Based on " + stats.size() + " documents");
-		// m_KEAFilter.batchFinished();
+		if (m_debug) {
+			System.err.println("-- Stem cache: " + StemCache.getCache(m_Stemmer.getClass()));
+		}
 	}
 	
-	private void buildGlobalDictionaries (Hashtable stems) throws Exception  {
+	/**
+	 * Extracts keyphrases from the documents with m_numThreads threads,
+	 * writing the same ".key" files as extractKeyphrases() does in a
+	 * single thread. At most twice as many documents as threads are
+	 * read into memory at the same time. A document that can't be
+	 * processed is reported and skipped, without affecting the others.
+	 * The number of correct keyphrases of each document is added
+	 * to stats, in the same order as the documents are enumerated.
+	 */
+	private void extractKeyphrasesInParallel(Hashtable stems, Vector stats)
+	throws Exception {
 		
-		System.err.println("--- Building global dictionaries from the test collection.. ");
+		final KEAExtractionEngine engine = new KEAExtractionEngine(m_KEAFilter);
 		
+		final ArrayList<String> docs = new ArrayList<String>();
+		Enumeration elem = stems.keys();
+		while (elem.hasMoreElements()) {
+			docs.add((String)elem.nextElement());
+		}
 		
-		// Build dictionary of n-grams with associated
-		// document frequencies
+		// Number of correct keyphrases per document (NaN if none to compare with)
+		final double[] numCorrect = new double[docs.size()];
+		final AtomicInteger numFailed = new AtomicInteger();
+		final Semaphore inFlight = new Semaphore(2 * m_numThreads);
+		ExecutorService executor = Executors.newFixedThreadPool(m_numThreads);
+		try {
+			for (int i = 0; i < docs.size(); i++) {
+				final int doc = i;
+				inFlight.acquire();
+				try {
+					executor.execute(new Runnable() {
+						public void run() {
+							try {
+								numCorrect[doc] = extractKeyphrases(engine, docs.get(doc));
+							} catch (Exception e) {
+								numCorrect[doc] = Double.NaN;
+								numFailed.incrementAndGet();
+								System.err.println("Can't extract keyphrases from document " + 
+										docs.get(doc) + ": " + e);
+							} finally {
+								inFlight.release();
+							}
+						}
+					});
+				} catch (RuntimeException e) {
+					inFlight.release();
+					throw e;
+				}
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		
+		for (int i = 0; i < numCorrect.length; i++) {
+			if (!Double.isNaN(numCorrect[i])) {
+				stats.addElement(new Double(numCorrect[i]));
+			}
+		}
+		if (numFailed.get() > 0) {
+			System.err.println(numFailed.get() + " documents could not be processed");
+		}
+	}
+	
+	/**
+	 * Extracts the keyphrases from one document and writes them into its
+	 * ".key" file, unless the file exists. If it does exist, it holds
+	 * the keyphrases assigned by the author, and the extracted keyphrases
+	 * are evaluated against them.
+	 *
+	 * @return the number of correctly extracted keyphrases, or NaN if
+	 * there are no keyphrases to compare with
+	 */
+	private double extractKeyphrases(KEAExtractionEngine engine, String str)
+	throws Exception {
 		
-		m_KEAFilter.m_Dictionary = new HashMap();
+		String text = readFile(new File(m_dirName + "/" + str + ".txt"));
+		File key = new File(m_dirName + "/" + str + ".key");
+		String keyphrases = null;
+		if (key.exists()) {
+			try {
+				keyphrases = readFile(key);
+			} catch (Exception e) {
+				if (m_debug) {
+					System.err.println("No existing keyphrases for stem " + str + ".");
+				}
+			}
+		}
 		
-		Enumeration elem = stems.keys();
+		ArrayList<Candidate> candidates = engine.extractCandidates(text, keyphrases);
 		
-		// Enumeration over all files in the directory (now in the hash):
-		while (elem.hasMoreElements()) {	
-			String str = (String)elem.nextElement();
-			
-			File txt = new File(m_dirName + "/" + str + ".txt");	
-			InputStreamReader is;
-			if (!m_encoding.equals("default")) {
-				is = new InputStreamReader(new FileInputStream(txt), m_encoding);
-			} else {
-				is = new InputStreamReader(new FileInputStream(txt));
+		// Like the single-threaded extraction, documents whose keyphrases
+		// are all invalid (or empty) count as having no keyphrases
+		double numExtracted = 0, numCorrect = 0;
+		for (int i = 0; i < candidates.size(); i++) {
+			if (candidates.get(i).isEvaluated()) {
+				numExtracted += 1.0;
 			}
-			StringBuffer txtStr = new StringBuffer();
-			int c;
-			while ((c = is.read()) != -1) {
-				txtStr.append((char)c);
+			if (candidates.get(i).isKeyphrase()) {
+				numCorrect += 1.0;
 			}
+		}
+		if (m_debug) {
+			System.err.println("-- Document: " + str + 
+					((numExtracted > 0) ? ", " + numCorrect + " correct" : ""));
+		}
 		
-			KEAPhraseFilter kpf = new KEAPhraseFilter();
-			
-			HashMap hash = m_KEAFilter.getPhrasesForDictionary(kpf.tokenize(txtStr.toString()));
-			Iterator it = hash.keySet().iterator();
-			while (it.hasNext()) {
-				String phrase = (String)it.next();
-				Counter counter = (Counter)m_KEAFilter.m_Dictionary.get(phrase);
-				if (counter == null) {
-					m_KEAFilter.m_Dictionary.put(phrase, new Counter());
+		if (!key.exists()) {
+			FileOutputStream out = new FileOutputStream(key);
+			PrintWriter printer;
+			try {
+				if (!m_encoding.equals("default")) {
+					printer = new PrintWriter(new OutputStreamWriter(out, m_encoding));
 				} else {
-					counter.increment();
+					printer = new PrintWriter(out);
+				}
+			} catch (IOException e) {
+				out.close();
+				throw e;
+			}
+			try {
+				for (int i = 0; i < candidates.size(); i++) {
+					Candidate candidate = candidates.get(i);
+					printer.print(candidate.getOriginal());
+					printer.print("\t");
+					if (m_AdditionalInfo) {
+						printer.print(candidate.getId());
+						printer.print("\t");
+						printer.print(candidate.getSurfaceForms());
+						printer.print("\t");
+						printer.print(Utils.doubleToString(candidate.getProbability(), 4));
+					}
+					printer.println();
 				}
+				printer.flush();
+			} finally {
+				printer.close();
+			}
+		}
+		
+		if (numExtracted == 0) {
+			return Double.NaN;
+		}
+		return numCorrect;
+	}
+	
+	/**
+	 * Reads a file in the encoding set for this extractor.
+	 */
+	private String readFile(File file) throws Exception {
+		
+		InputStreamReader is;
+		if (!m_encoding.equals("default")) {
+			is = new InputStreamReader(new FileInputStream(file), m_encoding);
+		} else {
+			is = new InputStreamReader(new FileInputStream(file));
+		}
+		try {
+			StringBuffer str = new StringBuffer();
+			char[] buffer = new char[8192];
+			int n;
+			while ((n = is.read(buffer)) != -1) {
+				str.append(buffer, 0, n);
 			}
+			return str.toString();
+		} finally {
+			is.close();
 		}
 	}
 	
+	private void buildGlobalDictionaries (Hashtable stems) throws Exception  {
+		
+		System.err.println("--- Building global dictionaries from the test collection.. ");
+		
+		
+		// Build dictionary of n-grams with associated
+		// document frequencies, with m_numThreads threads
+		
+		final ArrayList<String> docs = new ArrayList<String>();
+		Enumeration elem = stems.keys();
+		while (elem.hasMoreElements()) {
+			docs.add((String)elem.nextElement());
+		}
+		
+		m_KEAFilter.setDocumentFrequencies(new DocumentFrequencyBuilder(m_numThreads) {
+			protected Collection<String> getDocumentPhrases(int doc) throws Exception {
+				File txt = new File(m_dirName + "/" + docs.get(doc) + ".txt");
+				KEAPhraseFilter kpf = new KEAPhraseFilter();
+				return m_KEAFilter.getPhrasesForDictionary(kpf.tokenize(readFile(txt))).keySet();
+			}
+		}.build(docs.size()));
+	}
+	
 	
 	/** 
 	 * Loads the extraction model from the file.
 	 */
-	public void loadModel() throws Exception {
-		
-		BufferedInputStream inStream =
-			new BufferedInputStream(this.getClass().getResourceAsStream(m_modelName));
-		ObjectInputStream in = new ObjectInputStream(inStream);
-		m_KEAFilter = (KEAFilter)in.readObject();
+	public synchronized void loadModel() throws Exception {
+		
+		// The model is a file or, failing that, a resource
+		File file = new File(m_modelName);
+		InputStream stream;
+		if (file.isFile()) {
+			if (KEAFilter.isBinaryModel(file)) {
+				stream = null;
+				m_KEAFilter = KEAFilter.loadBinaryModel(file);
+			} else {
+				stream = new FileInputStream(file);
+			}
+		} else {
+			stream = this.getClass().getResourceAsStream(m_modelName);
+			if (stream == null) {
+				throw new FileNotFoundException("Can't find the model " + m_modelName +
+						" as a file or as a resource");
+			}
+		}
+		if (stream != null) {
+			BufferedInputStream inStream = new BufferedInputStream(stream);
+			try {
+				if (KEAFilter.isBinaryModel(inStream)) {
+					m_KEAFilter = KEAFilter.loadBinaryModel(inStream, m_modelName);
+				} else {
+					ObjectInputStream in = new ObjectInputStream(inStream);
+					m_KEAFilter = (KEAFilter)in.readObject();
+				}
+			} finally {
+				inStream.close();
+			}
+		}
 		
 		// If TFxIDF values are to be computed from the test corpus
 		if (m_buildGlobal == true) {
 			if (m_debug) {
 				System.err.println("-- The global dictionaries will be built from this test collection..");
 			}
-			m_KEAFilter.m_Dictionary = null;			
+			m_KEAFilter.setDocumentFrequencies(null);
 		}
-		in.close();
+		m_Engine = null;
 	}
 	
 	/**
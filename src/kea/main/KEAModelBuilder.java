@@ -18,6 +18,7 @@ import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
 import weka.core.Utils;
+import kea.filters.DocumentSource;
 import kea.filters.KEAFilter;
 import kea.stemmers.*;
 import kea.stopwords.*;
@@ -57,7 +58,14 @@ import kea.stopwords.*;
  * Use keyphrase frequency statistic.<p>
  *
  * -r<br>
- * Use agrovoc relation as feature.<p>
+ * Reads the documents twice instead of keeping them in memory.<p>
+ *
+ * -b<br>
+ * Saves the model in the binary model format.<p>
+ *
+ * -g "file"<br>
+ * Keeps the document frequencies off the heap, in the given file
+ * (implies -r and -b).<p>
  *
  * -p<br>
  * Disallow internal periods.<p>
@@ -80,6 +88,9 @@ import kea.stopwords.*;
  * -n<br>
  * Do not check for proper nouns. <p>
  *
+ * -w "number of threads"<br>
+ * Sets the number of threads used for training (default: 1). <p>
+ *
  * @author Eibe Frank (eibe@cs.waikato.ac.nz)
  * @version 1.0
  */
@@ -121,6 +132,18 @@ public class KEAModelBuilder implements OptionHandler {
 	/** The minimum number of occurences of a phrase */
 	private int m_MinNumOccur = 2;
 	
+	/** The number of threads used for training */
+	private int m_NumThreads = 1;
+	
+	/** Read the documents twice instead of keeping them in memory? */
+	private boolean m_Streaming = false;
+	
+	/** Save the model in the binary model format? */
+	private boolean m_BinaryModel = false;
+	
+	/** The file for the document frequencies, or null to keep them on the heap */
+	private File m_DocumentFrequencyFile = null;
+	
 	/** The KEA filter object */
 	KEAFilter m_KEAFilter = null;
 	
@@ -206,6 +229,92 @@ public class KEAModelBuilder implements OptionHandler {
 		m_MinNumOccur = newMinNumOccur;
 	}
 	
+	/**
+	 * Get the number of threads used for training.
+	 *
+	 * @return Value of NumThreads.
+	 */
+	public int getNumThreads() {
+		
+		return m_NumThreads;
+	}
+	
+	/**
+	 * Set the number of threads used for training.
+	 *
+	 * @param newNumThreads Value to assign to NumThreads.
+	 */
+	public void setNumThreads(int newNumThreads) {
+		
+		m_NumThreads = newNumThreads;
+	}
+	
+	/**
+	 * Get whether the documents are read twice instead of being
+	 * kept in memory.
+	 *
+	 * @return Value of Streaming.
+	 */
+	public boolean getStreaming() {
+		
+		return m_Streaming;
+	}
+	
+	/**
+	 * Set whether the documents are read twice instead of being
+	 * kept in memory. The model is the same either way.
+	 *
+	 * @param newStreaming Value to assign to Streaming.
+	 */
+	public void setStreaming(boolean newStreaming) {
+		
+		m_Streaming = newStreaming;
+	}
+	
+	/**
+	 * Get whether the model is saved in the binary model format.
+	 *
+	 * @return Value of BinaryModel.
+	 */
+	public boolean getBinaryModel() {
+		
+		return m_BinaryModel;
+	}
+	
+	/**
+	 * Set whether the model is saved in the binary model format,
+	 * which loads much faster than a serialized model.
+	 *
+	 * @param newBinaryModel Value to assign to BinaryModel.
+	 */
+	public void setBinaryModel(boolean newBinaryModel) {
+		
+		m_BinaryModel = newBinaryModel;
+	}
+	
+	/**
+	 * Get the file the document frequencies are kept in.
+	 *
+	 * @return Value of DocumentFrequencyFile.
+	 */
+	public File getDocumentFrequencyFile() {
+		
+		return m_DocumentFrequencyFile;
+	}
+	
+	/**
+	 * Set the file the document frequencies are kept in, off the heap.
+	 * The documents are then read twice and the model is saved in the
+	 * binary model format.
+	 *
+	 * @param newDocumentFrequencyFile Value to assign to DocumentFrequencyFile
+	 * (null to keep the document frequencies on the heap).
+	 */
+	public void setDocumentFrequencyFile(File newDocumentFrequencyFile) {
+		
+		m_DocumentFrequencyFile = newDocumentFrequencyFile;
+	}
+	
 	/**
 	 * Get the value of MaxPhraseLength.
 	 *
@@ -478,6 +587,19 @@ public class KEAModelBuilder implements OptionHandler {
 	 * -n<br>
 	 * Do not check for proper nouns. <p>
 	 *
+	 * -w "number of threads"<br>
+	 * Sets the number of threads used for training (default: 1). <p>
+	 *
+	 * -r<br>
+	 * Reads the documents twice instead of keeping them in memory. <p>
+	 *
+	 * -b<br>
+	 * Saves the model in the binary model format. <p>
+	 *
+	 * -g "file"<br>
+	 * Keeps the document frequencies off the heap, in the given file
+	 * (implies -r and -b). <p>
+	 *
 	 * @param options the list of options as an array of strings
 	 * @exception Exception if an option is not supported
 	 */
@@ -556,6 +678,12 @@ public class KEAModelBuilder implements OptionHandler {
 		} else {
 			setMinNumOccur(2);
 		}
+		String numThreadsString = Utils.getOption('w', options);
+		if (numThreadsString.length() > 0) {
+			setNumThreads(Integer.parseInt(numThreadsString));
+		} else {
+			setNumThreads(1);
+		}
 		
 		String stopwordsString = Utils.getOption('s', options);
 		if (stopwordsString.length() > 0) {
@@ -572,6 +700,14 @@ public class KEAModelBuilder implements OptionHandler {
 		setUseKFrequency(Utils.getFlag('k', options));
 		setDisallowIPeriods(Utils.getFlag('p', options));
 		setCheckForProperNouns(!Utils.getFlag('n', options));
+		setStreaming(Utils.getFlag('r', options));
+		setBinaryModel(Utils.getFlag('b', options));
+		String documentFrequencyFile = Utils.getOption('g', options);
+		if (documentFrequencyFile.length() > 0) {
+			setDocumentFrequencyFile(new File(documentFrequencyFile));
+		} else {
+			setDocumentFrequencyFile(null);
+		}
 		Utils.checkForRemainingOptions(options);
 	}
 	
@@ -582,7 +718,7 @@ public class KEAModelBuilder implements OptionHandler {
 	 */
 	public String [] getOptions() {
 		
-		String [] options = new String [26];
+		String [] options = new String [32];
 		int current = 0;
 		
 		options[current++] = "-l"; 
@@ -613,6 +749,8 @@ public class KEAModelBuilder implements OptionHandler {
 		options[current++] = "" + (getMinPhraseLength());
 		options[current++] = "-o"; 
 		options[current++] = "" + (getMinNumOccur());
+		options[current++] = "-w"; 
+		options[current++] = "" + (getNumThreads());
 		options[current++] = "-s"; 
 		options[current++] = "" + (getStopwords().getClass().getName());
 		options[current++] = "-t"; 
@@ -620,6 +758,16 @@ public class KEAModelBuilder implements OptionHandler {
 		if (getCheckForProperNouns()) {
 			options[current++] = "-n";
 		}
+		if (getStreaming()) {
+			options[current++] = "-r";
+		}
+		if (getBinaryModel()) {
+			options[current++] = "-b";
+		}
+		if (getDocumentFrequencyFile() != null) {
+			options[current++] = "-g";
+			options[current++] = "" + getDocumentFrequencyFile();
+		}
 		
 		while (current < options.length) {
 			options[current++] = "";
@@ -634,7 +782,7 @@ public class KEAModelBuilder implements OptionHandler {
 	 */
 	public Enumeration<Option> listOptions() {
 		
-		Vector<Option> newVector = new Vector<Option>(14);
+		Vector<Option> newVector = new Vector<Option>(19);
 		
 		newVector.addElement(new Option(
 				"\tSpecifies name of directory.",
@@ -672,6 +820,9 @@ public class KEAModelBuilder implements OptionHandler {
 		newVector.addElement(new Option(
 				"\tSet the minimum number of occurences (default: 2).",
 				"o", 1, "-o"));
+		newVector.addElement(new Option(
+				"\tSets the number of threads used for training (default: 1).",
+				"w", 1, "-w <number of threads>"));
 		newVector.addElement(new Option(
 				"\tSets the list of stopwords to use (default: StopwordsEnglish).",
 				"s", 1, "-s <name of stopwords class>"));
@@ -681,6 +832,16 @@ public class KEAModelBuilder implements OptionHandler {
 		newVector.addElement(new Option(
 				"\tDo not check for proper nouns.",
 				"n", 0, "-n"));
+		newVector.addElement(new Option(
+				"\tRead the documents twice instead of keeping them in memory.",
+				"r", 0, "-r"));
+		newVector.addElement(new Option(
+				"\tSave the model in the binary model format.",
+				"b", 0, "-b"));
+		newVector.addElement(new Option(
+				"\tKeep the document frequencies off the heap, in the given file\n" +
+				"\t(implies -r and -b).",
+				"g", 1, "-g <file>"));
 		
 		return newVector.elements();
 	}
@@ -735,6 +896,7 @@ public class KEAModelBuilder implements OptionHandler {
 		m_KEAFilter.setMaxPhraseLength(getMaxPhraseLength());
 		m_KEAFilter.setMinPhraseLength(getMinPhraseLength());
 		m_KEAFilter.setMinNumOccur(getMinNumOccur());
+		m_KEAFilter.setNumThreads(getNumThreads());
 		m_KEAFilter.setStemmer(getStemmer());
 		m_KEAFilter.setDocumentLanguage(getDocumentLanguage());
 		m_KEAFilter.setVocabulary(getVocabulary());
@@ -750,6 +912,12 @@ public class KEAModelBuilder implements OptionHandler {
 		}
 		m_KEAFilter.setNumFeature();
 		
+		if (getStreaming() || (getDocumentFrequencyFile() != null)) {
+			m_KEAFilter.setDocumentFrequencyFile(getDocumentFrequencyFile());
+			buildModelStreaming(stems);
+			return;
+		}
+		
 		System.err.println("-- Reading the Documents... ");
 		
 		Enumeration elem = stems.keys();
@@ -805,6 +973,80 @@ public class KEAModelBuilder implements OptionHandler {
 		m_KEAFilter.batchFinished();
 		
 		while ((m_KEAFilter.output()) != null) {};
+
+		if (m_debug) {
+			System.err.println("-- Stem cache: " + StemCache.getCache(m_Stemmer.getClass()));
+		}
+	}
+	
+	/**
+	 * Trains the filter on the documents without keeping them in
+	 * memory. The documents are read once to build the global
+	 * dictionaries and once more to compute the feature values.
+	 */
+	private void buildModelStreaming(Hashtable stems) throws Exception {
+		
+		System.err.println("-- Reading the Documents (twice)... ");
+		
+		final String[] names = new String[stems.size()];
+		Enumeration elem = stems.keys();
+		for (int i = 0; i < names.length; i++) {
+			names[i] = (String)elem.nextElement();
+		}
+		
+		m_KEAFilter.train(new DocumentSource() {
+			public int numDocuments() {
+				return names.length;
+			}
+			public String getText(int doc) {
+				try {
+					return readFile(new File(m_dirName + "/" + names[doc] + ".txt"));
+				} catch (Exception e) {
+					if (m_debug) {
+						System.err.println("Can't find document for stem " + names[doc] + ".");
+					}
+					return null;
+				}
+			}
+			public String getKeyphrases(int doc) {
+				try {
+					return readFile(new File(m_dirName + "/" + names[doc] + ".key"));
+				} catch (Exception e) {
+					if (m_debug) {
+						System.err.println("Can't find keyphrases for stem " + names[doc] + ".");
+					}
+					return null;
+				}
+			}
+		});
+		
+		if (m_debug) {
+			System.err.println("-- Stem cache: " + StemCache.getCache(m_Stemmer.getClass()));
+		}
+	}
+	
+	/**
+	 * Reads a file in the encoding set for this model builder.
+	 */
+	private String readFile(File file) throws Exception {
+		
+		InputStreamReader is;
+		if (!m_encoding.equals("default")) {
+			is = new InputStreamReader(new FileInputStream(file), m_encoding);
+		} else {
+			is = new InputStreamReader(new FileInputStream(file));
+		}
+		try {
+			StringBuffer str = new StringBuffer();
+			char[] buffer = new char[8192];
+			int n;
+			while ((n = is.read(buffer)) != -1) {
+				str.append(buffer, 0, n);
+			}
+			return str.toString();
+		} finally {
+			is.close();
+		}
 	}
 	
 	/** 
@@ -812,10 +1054,14 @@ public class KEAModelBuilder implements OptionHandler {
 	 */
 	public void saveModel() throws Exception {
 		
+		if (getBinaryModel() || (getDocumentFrequencyFile() != null)) {
+			m_KEAFilter.saveBinaryModel(new File(m_modelName));
+			return;
+		}
+		
 		BufferedOutputStream bufferedOut = 
 			new BufferedOutputStream(new FileOutputStream(m_modelName));
 		ObjectOutputStream out = new ObjectOutputStream(bufferedOut);
-		m_KEAFilter.getStemmed2surface().clear();
 		out.writeObject(m_KEAFilter);
 		out.flush();
 		out.close();
@@ -0,0 +1,59 @@
+package kea.main;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.ObjectInputStream;
+
+import kea.filters.KEAFilter;
+
+/**
+ * Converts a serialized model, as saved by earlier versions of
+ * KEAModelBuilder, into the binary model format, which
+ * KEAKeyphraseExtractor maps into memory instead of deserializing it.
+ *
+ * Usage: java kea.main.KEAModelConverter "serialized model" "binary model"
+ *
+ * @version 1.0
+ */
+public class KEAModelConverter {
+
+	/**
+	 * Converts a model.
+	 *
+	 * @param from the serialized model
+	 * @param to the binary model to write
+	 * @exception Exception if the model can't be read or converted
+	 */
+	public static void convert(File from, File to) throws Exception {
+
+		ObjectInputStream in = new ObjectInputStream(
+				new BufferedInputStream(new FileInputStream(from)));
+		KEAFilter filter;
+		try {
+			filter = (KEAFilter)in.readObject();
+		} finally {
+			in.close();
+		}
+		filter.saveBinaryModel(to);
+	}
+
+	/**
+	 * The main method.
+	 */
+	public static void main(String[] args) {
+
+		if (args.length != 2) {
+			System.err.println("Usage: java kea.main.KEAModelConverter " +
+			"<serialized model> <binary model>");
+			System.exit(1);
+		}
+		try {
+			convert(new File(args[0]), new File(args[1]));
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -82,7 +82,11 @@ public class FrenchStemmer extends Stemmer {
 	 */
     private boolean modified;
 
-    public String stem(String str)  {
+    /**
+     * Stems the given word. Synchronized because the stemming regions
+     * (R0, RV, R1, R2) are kept in fields while a word is processed.
+     */
+    public synchronized String stem(String str)  {
         // check for zero length
 	if (str.length() > 3) {
 	    // all characters must be letters
@@ -15,4 +15,11 @@ public class NoStemmer extends Stemmer {
 	public String stem(String str)  {
 	return str.toLowerCase();
     }
+
+    /**
+     * Nothing to cache.
+     */
+    public String stemCached(String str)  {
+	return stem(str);
+    }
 }
\ No newline at end of file
@@ -13,7 +13,8 @@ public class SpanishStemmer extends Stemmer {
 	
 	private SpanishStemmerSB stemmer = new SpanishStemmerSB();		
 	
-	public String stemSB(String str) {
+	// synchronized: the Snowball stemmer keeps the current word in fields
+	public synchronized String stemSB(String str) {
 		stemmer.setCurrent(str);
 		stemmer.stem();
 		return stemmer.getCurrent();
@@ -0,0 +1,255 @@
+package kea.stemmers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of the stems of single words, shared by all
+ * stemmers of the same class. The same words are stemmed over and
+ * over again (once for every n-gram they occur in, and again in
+ * every pass over a document), so most calls are answered from
+ * the cache.
+ *
+ * The cache is split into segments, each an LRU map with its own lock,
+ * so it can be used from several threads at the same time. When a
+ * segment is full, its least recently used word is evicted. The stem
+ * of a word is computed outside the lock, so a word may be stemmed
+ * twice if two threads ask for it at the same time. Stemmers must
+ * therefore return the same stem for a word every time they are asked.
+ *
+ * @version 1.0
+ */
+public class StemCache {
+
+	/** The number of segments */
+	private static final int NUM_SEGMENTS = 16;
+
+	/** The capacity of new caches */
+	private static volatile int m_DefaultCapacity = 100000;
+
+	/** The cache of each stemmer class */
+	private static final ConcurrentHashMap<Class<?>, StemCache> m_Caches =
+		new ConcurrentHashMap<Class<?>, StemCache>();
+
+	/** The segments */
+	private final Segment[] m_Segments;
+
+	/** The maximum number of words in the cache */
+	private volatile int m_Capacity;
+
+	/** Statistics */
+	private final AtomicLong m_Hits = new AtomicLong();
+	private final AtomicLong m_Misses = new AtomicLong();
+	private final AtomicLong m_Evictions = new AtomicLong();
+
+	/**
+	 * An LRU map of words to stems.
+	 */
+	private class Segment extends LinkedHashMap<String, String> {
+
+		private static final long serialVersionUID = 1L;
+
+		/** The maximum number of words in this segment */
+		int m_MaxSize;
+
+		Segment(int maxSize) {
+			super(16, 0.75f, true);
+			m_MaxSize = maxSize;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			if (size() > m_MaxSize) {
+				m_Evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Evicts words until the segment is not larger than its
+		 * maximum size.
+		 */
+		void trim() {
+			Iterator<String> it = keySet().iterator();
+			while ((size() > m_MaxSize) && it.hasNext()) {
+				it.next();
+				it.remove();
+				m_Evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private StemCache(int capacity) {
+		m_Capacity = Math.max(0, capacity);
+		m_Segments = new Segment[NUM_SEGMENTS];
+		for (int i = 0; i < NUM_SEGMENTS; i++) {
+			m_Segments[i] = new Segment(segmentSize(m_Capacity));
+		}
+	}
+
+	/**
+	 * Returns the cache used by all stemmers of the given class,
+	 * creating it with the default capacity if necessary.
+	 */
+	public static StemCache getCache(Class<? extends Stemmer> stemmerClass) {
+		StemCache cache = m_Caches.get(stemmerClass);
+		if (cache == null) {
+			cache = new StemCache(m_DefaultCapacity);
+			StemCache existing = m_Caches.putIfAbsent(stemmerClass, cache);
+			if (existing != null) {
+				cache = existing;
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns the capacity of caches that have not been created yet.
+	 */
+	public static int getDefaultCapacity() {
+		return m_DefaultCapacity;
+	}
+
+	/**
+	 * Sets the capacity of caches that have not been created yet
+	 * (0 disables caching).
+	 */
+	public static void setDefaultCapacity(int capacity) {
+		m_DefaultCapacity = Math.max(0, capacity);
+	}
+
+	/**
+	 * Returns the statistics of all caches, one line per stemmer class.
+	 */
+	public static String statistics() {
+		StringBuffer result = new StringBuffer();
+		for (Map.Entry<Class<?>, StemCache> entry : m_Caches.entrySet()) {
+			result.append(entry.getKey().getName()).append(": ")
+				.append(entry.getValue()).append("\n");
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Returns the stem of a word, stemming it with the given stemmer
+	 * if it is not in the cache.
+	 */
+	public String stem(Stemmer stemmer, String word) {
+
+		if (m_Capacity == 0) {
+			return stemmer.stem(word);
+		}
+		Segment segment = m_Segments[(spread(word.hashCode()) & 0x7fffffff) % NUM_SEGMENTS];
+		String stem;
+		synchronized (segment) {
+			stem = segment.get(word);
+		}
+		if (stem != null) {
+			m_Hits.incrementAndGet();
+			return stem;
+		}
+		m_Misses.incrementAndGet();
+		stem = stemmer.stem(word);
+		if (stem != null) {
+			synchronized (segment) {
+				segment.put(word, stem);
+			}
+		}
+		return stem;
+	}
+
+	/**
+	 * Returns the maximum number of words in the cache.
+	 */
+	public int getCapacity() {
+		return m_Capacity;
+	}
+
+	/**
+	 * Sets the maximum number of words in the cache, evicting words
+	 * if necessary (0 disables caching).
+	 */
+	public void setCapacity(int capacity) {
+		m_Capacity = Math.max(0, capacity);
+		for (int i = 0; i < NUM_SEGMENTS; i++) {
+			Segment segment = m_Segments[i];
+			synchronized (segment) {
+				segment.m_MaxSize = segmentSize(m_Capacity);
+				segment.trim();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of words in the cache.
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < NUM_SEGMENTS; i++) {
+			synchronized (m_Segments[i]) {
+				size += m_Segments[i].size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Removes all words from the cache and resets the statistics.
+	 */
+	public void clear() {
+		for (int i = 0; i < NUM_SEGMENTS; i++) {
+			synchronized (m_Segments[i]) {
+				m_Segments[i].clear();
+			}
+		}
+		m_Hits.set(0);
+		m_Misses.set(0);
+		m_Evictions.set(0);
+	}
+
+	/**
+	 * Returns the number of words that were found in the cache.
+	 */
+	public long getHits() {
+		return m_Hits.get();
+	}
+
+	/**
+	 * Returns the number of words that had to be stemmed.
+	 */
+	public long getMisses() {
+		return m_Misses.get();
+	}
+
+	/**
+	 * Returns the number of words evicted from the cache.
+	 */
+	public long getEvictions() {
+		return m_Evictions.get();
+	}
+
+	/**
+	 * Returns the fraction of words that were found in the cache.
+	 */
+	public double getHitRate() {
+		long hits = m_Hits.get(), total = hits + m_Misses.get();
+		return (total == 0) ? 0 : (double)hits / total;
+	}
+
+	public String toString() {
+		return size() + "/" + m_Capacity + " words, " + getHits() + " hits, " +
+			getMisses() + " misses, " + getEvictions() + " evictions, hit rate " +
+			Math.round(getHitRate() * 1000) / 10.0 + "%";
+	}
+
+	private static int segmentSize(int capacity) {
+		return (capacity + NUM_SEGMENTS - 1) / NUM_SEGMENTS;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
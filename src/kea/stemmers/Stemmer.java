@@ -11,11 +11,25 @@ import java.io.*;
  */
 public abstract class Stemmer implements Serializable {
 
+  /** The stem cache of this stemmer's class */
+  private transient StemCache m_Cache;
+
   /**
    * Iterated stemming of the given word.
    */
   public abstract String stem(String str);
 
+  /**
+   * Stems the given word, using the stem cache shared by
+   * all stemmers of this class.
+   */
+  public String stemCached(String str) {
+      if (m_Cache == null) {
+	  m_Cache = StemCache.getCache(getClass());
+      }
+      return m_Cache.stem(this, str);
+  }
+
   /**
    * Stems everything in the given string.
    */
@@ -35,14 +49,14 @@ public abstract class Stemmer implements Serializable {
 	      }
 	  } else {
 	      if (start != -1) {
-		  result.append(stem(str.substring(start, j)));
+		  result.append(stemCached(str.substring(start, j)));
 		  start = -1;
 	      }
 	      result.append(c);
 	  }
       }
       if (start != -1) {
-	  result.append(stem(str.substring(start, str.length())));
+	  result.append(stemCached(str.substring(start, str.length())));
       }
       return result.toString();  
   }
@@ -11,6 +11,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.net.URL;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -75,6 +76,13 @@ public class Stopwords implements Serializable{
 	public boolean isStopword(String str) {
 		return m_Stopwords.contains(str.toLowerCase());
 	}
+
+	/**
+	 * Returns an unmodifiable view of the stop words.
+	 */
+	public Set<String> getStopwordSet() {
+		return Collections.unmodifiableSet(m_Stopwords);
+	}
 }
 
 
@@ -0,0 +1,21 @@
+package kea.util;
+
+/**
+ * A read-only table of phrase frequencies, such as the document
+ * frequencies or the keyphrase frequencies of a model.
+ *
+ * @version 1.0
+ */
+public interface FrequencyTable {
+
+	/**
+	 * Returns the frequency of a phrase, or 0 if the phrase is not
+	 * in the table.
+	 */
+	int frequency(String phrase);
+
+	/**
+	 * Returns the number of phrases in the table.
+	 */
+	int size();
+}
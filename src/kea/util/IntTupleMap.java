@@ -0,0 +1,162 @@
+package kea.util;
+
+/**
+ * Assigns consecutive numbers (0, 1, 2, ...) to tuples of ints,
+ * in the order in which the tuples are first added. The tuples are
+ * kept in a single int array and looked up in an open addressing
+ * hash table, so adding a tuple that is already known allocates
+ * nothing.
+ *
+ * @version 1.0
+ */
+public class IntTupleMap {
+
+	/** The elements of all tuples, one after the other */
+	private int[] m_Pool = new int[64];
+
+	/** The number of elements used in the pool */
+	private int m_PoolSize = 0;
+
+	/** Where each tuple starts in the pool (plus one entry for the end) */
+	private int[] m_Offsets = new int[17];
+
+	/** The hash code of each tuple */
+	private int[] m_Hashes = new int[16];
+
+	/** The number of tuples */
+	private int m_Size = 0;
+
+	/** The hash table: tuple number plus one, or 0 for a free slot */
+	private int[] m_Table = new int[32];
+
+	/**
+	 * Returns the number of a tuple, adding the tuple if it is new.
+	 *
+	 * @param tuple the array holding the tuple
+	 * @param length the length of the tuple (taken from the start of the array)
+	 * @return the number of the tuple
+	 */
+	public int add(int[] tuple, int length) {
+
+		int hash = hash(tuple, length);
+		int mask = m_Table.length - 1;
+		int slot = hash & mask;
+		while (m_Table[slot] != 0) {
+			int index = m_Table[slot] - 1;
+			if ((m_Hashes[index] == hash) && equals(index, tuple, length)) {
+				return index;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		// New tuple
+		if (m_PoolSize + length > m_Pool.length) {
+			m_Pool = grow(m_Pool, m_PoolSize + length);
+		}
+		System.arraycopy(tuple, 0, m_Pool, m_PoolSize, length);
+		if (m_Size + 1 >= m_Offsets.length) {
+			m_Offsets = grow(m_Offsets, m_Size + 2);
+		}
+		if (m_Size >= m_Hashes.length) {
+			m_Hashes = grow(m_Hashes, m_Size + 1);
+		}
+		m_Offsets[m_Size] = m_PoolSize;
+		m_PoolSize += length;
+		m_Offsets[m_Size + 1] = m_PoolSize;
+		m_Hashes[m_Size] = hash;
+		m_Table[slot] = ++m_Size;
+
+		if (m_Size * 2 > m_Table.length) {
+			rehash();
+		}
+		return m_Size - 1;
+	}
+
+	/**
+	 * Returns the number of a tuple, or -1 if the tuple has not been
+	 * added. Does not change the map.
+	 *
+	 * @param tuple the array holding the tuple
+	 * @param length the length of the tuple (taken from the start of the array)
+	 * @return the number of the tuple, or -1
+	 */
+	public int indexOf(int[] tuple, int length) {
+
+		int hash = hash(tuple, length);
+		int mask = m_Table.length - 1;
+		int slot = hash & mask;
+		while (m_Table[slot] != 0) {
+			int index = m_Table[slot] - 1;
+			if ((m_Hashes[index] == hash) && equals(index, tuple, length)) {
+				return index;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of tuples.
+	 */
+	public int size() {
+		return m_Size;
+	}
+
+	/**
+	 * Returns the length of the given tuple.
+	 */
+	public int length(int index) {
+		return m_Offsets[index + 1] - m_Offsets[index];
+	}
+
+	/**
+	 * Returns an element of the given tuple.
+	 */
+	public int get(int index, int pos) {
+		return m_Pool[m_Offsets[index] + pos];
+	}
+
+	private boolean equals(int index, int[] tuple, int length) {
+		int offset = m_Offsets[index];
+		if (m_Offsets[index + 1] - offset != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (m_Pool[offset + i] != tuple[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(int[] tuple, int length) {
+		int hash = length;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + tuple[i];
+		}
+		// Spread the bits, as the table size is a power of two
+		hash ^= (hash >>> 16);
+		hash *= 0x85ebca6b;
+		hash ^= (hash >>> 13);
+		return hash;
+	}
+
+	private void rehash() {
+		int[] table = new int[m_Table.length * 2];
+		int mask = table.length - 1;
+		for (int index = 0; index < m_Size; index++) {
+			int slot = m_Hashes[index] & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = index + 1;
+		}
+		m_Table = table;
+	}
+
+	private static int[] grow(int[] array, int minLength) {
+		int[] result = new int[Math.max(minLength, array.length * 2)];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+}
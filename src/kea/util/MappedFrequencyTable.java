@@ -0,0 +1,150 @@
+package kea.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A frequency table stored in a (memory-mapped) byte buffer, so that
+ * it does not have to be read into objects on the heap. The phrases
+ * are sorted and looked up by binary search. The table is laid out as
+ *
+ * <pre>
+ * int n                  the number of phrases
+ * int offsets[n + 1]     where each phrase starts in chars[]
+ * int frequencies[n]     the frequency of each phrase
+ * char chars[offsets[n]] the phrases, in String.compareTo() order
+ * padding to a multiple of 4 bytes
+ * </pre>
+ *
+ * The table can be used from several threads at the same time.
+ *
+ * @version 1.0
+ */
+public class MappedFrequencyTable implements FrequencyTable {
+
+	/** The number of phrases */
+	private final int m_Size;
+
+	/** Where each phrase starts in m_Chars */
+	private final IntBuffer m_Offsets;
+
+	/** The frequency of each phrase */
+	private final IntBuffer m_Frequencies;
+
+	/** The phrases */
+	private final CharBuffer m_Chars;
+
+	/**
+	 * Reads a table from the position of a buffer, and advances the
+	 * position of the buffer to the end of the table. The table keeps
+	 * using the contents of the buffer.
+	 *
+	 * @param buffer the buffer
+	 */
+	public MappedFrequencyTable(ByteBuffer buffer) {
+
+		m_Size = buffer.getInt();
+		m_Offsets = slice(buffer, 4 * (m_Size + 1)).asIntBuffer();
+		m_Frequencies = slice(buffer, 4 * m_Size).asIntBuffer();
+		int numChars = m_Offsets.get(m_Size);
+		m_Chars = slice(buffer, 2 * numChars).asCharBuffer();
+		buffer.position(buffer.position() + padding(2 * numChars));
+	}
+
+	/**
+	 * Writes the phrases and frequencies of a dictionary in the layout
+	 * read by the constructor.
+	 *
+	 * @param out the stream to write to
+	 * @param dictionary the phrases and their frequencies
+	 * @exception IOException if the table can't be written
+	 */
+	public static void write(DataOutputStream out, StringIntMap dictionary)
+	throws IOException {
+
+		String[] phrases = new String[dictionary.size()];
+		for (int i = 0; i < phrases.length; i++) {
+			phrases[i] = dictionary.key(i);
+		}
+		Arrays.sort(phrases);
+
+		out.writeInt(phrases.length);
+		int offset = 0;
+		out.writeInt(offset);
+		for (int i = 0; i < phrases.length; i++) {
+			offset += phrases[i].length();
+			out.writeInt(offset);
+		}
+		for (int i = 0; i < phrases.length; i++) {
+			out.writeInt(dictionary.get(phrases[i]));
+		}
+		for (int i = 0; i < phrases.length; i++) {
+			out.writeChars(phrases[i]);
+		}
+		for (int i = padding(2 * offset); i > 0; i--) {
+			out.writeByte(0);
+		}
+	}
+
+	public int frequency(String phrase) {
+
+		int lo = 0, hi = m_Size - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compare(mid, phrase);
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return m_Frequencies.get(mid);
+			}
+		}
+		return 0;
+	}
+
+	public int size() {
+		return m_Size;
+	}
+
+	/**
+	 * Compares the phrase at an index with a string, as
+	 * String.compareTo() does.
+	 */
+	private int compare(int index, String str) {
+
+		int from = m_Offsets.get(index), to = m_Offsets.get(index + 1);
+		int len = Math.min(to - from, str.length());
+		for (int i = 0; i < len; i++) {
+			char c = m_Chars.get(from + i);
+			if (c != str.charAt(i)) {
+				return c - str.charAt(i);
+			}
+		}
+		return (to - from) - str.length();
+	}
+
+	/**
+	 * Returns the next length bytes of a buffer as a buffer of their
+	 * own, and advances the position of the buffer past them.
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int length) {
+		ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		slice.order(buffer.order());
+		buffer.position(buffer.position() + length);
+		return slice;
+	}
+
+	/**
+	 * Returns the number of bytes needed to pad a length to a
+	 * multiple of 4.
+	 */
+	private static int padding(int length) {
+		return (4 - (length & 3)) & 3;
+	}
+}
@@ -0,0 +1,318 @@
+package kea.util;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A frequency table stored as a perfect hash table in a (memory-mapped)
+ * byte buffer, for dictionaries too large to be kept on the heap. The
+ * phrases are hashed into buckets, and every bucket has a displacement
+ * that sends its phrases to distinct slots of the table (hash and
+ * displace). A bucket with a single phrase stores the slot of the
+ * phrase itself instead, as a negative displacement. There are a few
+ * more slots than phrases, so that the displacements are found quickly
+ * even for tens of millions of phrases. Each slot holds the frequency
+ * of its phrase and where the phrase is stored (-1 for an empty slot),
+ * so that phrases that are not in the table can be recognized. Tables
+ * are written by PerfectHashFrequencyTableBuilder and laid out as
+ *
+ * <pre>
+ * int magic, version
+ * int n                      the number of phrases
+ * int numSlots               the number of slots (at least n)
+ * int numBuckets
+ * long seed                  the seed of the hash function
+ * int dataLength
+ * int displacements[numBuckets]
+ * int offsets[numSlots]      where the phrase of each slot is in data[]
+ * int frequencies[numSlots]  the frequency of the phrase of each slot
+ * byte data[dataLength]      the phrases: length (varint) and UTF-8 bytes
+ * padding to a multiple of 4 bytes
+ * </pre>
+ *
+ * A lookup hashes the phrase, reads three ints and compares the phrase
+ * with the stored one. It allocates no memory, and the table can be used
+ * from several threads at the same time.
+ *
+ * @version 1.0
+ */
+public class PerfectHashFrequencyTable implements FrequencyTable {
+
+	/** The first bytes of a table ("KEAH") */
+	static final int MAGIC = 0x4B454148;
+
+	/** The version of the layout */
+	static final int VERSION = 1;
+
+	/** The bytes of the table */
+	private final ByteBuffer m_Table;
+
+	/** The number of phrases */
+	private final int m_Size;
+
+	/** The number of slots */
+	private final int m_NumSlots;
+
+	/** The number of buckets */
+	private final int m_NumBuckets;
+
+	/** The seed of the hash function */
+	private final long m_Seed;
+
+	/** The displacement of each bucket */
+	private final IntBuffer m_Displacements;
+
+	/** Where the phrase of each slot is stored in m_Data */
+	private final IntBuffer m_Offsets;
+
+	/** The frequency of the phrase of each slot */
+	private final IntBuffer m_Frequencies;
+
+	/** The phrases */
+	private final ByteBuffer m_Data;
+
+	/** Buffers for encoding phrases, one per thread */
+	private static final ThreadLocal<byte[]> m_Buffers = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[256];
+		}
+	};
+
+	/**
+	 * Reads a table from the position of a buffer, and advances the
+	 * position of the buffer to the end of the table. The table keeps
+	 * using the contents of the buffer.
+	 *
+	 * @param buffer the buffer
+	 * @exception IOException if the buffer does not hold a table
+	 */
+	public PerfectHashFrequencyTable(ByteBuffer buffer) throws IOException {
+
+		int start = buffer.position();
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException("Not a perfect hash frequency table");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported version " + version +
+			" of the perfect hash frequency table");
+		}
+		m_Size = buffer.getInt();
+		m_NumSlots = buffer.getInt();
+		m_NumBuckets = buffer.getInt();
+		m_Seed = buffer.getLong();
+		int dataLength = buffer.getInt();
+		m_Displacements = slice(buffer, 4 * m_NumBuckets).asIntBuffer();
+		m_Offsets = slice(buffer, 4 * m_NumSlots).asIntBuffer();
+		m_Frequencies = slice(buffer, 4 * m_NumSlots).asIntBuffer();
+		m_Data = slice(buffer, dataLength);
+		buffer.position(buffer.position() + padding(dataLength));
+
+		int end = buffer.position();
+		buffer.position(start);
+		m_Table = slice(buffer, end - start);
+	}
+
+	/**
+	 * Maps a table written to a file by PerfectHashFrequencyTableBuilder.
+	 *
+	 * @param file the file
+	 * @return the table
+	 * @exception IOException if the file can't be mapped or does not
+	 * hold a table
+	 */
+	public static PerfectHashFrequencyTable map(File file) throws IOException {
+
+		MappedByteBuffer buffer;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		return new PerfectHashFrequencyTable(buffer);
+	}
+
+	/**
+	 * Writes the bytes of the table, so that it can be read again
+	 * from a buffer holding them.
+	 *
+	 * @param out the stream to write to
+	 * @exception IOException if the table can't be written
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+
+		ByteBuffer table = m_Table.duplicate();
+		byte[] bytes = new byte[65536];
+		while (table.hasRemaining()) {
+			int n = Math.min(bytes.length, table.remaining());
+			table.get(bytes, 0, n);
+			out.write(bytes, 0, n);
+		}
+	}
+
+	public int frequency(String phrase) {
+
+		if (m_Size == 0) {
+			return 0;
+		}
+		byte[] bytes = m_Buffers.get();
+		int length = encode(phrase, bytes);
+		if (length > bytes.length) {
+			bytes = new byte[Math.max(length, 2 * bytes.length)];
+			m_Buffers.set(bytes);
+			encode(phrase, bytes);
+		}
+
+		long hash = hash(bytes, 0, length, m_Seed);
+		int slot = slot(hash, m_Displacements.get(bucket(hash, m_NumBuckets)), m_NumSlots);
+
+		// Is it the phrase stored in the slot?
+		int offset = m_Offsets.get(slot);
+		if (offset < 0) {
+			return 0;
+		}
+		int storedLength = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = m_Data.get(offset++);
+			storedLength |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				break;
+			}
+		}
+		if (storedLength != length) {
+			return 0;
+		}
+		for (int i = 0; i < length; i++) {
+			if (m_Data.get(offset + i) != bytes[i]) {
+				return 0;
+			}
+		}
+		return m_Frequencies.get(slot);
+	}
+
+	public int size() {
+		return m_Size;
+	}
+
+	/**
+	 * Encodes a string in UTF-8. Unpaired surrogates are encoded like
+	 * other chars, so that different strings never get the same bytes.
+	 * Returns the number of bytes needed; the bytes are only complete
+	 * if this is not more than the length of the buffer.
+	 */
+	static int encode(String str, byte[] buf) {
+
+		int n = 0;
+		for (int i = 0; i < str.length(); i++) {
+			int c = str.charAt(i);
+			if (Character.isHighSurrogate((char)c) && (i + 1 < str.length()) &&
+					Character.isLowSurrogate(str.charAt(i + 1))) {
+				c = Character.toCodePoint((char)c, str.charAt(++i));
+			}
+			if (c < 0x80) {
+				put(buf, n++, c);
+			} else if (c < 0x800) {
+				put(buf, n++, 0xc0 | (c >> 6));
+				put(buf, n++, 0x80 | (c & 0x3f));
+			} else if (c < 0x10000) {
+				put(buf, n++, 0xe0 | (c >> 12));
+				put(buf, n++, 0x80 | ((c >> 6) & 0x3f));
+				put(buf, n++, 0x80 | (c & 0x3f));
+			} else {
+				put(buf, n++, 0xf0 | (c >> 18));
+				put(buf, n++, 0x80 | ((c >> 12) & 0x3f));
+				put(buf, n++, 0x80 | ((c >> 6) & 0x3f));
+				put(buf, n++, 0x80 | (c & 0x3f));
+			}
+		}
+		return n;
+	}
+
+	private static void put(byte[] buf, int i, int b) {
+		if (i < buf.length) {
+			buf[i] = (byte)b;
+		}
+	}
+
+	/**
+	 * Hashes bytes with a seed (FNV-1a followed by a final mix).
+	 */
+	static long hash(byte[] bytes, int from, int length, long seed) {
+		long hash = 0xcbf29ce484222325L ^ seed;
+		for (int i = from; i < from + length; i++) {
+			hash ^= bytes[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * Hashes the bytes at the position of a buffer.
+	 */
+	static long hash(ByteBuffer bytes, int from, int length, long seed) {
+		long hash = 0xcbf29ce484222325L ^ seed;
+		for (int i = from; i < from + length; i++) {
+			hash ^= bytes.get(i) & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * Returns the bucket of a hash.
+	 */
+	static int bucket(long hash, int numBuckets) {
+		return (int)(((hash >>> 32) * numBuckets) >>> 32);
+	}
+
+	/**
+	 * Returns the slot of a hash, for the displacement of its bucket.
+	 * A negative displacement d stands for slot -d - 1.
+	 */
+	static int slot(long hash, int displacement, int size) {
+		if (displacement < 0) {
+			return -displacement - 1;
+		}
+		long h = mix(hash + (displacement + 1) * 0x9e3779b97f4a7c15L);
+		return (int)(((h >>> 32) * size) >>> 32);
+	}
+
+	/**
+	 * The final mix of MurmurHash3.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Returns the next length bytes of a buffer as a buffer of their
+	 * own, and advances the position of the buffer past them.
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int length) {
+		ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		slice.order(buffer.order());
+		buffer.position(buffer.position() + length);
+		return slice;
+	}
+
+	/**
+	 * Returns the number of bytes needed to pad a length to a
+	 * multiple of 4.
+	 */
+	static int padding(int length) {
+		return (4 - (length & 3)) & 3;
+	}
+}
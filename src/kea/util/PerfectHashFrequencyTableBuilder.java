@@ -0,0 +1,481 @@
+package kea.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Counts phrases and writes their frequencies as a
+ * PerfectHashFrequencyTable, without keeping all phrases on the heap.
+ * The phrases are counted in memory until there are too many of them;
+ * the counts are then sorted and spilled to a temporary file. write()
+ * merges the spilled runs, stores the phrases in a temporary data file
+ * and builds the perfect hash function over them, so at that point
+ * only about 32 bytes per phrase are kept on the heap.
+ *
+ * The phrases can be added from several threads at the same time.
+ * The table written is the same for any order in which they are added.
+ *
+ * @version 1.0
+ */
+public class PerfectHashFrequencyTableBuilder {
+
+	/** The average number of phrases per bucket */
+	private static final int BUCKET_SIZE = 4;
+
+	/** The number of phrases per extra slot (about 2% more slots than phrases) */
+	private static final int PHRASES_PER_EXTRA_SLOT = 50;
+
+	/** The number of displacements tried for a bucket before giving up */
+	private static final int MAX_DISPLACEMENT = 1 << 20;
+
+	/** The number of seeds tried before giving up */
+	private static final int MAX_SEEDS = 16;
+
+	/** The directory for the temporary files */
+	private final File m_TempDir;
+
+	/** The number of phrases counted in memory before spilling */
+	private final int m_MaxEntries;
+
+	/** The phrases counted in memory */
+	private StringIntMap m_Counts = new StringIntMap();
+
+	/** The spilled runs */
+	private final ArrayList<File> m_Runs = new ArrayList<File>();
+
+	/**
+	 * Creates a builder.
+	 *
+	 * @param tempDir the directory for the temporary files (null for
+	 * the default temporary directory)
+	 * @param maxEntries the number of phrases counted in memory before
+	 * the counts are spilled to disk
+	 */
+	public PerfectHashFrequencyTableBuilder(File tempDir, int maxEntries) {
+		m_TempDir = tempDir;
+		m_MaxEntries = Math.max(1, maxEntries);
+	}
+
+	/**
+	 * Adds a count to the frequency of a phrase.
+	 *
+	 * @param phrase the phrase
+	 * @param count the count to add
+	 * @exception IOException if the counts can't be spilled
+	 */
+	public synchronized void add(String phrase, int count) throws IOException {
+		m_Counts.add(phrase, count);
+		if (m_Counts.size() >= m_MaxEntries) {
+			spill();
+		}
+	}
+
+	/**
+	 * Adds one to the frequency of each phrase, for instance the
+	 * phrases occurring in a document.
+	 *
+	 * @param phrases the phrases
+	 * @exception IOException if the counts can't be spilled
+	 */
+	public synchronized void addAll(Collection<String> phrases) throws IOException {
+		Iterator<String> it = phrases.iterator();
+		while (it.hasNext()) {
+			add(it.next(), 1);
+		}
+	}
+
+	/**
+	 * Writes the table, and removes the temporary files. The builder
+	 * can't be used afterwards.
+	 *
+	 * @param file the file to write the table to
+	 * @exception IOException if the table can't be written
+	 */
+	public synchronized void write(File file) throws IOException {
+
+		File data = null;
+		try {
+			if (m_Counts.size() > 0) {
+				spill();
+			}
+			m_Counts = null;
+
+			// Merge the runs into the data file
+			data = File.createTempFile("kea-phrases", ".tmp", m_TempDir);
+			IntArray offsets = new IntArray(), counts = new IntArray();
+			int dataLength = merge(data, offsets, counts);
+			for (int i = 0; i < m_Runs.size(); i++) {
+				m_Runs.get(i).delete();
+			}
+			m_Runs.clear();
+
+			// Build the hash function
+			MappedByteBuffer bytes;
+			RandomAccessFile raf = new RandomAccessFile(data, "r");
+			try {
+				bytes = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, dataLength);
+			} finally {
+				raf.close();
+			}
+			int n = offsets.size();
+			int numSlots = n + n / PHRASES_PER_EXTRA_SLOT;
+			int numBuckets = n / BUCKET_SIZE + 1;
+			int[] displacements = null;
+			int[] slots = new int[n];
+			long seed = 0;
+			while (displacements == null) {
+				long[] hashes = new long[n];
+				for (int i = 0; i < n; i++) {
+					int offset = offsets.get(i);
+					int length = 0;
+					for (int shift = 0; ; shift += 7) {
+						byte b = bytes.get(offset++);
+						length |= (b & 0x7f) << shift;
+						if (b >= 0) {
+							break;
+						}
+					}
+					hashes[i] = PerfectHashFrequencyTable.hash(bytes, offset, length, seed);
+				}
+				displacements = displace(hashes, numBuckets, numSlots, slots);
+				if (displacements == null) {
+					if (++seed == MAX_SEEDS) {
+						throw new IOException("Can't build a perfect hash function for the phrases");
+					}
+				}
+			}
+
+			// Write the table
+			int[] slotOffsets = new int[numSlots], slotCounts = new int[numSlots];
+			Arrays.fill(slotOffsets, -1);
+			for (int i = 0; i < n; i++) {
+				slotOffsets[slots[i]] = offsets.get(i);
+				slotCounts[slots[i]] = counts.get(i);
+			}
+			offsets = null;
+			counts = null;
+			slots = null;
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file), 65536));
+			try {
+				out.writeInt(PerfectHashFrequencyTable.MAGIC);
+				out.writeInt(PerfectHashFrequencyTable.VERSION);
+				out.writeInt(n);
+				out.writeInt(numSlots);
+				out.writeInt(numBuckets);
+				out.writeLong(seed);
+				out.writeInt(dataLength);
+				for (int i = 0; i < numBuckets; i++) {
+					out.writeInt(displacements[i]);
+				}
+				for (int i = 0; i < numSlots; i++) {
+					out.writeInt(slotOffsets[i]);
+				}
+				for (int i = 0; i < numSlots; i++) {
+					out.writeInt(slotCounts[i]);
+				}
+				byte[] buffer = new byte[65536];
+				bytes.position(0);
+				while (bytes.hasRemaining()) {
+					int length = Math.min(buffer.length, bytes.remaining());
+					bytes.get(buffer, 0, length);
+					out.write(buffer, 0, length);
+				}
+				for (int i = PerfectHashFrequencyTable.padding(dataLength); i > 0; i--) {
+					out.writeByte(0);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			for (int i = 0; i < m_Runs.size(); i++) {
+				m_Runs.get(i).delete();
+			}
+			if (data != null) {
+				data.delete();
+			}
+		}
+	}
+
+	/**
+	 * Sorts the phrases counted in memory and writes them to a run.
+	 */
+	private void spill() throws IOException {
+
+		String[] phrases = new String[m_Counts.size()];
+		for (int i = 0; i < phrases.length; i++) {
+			phrases[i] = m_Counts.key(i);
+		}
+		Arrays.sort(phrases);
+
+		File run = File.createTempFile("kea-run", ".tmp", m_TempDir);
+		m_Runs.add(run);
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(run), 65536));
+		try {
+			for (int i = 0; i < phrases.length; i++) {
+				out.writeInt(phrases[i].length());
+				out.writeChars(phrases[i]);
+				out.writeInt(m_Counts.get(phrases[i]));
+			}
+		} finally {
+			out.close();
+		}
+		m_Counts = new StringIntMap();
+	}
+
+	/**
+	 * Merges the runs, adding up the counts of each phrase, and writes
+	 * the phrases to the data file in the layout of the table.
+	 *
+	 * @return the length of the data file
+	 */
+	private int merge(File data, IntArray offsets, IntArray counts) throws IOException {
+
+		PriorityQueue<Run> queue = new PriorityQueue<Run>();
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(data), 65536));
+		try {
+			for (int i = 0; i < m_Runs.size(); i++) {
+				Run run = new Run(m_Runs.get(i));
+				if (run.next()) {
+					queue.add(run);
+				} else {
+					run.close();
+				}
+			}
+
+			byte[] bytes = new byte[256];
+			long length = 0;
+			while (!queue.isEmpty()) {
+				Run run = queue.poll();
+				String phrase = run.m_Phrase;
+				int count = run.m_Count;
+				if (run.next()) {
+					queue.add(run);
+				} else {
+					run.close();
+				}
+				while (!queue.isEmpty() && queue.peek().m_Phrase.equals(phrase)) {
+					run = queue.poll();
+					count += run.m_Count;
+					if (run.next()) {
+						queue.add(run);
+					} else {
+						run.close();
+					}
+				}
+
+				int n = PerfectHashFrequencyTable.encode(phrase, bytes);
+				if (n > bytes.length) {
+					bytes = new byte[2 * n];
+					PerfectHashFrequencyTable.encode(phrase, bytes);
+				}
+				if (length + n + 5 > Integer.MAX_VALUE) {
+					throw new IOException("Too many phrases for a perfect hash frequency table");
+				}
+				offsets.add((int)length);
+				counts.add(count);
+				for (int v = n; ; v >>>= 7) {
+					length++;
+					if (v < 0x80) {
+						out.writeByte(v);
+						break;
+					}
+					out.writeByte((v & 0x7f) | 0x80);
+				}
+				out.write(bytes, 0, n);
+				length += n;
+			}
+			return (int)length;
+		} finally {
+			out.close();
+			while (!queue.isEmpty()) {
+				queue.poll().close();
+			}
+		}
+	}
+
+	/**
+	 * Finds a displacement for every bucket such that all phrases go to
+	 * distinct slots. Buckets are placed in order of decreasing size;
+	 * the buckets with a single phrase come last and are simply given
+	 * the free slots, as negative displacements, so no bucket has to
+	 * search for a displacement when the table is almost full.
+	 *
+	 * @param hashes the hash of each phrase
+	 * @param numBuckets the number of buckets
+	 * @param numSlots the number of slots (at least the number of phrases)
+	 * @param slots receives the slot of each phrase
+	 * @return the displacement of each bucket, or null if none was found
+	 * for some bucket (for instance because two phrases have the same
+	 * hash), in which case another seed has to be tried
+	 */
+	private static int[] displace(long[] hashes, int numBuckets, int numSlots, int[] slots) {
+
+		int n = hashes.length;
+
+		// Sort the phrases by bucket
+		int[] starts = new int[numBuckets + 1];
+		for (int i = 0; i < n; i++) {
+			starts[PerfectHashFrequencyTable.bucket(hashes[i], numBuckets) + 1]++;
+		}
+		int maxSize = 0;
+		for (int b = 0; b < numBuckets; b++) {
+			maxSize = Math.max(maxSize, starts[b + 1]);
+			starts[b + 1] += starts[b];
+		}
+		int[] members = new int[n];
+		int[] fill = Arrays.copyOf(starts, numBuckets);
+		for (int i = 0; i < n; i++) {
+			members[fill[PerfectHashFrequencyTable.bucket(hashes[i], numBuckets)]++] = i;
+		}
+		fill = null;
+
+		// Sort the buckets by decreasing size
+		int[] sizeStarts = new int[maxSize + 2];
+		for (int b = 0; b < numBuckets; b++) {
+			sizeStarts[maxSize - (starts[b + 1] - starts[b]) + 1]++;
+		}
+		for (int s = 0; s <= maxSize; s++) {
+			sizeStarts[s + 1] += sizeStarts[s];
+		}
+		int[] order = new int[numBuckets];
+		for (int b = 0; b < numBuckets; b++) {
+			order[sizeStarts[maxSize - (starts[b + 1] - starts[b])]++] = b;
+		}
+
+		int[] displacements = new int[numBuckets];
+		boolean[] taken = new boolean[numSlots];
+		int[] bucketSlots = new int[maxSize];
+		int free = 0;
+		for (int k = 0; k < numBuckets; k++) {
+			int b = order[k];
+			int from = starts[b], size = starts[b + 1] - from;
+			if (size == 0) {
+				break;
+			}
+			if (size == 1) {
+				while (taken[free]) {
+					free++;
+				}
+				displacements[b] = -free - 1;
+				taken[free] = true;
+				slots[members[from]] = free;
+				continue;
+			}
+			int d = 0;
+			while (true) {
+				if (d == MAX_DISPLACEMENT) {
+					return null;
+				}
+				boolean ok = true;
+				for (int j = 0; (j < size) && ok; j++) {
+					int slot = PerfectHashFrequencyTable.slot(hashes[members[from + j]], d, numSlots);
+					if (taken[slot]) {
+						ok = false;
+					}
+					for (int l = 0; (l < j) && ok; l++) {
+						if (bucketSlots[l] == slot) {
+							ok = false;
+						}
+					}
+					bucketSlots[j] = slot;
+				}
+				if (ok) {
+					break;
+				}
+				d++;
+			}
+			displacements[b] = d;
+			for (int j = 0; j < size; j++) {
+				taken[bucketSlots[j]] = true;
+				slots[members[from + j]] = bucketSlots[j];
+			}
+		}
+		return displacements;
+	}
+
+	/**
+	 * A spilled run being merged.
+	 */
+	private static class Run implements Comparable<Run> {
+
+		/** The stream the run is read from */
+		private final DataInputStream m_In;
+
+		/** The current phrase and its count */
+		String m_Phrase;
+		int m_Count;
+
+		Run(File file) throws IOException {
+			m_In = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		}
+
+		/**
+		 * Reads the next phrase. Returns false at the end of the run.
+		 */
+		boolean next() throws IOException {
+			int length;
+			try {
+				length = m_In.readInt();
+			} catch (EOFException e) {
+				return false;
+			}
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++) {
+				chars[i] = m_In.readChar();
+			}
+			m_Phrase = new String(chars);
+			m_Count = m_In.readInt();
+			return true;
+		}
+
+		void close() throws IOException {
+			m_In.close();
+		}
+
+		public int compareTo(Run other) {
+			return m_Phrase.compareTo(other.m_Phrase);
+		}
+	}
+
+	/**
+	 * A growing array of ints.
+	 */
+	private static class IntArray {
+
+		private int[] m_Values = new int[1024];
+		private int m_Size = 0;
+
+		void add(int value) {
+			if (m_Size == m_Values.length) {
+				m_Values = Arrays.copyOf(m_Values, 2 * m_Size);
+			}
+			m_Values[m_Size++] = value;
+		}
+
+		int get(int i) {
+			return m_Values[i];
+		}
+
+		int size() {
+			return m_Size;
+		}
+	}
+}
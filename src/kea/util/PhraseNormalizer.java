@@ -0,0 +1,298 @@
+package kea.util;
+
+import java.util.Arrays;
+
+import kea.stemmers.Stemmer;
+import kea.stopwords.Stopwords;
+
+/**
+ * Generates pseudo phrases: versions of phrases that only contain
+ * non-stopwords, which are stemmed and sorted into alphabetical order.
+ * This is the normalization used by KEAFilter and Vocabulary, done in
+ * one pass over a character buffer instead of with regular expressions,
+ * split() and string concatenation. The buffers are kept per thread,
+ * so the methods can be called from several threads at the same time.
+ *
+ * The two classes differ slightly: KEAFilter also cuts off a final
+ * "'s", and applies the rule for apostrophes to the whole phrase,
+ * while Vocabulary applies it to each word that is not a stop word.
+ *
+ * @version 1.0
+ */
+public class PhraseNormalizer {
+
+	/** The buffers of the current thread */
+	private static final ThreadLocal<PhraseNormalizer> m_Buffers =
+		new ThreadLocal<PhraseNormalizer>() {
+		protected PhraseNormalizer initialValue() {
+			return new PhraseNormalizer();
+		}
+	};
+
+	/** The characters of the phrase being normalized */
+	private char[] m_Chars = new char[64];
+
+	/** Start and end of the phrase in m_Chars */
+	private int m_Start, m_End;
+
+	/** The words without stop words */
+	private final StringBuilder m_Words = new StringBuilder();
+
+	/** The stems */
+	private String[] m_Stems = new String[8];
+
+	/** The pseudo phrase */
+	private final StringBuilder m_Result = new StringBuilder();
+
+	private PhraseNormalizer() {
+	}
+
+	/**
+	 * Generates the pseudo phrase for a string, like
+	 * KEAFilter.pseudoPhrase() always has.
+	 */
+	public static String filterPseudoPhrase(String str, Stemmer stemmer,
+			Stopwords stopwords) {
+		return m_Buffers.get().normalize(str, stemmer, stopwords, false);
+	}
+
+	/**
+	 * Generates the pseudo phrase for a string, like
+	 * Vocabulary.pseudoPhrase() always has.
+	 */
+	public static String vocabularyPseudoPhrase(String str, Stemmer stemmer,
+			Stopwords stopwords) {
+		return m_Buffers.get().normalize(str, stemmer, stopwords, true);
+	}
+
+	private String normalize(String str, Stemmer stemmer, Stopwords stopwords,
+			boolean vocabulary) {
+
+		str = str.toLowerCase();
+		if (str.length() > m_Chars.length) {
+			m_Chars = new char[Math.max(str.length(), 2 * m_Chars.length)];
+		}
+		str.getChars(0, str.length(), m_Chars, 0);
+		m_Start = 0;
+		m_End = str.length();
+
+		// The rules below only apply to phrases on a single line
+		// (as "." doesn't match line terminators)
+		if (!hasLineTerminator()) {
+
+			// This is often the case with Mesh Terms,
+			// where a term is accompanied by another specifying term
+			// e.g. Monocytes/*immunology/microbiology
+			// we ignore everything after the "/" symbol.
+			if (hasInner('/')) {
+				segment('/', (char)0, 0);
+			}
+
+			// Delete apostrophe s as in: Germany's,
+			// otherwise PorterStemmer provides empty stem
+			if (!vocabulary && (m_End - m_Start >= 3) &&
+					(m_Chars[m_End - 2] == '\'') && (m_Chars[m_End - 1] == 's')) {
+				segment('\'', 's', 0);
+			}
+
+			// Removes scope notes in brackets
+			if (hasInner('(')) {
+				segment('(', (char)0, 0);
+			}
+			if (!vocabulary && hasInner('\'')) {
+				segment('\'', (char)0, 1);
+			}
+		}
+
+		// Remove some non-alphanumeric characters
+		removeCharacters();
+
+		// Trim
+		while ((m_Start < m_End) && (m_Chars[m_Start] <= ' ')) {
+			m_Start++;
+		}
+		while ((m_End > m_Start) && (m_Chars[m_End - 1] <= ' ')) {
+			m_End--;
+		}
+
+		// Remove stop words
+		m_Words.setLength(0);
+		int phraseStart = m_Start, phraseEnd = m_End;
+		int wordStart = phraseStart;
+		for (int i = phraseStart; i <= phraseEnd; i++) {
+			if ((i < phraseEnd) && (m_Chars[i] != ' ')) {
+				continue;
+			}
+			String word = new String(m_Chars, wordStart, i - wordStart);
+			wordStart = i + 1;
+			if (stopwords.isStopword(word)) {
+				continue;
+			}
+			if (vocabulary) {
+				word = wordWithoutApostrophes(word);
+			}
+			if (m_Words.length() == 0) {
+				m_Words.append(word);
+			} else {
+				m_Words.append(' ').append(word);
+			}
+		}
+
+		// Stem, sort and join the stems
+		String stemmed = stemmer.stemString(m_Words.toString());
+		int numStems = 0;
+		int stemStart = 0;
+		for (int i = 0; i <= stemmed.length(); i++) {
+			if ((i < stemmed.length()) && (stemmed.charAt(i) != ' ')) {
+				continue;
+			}
+			if (i > stemStart) {
+				if (numStems == m_Stems.length) {
+					m_Stems = Arrays.copyOf(m_Stems, 2 * numStems);
+				}
+				m_Stems[numStems++] = stemmed.substring(stemStart, i);
+			}
+			stemStart = i + 1;
+		}
+		if (numStems == 1) {
+			String stem = m_Stems[0];
+			m_Stems[0] = null;
+			return stem;
+		}
+		Arrays.sort(m_Stems, 0, numStems);
+		m_Result.setLength(0);
+		for (int i = 0; i < numStems; i++) {
+			if (i > 0) {
+				m_Result.append(' ');
+			}
+			m_Result.append(m_Stems[i]);
+			m_Stems[i] = null;
+		}
+		return m_Result.toString();
+	}
+
+	/**
+	 * Returns true if the phrase contains a line terminator.
+	 */
+	private boolean hasLineTerminator() {
+		for (int i = m_Start; i < m_End; i++) {
+			char c = m_Chars[i];
+			if ((c == '\n') || (c == '\r') || (c == '\u0085') ||
+					(c == '\u2028') || (c == '\u2029')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the character occurs in the phrase, but not as its
+	 * first or last character (what ".+?c.+?" matches).
+	 */
+	private boolean hasInner(char c) {
+		for (int i = m_Start + 1; i < m_End - 1; i++) {
+			if (m_Chars[i] == c) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reduces the phrase to one of its segments, as split(sep)[index]
+	 * would. The separator is c, or c followed by c2 if c2 is not 0.
+	 * Throws an ArrayIndexOutOfBoundsException if split() would
+	 * not return enough segments.
+	 */
+	private void segment(char c, char c2, int index) {
+
+		int sepLength = (c2 == 0) ? 1 : 2;
+		int segStart = m_Start, resultStart = -1, resultEnd = -1;
+		int segment = 0, lastNonEmpty = -1;
+		int i = m_Start;
+		while (i <= m_End) {
+			boolean atSep = (i + sepLength <= m_End) && (m_Chars[i] == c) &&
+				((c2 == 0) || (m_Chars[i + 1] == c2));
+			if ((i < m_End) && !atSep) {
+				i++;
+				continue;
+			}
+			if (segment == index) {
+				resultStart = segStart;
+				resultEnd = i;
+			}
+			if (i > segStart) {
+				lastNonEmpty = segment;
+			}
+			segment++;
+			i += sepLength;
+			segStart = i;
+		}
+		if (index > lastNonEmpty) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		m_Start = resultStart;
+		m_End = resultEnd;
+	}
+
+	/**
+	 * Replaces '-' and '&' with spaces, removes '*', ',' and '.'
+	 * before a space, and ':' (in this order).
+	 */
+	private void removeCharacters() {
+
+		int n = m_Start;
+		for (int i = m_Start; i < m_End; i++) {
+			char c = m_Chars[i];
+			if ((c == '-') || (c == '&')) {
+				m_Chars[n++] = ' ';
+			} else if (c != '*') {
+				m_Chars[n++] = c;
+			}
+		}
+		m_End = removeBeforeSpace(',', n);
+		m_End = removeBeforeSpace('.', m_End);
+		n = m_Start;
+		for (int i = m_Start; i < m_End; i++) {
+			if (m_Chars[i] != ':') {
+				m_Chars[n++] = m_Chars[i];
+			}
+		}
+		m_End = n;
+	}
+
+	/**
+	 * Removes the character c wherever it is followed by a space.
+	 * Returns the new end of the phrase.
+	 */
+	private int removeBeforeSpace(char c, int end) {
+		int n = m_Start;
+		for (int i = m_Start; i < end; i++) {
+			if ((m_Chars[i] != c) || (i + 1 >= end) || (m_Chars[i + 1] != ' ')) {
+				m_Chars[n++] = m_Chars[i];
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Applies the rule for apostrophes to a single word: if it contains
+	 * an apostrophe that is neither its first nor its last character,
+	 * only the part between the first and the second apostrophe is kept.
+	 */
+	private static String wordWithoutApostrophes(String word) {
+
+		int p = word.indexOf('\'', 1);
+		if ((p < 0) || (p >= word.length() - 1)) {
+			return word;
+		}
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if ((c == '\n') || (c == '\r') || (c == '\u0085') ||
+					(c == '\u2028') || (c == '\u2029')) {
+				return word;
+			}
+		}
+		return word.split("\\'")[1];
+	}
+}
@@ -0,0 +1,95 @@
+package kea.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Processes a range of items (such as the documents of a collection)
+ * with several threads. The items are split into consecutive shards,
+ * one per thread, so results that are kept per shard can be combined
+ * in the order of the items afterwards.
+ *
+ * @version 1.0
+ */
+public class Shards {
+
+	/**
+	 * The work done for one shard.
+	 */
+	public interface Task {
+
+		/**
+		 * Processes the items from (inclusive) to to (exclusive).
+		 *
+		 * @param shard the number of the shard
+		 * @param from the first item of the shard
+		 * @param to the item after the last item of the shard
+		 */
+		void run(int shard, int from, int to) throws Exception;
+	}
+
+	private Shards() {
+	}
+
+	/**
+	 * Returns the number of shards run() splits the items into.
+	 */
+	public static int numShards(int numItems, int numThreads) {
+		return Math.max(1, Math.min(numThreads, numItems));
+	}
+
+	/**
+	 * Runs a task on every shard of the items, one thread per shard,
+	 * and waits until all shards are done. With a single shard, the
+	 * task is run in the calling thread.
+	 *
+	 * @param numItems the number of items
+	 * @param numThreads the number of threads
+	 * @param task the task
+	 * @exception Exception the first exception thrown by the task
+	 */
+	public static void run(int numItems, int numThreads, final Task task)
+	throws Exception {
+
+		int numShards = numShards(numItems, numThreads);
+		if (numShards == 1) {
+			task.run(0, 0, numItems);
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numShards);
+		try {
+			ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>(numShards);
+			for (int s = 0; s < numShards; s++) {
+				final int shard = s;
+				final int from = (int)((long)numItems * s / numShards);
+				final int to = (int)((long)numItems * (s + 1) / numShards);
+				futures.add(executor.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						task.run(shard, from, to);
+						return null;
+					}
+				}));
+			}
+			for (int s = 0; s < numShards; s++) {
+				try {
+					futures.get(s).get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception)e.getCause();
+					}
+					if (e.getCause() instanceof Error) {
+						throw (Error)e.getCause();
+					}
+					throw e;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
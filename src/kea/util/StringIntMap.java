@@ -0,0 +1,199 @@
+package kea.util;
+
+import java.util.Arrays;
+
+/**
+ * Maps strings to int values, without creating an object per entry.
+ * The entries are numbered (0, 1, 2, ...) in the order in which their
+ * keys were first added, and can be enumerated in that order. The keys
+ * are looked up in an open addressing hash table. Used instead of a
+ * HashMap from strings to Counters, this needs no Counter and no map
+ * entry per key, only a slot in each of a few arrays.
+ *
+ * @version 1.0
+ */
+public class StringIntMap implements FrequencyTable {
+
+	/** The keys, in the order in which they were added */
+	private String[] m_Keys;
+
+	/** The value of each key */
+	private int[] m_Values;
+
+	/** The hash code of each key */
+	private int[] m_Hashes;
+
+	/** The number of entries */
+	private int m_Size = 0;
+
+	/** The hash table: entry number plus one, or 0 for a free slot */
+	private int[] m_Table;
+
+	/**
+	 * Creates an empty map.
+	 */
+	public StringIntMap() {
+		this(16);
+	}
+
+	/**
+	 * Creates an empty map with room for the given number of entries.
+	 */
+	public StringIntMap(int capacity) {
+		capacity = Math.max(capacity, 4);
+		m_Keys = new String[capacity];
+		m_Values = new int[capacity];
+		m_Hashes = new int[capacity];
+		int tableSize = 8;
+		while (tableSize < 2 * capacity) {
+			tableSize *= 2;
+		}
+		m_Table = new int[tableSize];
+	}
+
+	/**
+	 * Adds delta to the value of a key. A key that is not in the map
+	 * yet is added with value delta.
+	 *
+	 * @param key the key
+	 * @param delta the amount to add
+	 * @return the number of the entry
+	 */
+	public int add(String key, int delta) {
+		int hash = hash(key);
+		int slot = find(key, hash);
+		if (m_Table[slot] != 0) {
+			int index = m_Table[slot] - 1;
+			m_Values[index] += delta;
+			return index;
+		}
+
+		// New key
+		if (m_Size == m_Keys.length) {
+			int capacity = 2 * m_Size;
+			m_Keys = Arrays.copyOf(m_Keys, capacity);
+			m_Values = Arrays.copyOf(m_Values, capacity);
+			m_Hashes = Arrays.copyOf(m_Hashes, capacity);
+		}
+		m_Keys[m_Size] = key;
+		m_Values[m_Size] = delta;
+		m_Hashes[m_Size] = hash;
+		m_Table[slot] = ++m_Size;
+		if (m_Size * 2 > m_Table.length) {
+			rehash();
+		}
+		return m_Size - 1;
+	}
+
+	/**
+	 * Sets the value of a key. A key that is not in the map yet is
+	 * added with the value.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return the number of the entry
+	 */
+	public int put(String key, int value) {
+		int index = add(key, 0);
+		m_Values[index] = value;
+		return index;
+	}
+
+	/**
+	 * Adds all entries of another map to this one, in the order of
+	 * the other map.
+	 */
+	public void addAll(StringIntMap other) {
+		for (int i = 0; i < other.m_Size; i++) {
+			add(other.m_Keys[i], other.m_Values[i]);
+		}
+	}
+
+	/**
+	 * Returns the number of the entry of a key, or -1 if the key
+	 * is not in the map.
+	 */
+	public int indexOf(String key) {
+		int slot = find(key, hash(key));
+		return m_Table[slot] - 1;
+	}
+
+	/**
+	 * Returns the value of a key, or 0 if the key is not in the map.
+	 */
+	public int get(String key) {
+		int index = indexOf(key);
+		return (index < 0) ? 0 : m_Values[index];
+	}
+
+	public int frequency(String key) {
+		return get(key);
+	}
+
+	/**
+	 * Returns true if the key is in the map.
+	 */
+	public boolean containsKey(String key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Returns the number of entries.
+	 */
+	public int size() {
+		return m_Size;
+	}
+
+	/**
+	 * Returns the key of the given entry.
+	 */
+	public String key(int index) {
+		return m_Keys[index];
+	}
+
+	/**
+	 * Returns the value of the given entry.
+	 */
+	public int value(int index) {
+		return m_Values[index];
+	}
+
+	/**
+	 * Returns the slot of a key in the hash table, or the free slot
+	 * where it would go.
+	 */
+	private int find(String key, int hash) {
+		int mask = m_Table.length - 1;
+		int slot = hash & mask;
+		while (m_Table[slot] != 0) {
+			int index = m_Table[slot] - 1;
+			if ((m_Hashes[index] == hash) && m_Keys[index].equals(key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int hash(String key) {
+		// Spread the bits, as the table size is a power of two
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		hash *= 0x85ebca6b;
+		hash ^= (hash >>> 13);
+		return hash;
+	}
+
+	private void rehash() {
+		int[] table = new int[m_Table.length * 2];
+		int mask = table.length - 1;
+		for (int index = 0; index < m_Size; index++) {
+			int slot = m_Hashes[index] & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = index + 1;
+		}
+		m_Table = table;
+	}
+}
@@ -0,0 +1,250 @@
+package kea.vocab;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+
+import kea.util.StringIntMap;
+
+/**
+ * The relations between the concepts of a vocabulary. The concepts
+ * are numbered (0, 1, 2, ...), and the relations of all concepts are
+ * kept in two arrays, the related concept and the type of each relation,
+ * where the relations of a concept are a range given by an array of
+ * offsets (compressed sparse rows). Within a concept, the relations
+ * are ordered by their type, so the relations of one type are a range
+ * as well. Going through the related concepts needs no strings and
+ * allocates nothing.
+ *
+ * The graph is built once and only read afterwards, so it can be used
+ * from several threads at the same time.
+ *
+ * @version 1.0
+ */
+public class ConceptGraph {
+
+	/** The types of relations, by their number */
+	public static final String[] RELATIONS = {
+		"broader", "narrower", "composite", "compositeOf", "hasTopConcept", "related"
+	};
+
+	/** The type of relations whose type is not known */
+	public static final byte UNKNOWN = -1;
+
+	/** The ids of the concepts, numbered in the order they were added */
+	private final StringIntMap m_Concepts;
+
+	/** Where the relations of each concept start, plus the end of the last */
+	private final int[] m_Offsets;
+
+	/** Per relation: the related concept */
+	private final int[] m_Targets;
+
+	/** Per relation: its type */
+	private final byte[] m_Types;
+
+	private ConceptGraph(StringIntMap concepts, int[] offsets, int[] targets, byte[] types) {
+		m_Concepts = concepts;
+		m_Offsets = offsets;
+		m_Targets = targets;
+		m_Types = types;
+	}
+
+	/**
+	 * Builds the graph of the related concepts of a vocabulary.
+	 *
+	 * @param related the related concepts of each concept (may be null)
+	 * @param types the type of each relation, by "id-related_id"
+	 * (null if the types are not known)
+	 * @return the graph
+	 */
+	static ConceptGraph build(HashMap<String,Vector<String>> related,
+			HashMap<String,String> types) {
+
+		if (related == null) {
+			related = new HashMap<String,Vector<String>>();
+		}
+
+		// Number the concepts, with the number of relations as value
+		StringIntMap concepts = new StringIntMap(2 * related.size());
+		int numRelations = 0;
+		Iterator<Map.Entry<String,Vector<String>>> it = related.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String,Vector<String>> entry = it.next();
+			concepts.add(entry.getKey(), entry.getValue().size());
+			numRelations += entry.getValue().size();
+			for (int i = 0; i < entry.getValue().size(); i++) {
+				concepts.add(entry.getValue().get(i), 0);
+			}
+		}
+		int[] offsets = new int[concepts.size() + 1];
+		for (int c = 0; c < concepts.size(); c++) {
+			offsets[c + 1] = offsets[c] + concepts.value(c);
+		}
+
+		int[] targets = new int[numRelations];
+		byte[] relationTypes = new byte[numRelations];
+		int numUnknown = 0;
+		it = related.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String,Vector<String>> entry = it.next();
+			String id = entry.getKey();
+			Vector<String> ids = entry.getValue();
+			byte[] idTypes = new byte[ids.size()];
+			for (int i = 0; i < ids.size(); i++) {
+				idTypes[i] = relationType((types == null) ? null : types.get(id + "-" + ids.get(i)));
+				if (idTypes[i] == UNKNOWN) {
+					numUnknown++;
+				}
+			}
+			int pos = offsets[concepts.indexOf(id)];
+			for (int type = UNKNOWN; type < RELATIONS.length; type++) {
+				for (int i = 0; i < ids.size(); i++) {
+					if (idTypes[i] == type) {
+						targets[pos] = concepts.indexOf(ids.get(i));
+						relationTypes[pos] = (byte)type;
+						pos++;
+					}
+				}
+			}
+		}
+		if ((types != null) && (numUnknown > 0)) {
+			System.err.println("Problem with " + numUnknown + " relations of unknown type");
+		}
+		return new ConceptGraph(concepts, offsets, targets, relationTypes);
+	}
+
+	/**
+	 * Returns the number of a type of relation, or UNKNOWN.
+	 */
+	public static byte relationType(String relation) {
+		if (relation != null) {
+			for (int i = 0; i < RELATIONS.length; i++) {
+				if (RELATIONS[i].equals(relation)) {
+					return (byte)i;
+				}
+			}
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * Returns the number of concepts.
+	 */
+	public int numConcepts() {
+		return m_Concepts.size();
+	}
+
+	/**
+	 * Returns the number of a concept, or -1 if it is in no relation.
+	 */
+	public int indexOf(String id) {
+		return m_Concepts.indexOf(id);
+	}
+
+	/**
+	 * Returns the id of a concept.
+	 */
+	public String id(int concept) {
+		return m_Concepts.key(concept);
+	}
+
+	/**
+	 * Returns the first relation of a concept.
+	 */
+	public int firstRelation(int concept) {
+		return m_Offsets[concept];
+	}
+
+	/**
+	 * Returns the relation after the last relation of a concept.
+	 */
+	public int endRelation(int concept) {
+		return m_Offsets[concept + 1];
+	}
+
+	/**
+	 * Returns the first relation of a concept with the given type.
+	 */
+	public int firstRelation(int concept, byte type) {
+		int r = m_Offsets[concept];
+		while ((r < m_Offsets[concept + 1]) && (m_Types[r] < type)) {
+			r++;
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the relation after the last relation of a concept
+	 * with the given type.
+	 */
+	public int endRelation(int concept, byte type) {
+		int r = m_Offsets[concept + 1];
+		while ((r > m_Offsets[concept]) && (m_Types[r - 1] > type)) {
+			r--;
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the related concept of a relation.
+	 */
+	public int target(int relation) {
+		return m_Targets[relation];
+	}
+
+	/**
+	 * Returns the type of a relation.
+	 */
+	public byte type(int relation) {
+		return m_Types[relation];
+	}
+
+	/**
+	 * Writes the graph, so that read() can read it again.
+	 *
+	 * @param out the stream to write to
+	 * @exception IOException if the graph can't be written
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(m_Concepts.size());
+		for (int c = 0; c < m_Concepts.size(); c++) {
+			String id = m_Concepts.key(c);
+			out.writeInt(id.length());
+			out.writeChars(id);
+			out.writeInt(m_Offsets[c + 1]);
+		}
+		for (int r = 0; r < m_Targets.length; r++) {
+			out.writeInt(m_Targets[r]);
+		}
+		out.write(m_Types);
+	}
+
+	/**
+	 * Reads a graph written by write() from the position of a buffer,
+	 * and advances the position of the buffer past it.
+	 */
+	static ConceptGraph read(ByteBuffer buffer) {
+		int numConcepts = buffer.getInt();
+		StringIntMap concepts = new StringIntMap(numConcepts);
+		int[] offsets = new int[numConcepts + 1];
+		for (int c = 0; c < numConcepts; c++) {
+			char[] chars = new char[buffer.getInt()];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = buffer.getChar();
+			}
+			concepts.add(new String(chars), 0);
+			offsets[c + 1] = buffer.getInt();
+		}
+		int[] targets = new int[offsets[numConcepts]];
+		buffer.asIntBuffer().get(targets);
+		buffer.position(buffer.position() + 4 * targets.length);
+		byte[] types = new byte[targets.length];
+		buffer.get(types);
+		return new ConceptGraph(concepts, offsets, targets, types);
+	}
+}
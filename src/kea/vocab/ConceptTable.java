@@ -0,0 +1,218 @@
+package kea.vocab;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import kea.util.StringIntMap;
+
+/**
+ * The terms of a vocabulary and the concepts they stand for. Every
+ * concept id is stored once and numbered (0, 1, 2, ...); the label of
+ * each concept and the descriptor of each non-descriptor are kept in
+ * arrays indexed by that number, and the pseudo phrases of the terms
+ * map to the numbers of their concepts. Looking up a term is one hash
+ * lookup, and everything else about its concept is read from arrays.
+ *
+ * Once built, the table is only read, so it can be used from several
+ * threads at the same time.
+ *
+ * @version 1.0
+ */
+class ConceptTable {
+
+	/** The ids of the concepts, numbered in the order they were added */
+	private final StringIntMap m_Ids;
+
+	/** Per concept: its label (or null) */
+	private String[] m_Labels;
+
+	/** Per concept: the number of its descriptor, or -1 if it has none */
+	private int[] m_Descriptors;
+
+	/** The pseudo phrases of the terms, with the numbers of their concepts */
+	private final StringIntMap m_Terms;
+
+	/**
+	 * Creates an empty table.
+	 */
+	ConceptTable() {
+		this(new StringIntMap(), new String[16], new StringIntMap());
+	}
+
+	private ConceptTable(StringIntMap ids, String[] labels, StringIntMap terms) {
+		m_Ids = ids;
+		m_Labels = labels;
+		m_Descriptors = new int[labels.length];
+		Arrays.fill(m_Descriptors, -1);
+		m_Terms = terms;
+	}
+
+	/**
+	 * Returns the number of a concept, adding the concept if it is
+	 * not in the table yet.
+	 */
+	int add(String id) {
+		int concept = m_Ids.add(id, 0);
+		if (concept >= m_Labels.length) {
+			int capacity = Math.max(concept + 1, 2 * m_Labels.length);
+			m_Labels = Arrays.copyOf(m_Labels, capacity);
+			int oldCapacity = m_Descriptors.length;
+			m_Descriptors = Arrays.copyOf(m_Descriptors, capacity);
+			Arrays.fill(m_Descriptors, oldCapacity, capacity, -1);
+		}
+		return concept;
+	}
+
+	/**
+	 * Sets the label of a concept, adding the concept if needed.
+	 */
+	void putLabel(String id, String label) {
+		m_Labels[add(id)] = label;
+	}
+
+	/**
+	 * Makes a concept a non-descriptor of another one, adding
+	 * the concepts if needed.
+	 */
+	void putDescriptor(String id, String descriptor) {
+		int concept = add(id);
+		m_Descriptors[concept] = add(descriptor);
+	}
+
+	/**
+	 * Adds a term with the given pseudo phrase for a concept, adding
+	 * the concept if needed. Replaces a term with the same pseudo phrase.
+	 */
+	void putTerm(String pseudo, String id) {
+		m_Terms.put(pseudo, add(id));
+	}
+
+	/**
+	 * Returns the number of concepts.
+	 */
+	int size() {
+		return m_Ids.size();
+	}
+
+	/**
+	 * Returns the number of a concept, or -1 if it is not in the table.
+	 */
+	int indexOf(String id) {
+		return (id == null) ? -1 : m_Ids.indexOf(id);
+	}
+
+	/**
+	 * Returns the id of a concept.
+	 */
+	String id(int concept) {
+		return m_Ids.key(concept);
+	}
+
+	/**
+	 * Returns the label of a concept, or null.
+	 */
+	String label(int concept) {
+		return m_Labels[concept];
+	}
+
+	/**
+	 * Returns the number of the descriptor of a concept, or -1.
+	 */
+	int descriptor(int concept) {
+		return m_Descriptors[concept];
+	}
+
+	/**
+	 * Returns the number of terms.
+	 */
+	int numTerms() {
+		return m_Terms.size();
+	}
+
+	/**
+	 * Returns the pseudo phrase of a term, by the number of the term.
+	 */
+	String termPhrase(int term) {
+		return m_Terms.key(term);
+	}
+
+	/**
+	 * Returns the concept of a term, by the number of the term.
+	 */
+	int termConcept(int term) {
+		return m_Terms.value(term);
+	}
+
+	/**
+	 * Returns the concept of the term with the given pseudo phrase,
+	 * or -1 if there is no such term.
+	 */
+	int conceptOf(String pseudo) {
+		int term = m_Terms.indexOf(pseudo);
+		return (term < 0) ? -1 : m_Terms.value(term);
+	}
+
+	/**
+	 * Writes the table, so that read() can read it again.
+	 *
+	 * @param out the stream to write to
+	 * @exception IOException if the table can't be written
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(m_Ids.size());
+		for (int c = 0; c < m_Ids.size(); c++) {
+			writeString(out, m_Ids.key(c));
+			out.writeBoolean(m_Labels[c] != null);
+			if (m_Labels[c] != null) {
+				writeString(out, m_Labels[c]);
+			}
+			out.writeInt(m_Descriptors[c]);
+		}
+		out.writeInt(m_Terms.size());
+		for (int t = 0; t < m_Terms.size(); t++) {
+			writeString(out, m_Terms.key(t));
+			out.writeInt(m_Terms.value(t));
+		}
+	}
+
+	/**
+	 * Reads a table written by write() from the position of a buffer,
+	 * and advances the position of the buffer past it.
+	 */
+	static ConceptTable read(ByteBuffer buffer) {
+		int numConcepts = buffer.getInt();
+		StringIntMap ids = new StringIntMap(numConcepts);
+		String[] labels = new String[Math.max(numConcepts, 1)];
+		int[] descriptors = new int[labels.length];
+		for (int c = 0; c < numConcepts; c++) {
+			ids.add(readString(buffer), 0);
+			if (buffer.get() != 0) {
+				labels[c] = readString(buffer);
+			}
+			descriptors[c] = buffer.getInt();
+		}
+		int numTerms = buffer.getInt();
+		StringIntMap terms = new StringIntMap(numTerms);
+		for (int t = 0; t < numTerms; t++) {
+			terms.add(readString(buffer), buffer.getInt());
+		}
+		ConceptTable table = new ConceptTable(ids, labels, terms);
+		System.arraycopy(descriptors, 0, table.m_Descriptors, 0, numConcepts);
+		return table;
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		out.writeInt(str.length());
+		out.writeChars(str);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		char[] chars = new char[buffer.getInt()];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = buffer.getChar();
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,512 @@
+package kea.vocab;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads the labels and the relations of the concepts in a SKOS file
+ * while it is parsed, without building a model of the whole file.
+ * Accepts RDF/XML and, for files ending in ".nt", N-Triples. Only the
+ * statements a vocabulary is built from are passed on: prefLabel,
+ * altLabel and hiddenLabel in the given languages (or without a language),
+ * and the relations between concepts. Everything else is skipped as it
+ * is read, so the memory needed depends on what is kept, not on the
+ * size of the file.
+ *
+ * Predicates are recognized by their local name, whatever their
+ * namespace. Statements about blank nodes are skipped.
+ *
+ * @version 1.0
+ */
+class SkosReader {
+
+	/**
+	 * Receives the statements a reader keeps.
+	 */
+	interface Handler {
+
+		/**
+		 * A label of a concept.
+		 *
+		 * @param concept the URI of the concept
+		 * @param property prefLabel, altLabel or hiddenLabel
+		 * @param label the label
+		 * @param language the language of the label, or null
+		 */
+		void label(String concept, String property, String label, String language);
+
+		/**
+		 * A relation between two concepts.
+		 *
+		 * @param concept the URI of the concept
+		 * @param property the relation, e.g. broader
+		 * @param related the URI of the related concept
+		 */
+		void relation(String concept, String property, String related);
+	}
+
+	/** The properties whose values are labels */
+	static final HashSet<String> LABELS = new HashSet<String>(Arrays.asList(
+			"prefLabel", "altLabel", "hiddenLabel"));
+
+	/** The properties whose values are related concepts */
+	static final HashSet<String> RELATIONS = new HashSet<String>(Arrays.asList(
+			"broader", "narrower", "composite", "compositeOf", "hasTopConcept", "related"));
+
+	/** The namespace of the RDF syntax */
+	private static final String RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+
+	/** The namespace of XML attributes */
+	private static final String XML = "http://www.w3.org/XML/1998/namespace";
+
+	/** The languages of the labels to keep */
+	private final Set<String> m_Languages;
+
+	/** Receives the statements */
+	private final Handler m_Handler;
+
+	/**
+	 * Creates a reader.
+	 *
+	 * @param languages the languages of the labels to keep
+	 * @param handler receives the labels and relations
+	 */
+	SkosReader(Set<String> languages, Handler handler) {
+		m_Languages = languages;
+		m_Handler = handler;
+	}
+
+	/**
+	 * Reads a file, RDF/XML or N-Triples depending on its name.
+	 *
+	 * @param file the file
+	 * @exception Exception if the file can't be read or parsed
+	 */
+	void read(File file) throws Exception {
+		InputStream in = new FileInputStream(file);
+		try {
+			if (file.getName().endsWith(".nt")) {
+				readNTriples(new BufferedReader(new InputStreamReader(in, "UTF-8")));
+			} else {
+				readRDFXML(new InputSource(in));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Passes a statement on if it is kept.
+	 *
+	 * @param subject the subject, null for a blank node
+	 * @param property the local name of the predicate
+	 * @param resource the object if it is a resource (null for a blank node)
+	 * @param literal the object if it is a literal
+	 * @param language the language of the literal, or null
+	 */
+	private void statement(String subject, String property, String resource,
+			String literal, String language) {
+
+		if (subject == null) {
+			return;
+		}
+		if (literal != null) {
+			if (LABELS.contains(property) &&
+					((language == null) || m_Languages.contains(language))) {
+				m_Handler.label(subject, property, literal, language);
+			}
+		} else if (resource != null) {
+			if (RELATIONS.contains(property)) {
+				m_Handler.relation(subject, property, resource);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if statements with this predicate may be kept.
+	 */
+	private static boolean isKept(String property) {
+		return LABELS.contains(property) || RELATIONS.contains(property);
+	}
+
+	/**
+	 * Reads N-Triples, one statement per line.
+	 */
+	void readNTriples(BufferedReader in) throws IOException {
+
+		String line;
+		int lineNumber = 0;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			NTriplesLine parser = new NTriplesLine(line, lineNumber);
+			parser.skipSpace();
+			if (parser.atEnd() || (parser.peek() == '#')) {
+				continue;
+			}
+			String subject = parser.readResource();
+			parser.skipSpace();
+			String predicate = parser.readResource();
+			if (predicate == null) {
+				throw parser.error("predicate expected");
+			}
+			String property = localName(predicate);
+			if (!isKept(property)) {
+				continue;
+			}
+			parser.skipSpace();
+			if (parser.peek() == '"') {
+				String literal = parser.readString();
+				String language = null;
+				if (parser.peek() == '@') {
+					language = parser.readLanguage();
+				} else if (parser.peek() == '^') {
+					// The datatype is not needed
+					parser.skip('^');
+					parser.skip('^');
+					parser.readResource();
+				}
+				statement(subject, property, null, literal, language);
+			} else {
+				statement(subject, property, parser.readResource(), null, null);
+			}
+		}
+	}
+
+	/**
+	 * Returns the local name of a URI: the part after the last # or /.
+	 */
+	static String localName(String uri) {
+		return uri.substring(Math.max(uri.lastIndexOf('#'), uri.lastIndexOf('/')) + 1);
+	}
+
+	/**
+	 * A line of an N-Triples file being parsed.
+	 */
+	private static class NTriplesLine {
+
+		private final String m_Line;
+		private final int m_LineNumber;
+		private int m_Pos = 0;
+
+		NTriplesLine(String line, int lineNumber) {
+			m_Line = line;
+			m_LineNumber = lineNumber;
+		}
+
+		boolean atEnd() {
+			return m_Pos >= m_Line.length();
+		}
+
+		char peek() {
+			return atEnd() ? 0 : m_Line.charAt(m_Pos);
+		}
+
+		void skipSpace() {
+			while (!atEnd() && ((peek() == ' ') || (peek() == '\t'))) {
+				m_Pos++;
+			}
+		}
+
+		void skip(char c) throws IOException {
+			if (peek() != c) {
+				throw error("'" + c + "' expected");
+			}
+			m_Pos++;
+		}
+
+		IOException error(String message) {
+			return new IOException("Line " + m_LineNumber + ": " + message);
+		}
+
+		/**
+		 * Reads a URI in angle brackets, or a blank node (returns null).
+		 */
+		String readResource() throws IOException {
+			if (peek() == '_') {
+				while (!atEnd() && (peek() != ' ') && (peek() != '\t')) {
+					m_Pos++;
+				}
+				return null;
+			}
+			skip('<');
+			int end = m_Line.indexOf('>', m_Pos);
+			if (end < 0) {
+				throw error("'>' expected");
+			}
+			String uri = m_Line.substring(m_Pos, end);
+			m_Pos = end + 1;
+			return (uri.indexOf('\\') < 0) ? uri : unescape(uri);
+		}
+
+		/**
+		 * Reads a quoted string.
+		 */
+		String readString() throws IOException {
+			skip('"');
+			int start = m_Pos;
+			boolean escaped = false;
+			while (peek() != '"') {
+				if (atEnd()) {
+					throw error("'\"' expected");
+				}
+				if (peek() == '\\') {
+					escaped = true;
+					m_Pos++;
+				}
+				m_Pos++;
+			}
+			String str = m_Line.substring(start, m_Pos);
+			m_Pos++;
+			return escaped ? unescape(str) : str;
+		}
+
+		/**
+		 * Reads a language tag, including the @.
+		 */
+		String readLanguage() throws IOException {
+			skip('@');
+			int start = m_Pos;
+			while (!atEnd() && (Character.isLetterOrDigit(peek()) || (peek() == '-'))) {
+				m_Pos++;
+			}
+			return m_Line.substring(start, m_Pos);
+		}
+
+		private String unescape(String str) throws IOException {
+			StringBuffer result = new StringBuffer(str.length());
+			for (int i = 0; i < str.length(); i++) {
+				char c = str.charAt(i);
+				if ((c != '\\') || (i + 1 == str.length())) {
+					result.append(c);
+					continue;
+				}
+				c = str.charAt(++i);
+				switch (c) {
+				case 't': result.append('\t'); break;
+				case 'b': result.append('\b'); break;
+				case 'n': result.append('\n'); break;
+				case 'r': result.append('\r'); break;
+				case 'f': result.append('\f'); break;
+				case 'u':
+				case 'U':
+					int length = (c == 'u') ? 4 : 8;
+					if (i + length >= str.length()) {
+						throw error("bad escape sequence");
+					}
+					try {
+						result.appendCodePoint(Integer.parseInt(str.substring(i + 1, i + 1 + length), 16));
+					} catch (IllegalArgumentException e) {
+						throw error("bad escape sequence");
+					}
+					i += length;
+					break;
+				default: result.append(c);
+				}
+			}
+			return result.toString();
+		}
+	}
+
+	/**
+	 * Reads RDF/XML.
+	 */
+	void readRDFXML(InputSource in) throws Exception {
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		SAXParser parser = factory.newSAXParser();
+		parser.getXMLReader().setEntityResolver(new DefaultHandler() {
+			public InputSource resolveEntity(String publicId, String systemId) {
+				// Don't fetch external DTDs
+				return new InputSource(new StringReader(""));
+			}
+		});
+		parser.parse(in, new RDFXMLHandler());
+	}
+
+	/**
+	 * An element of an RDF/XML document that is being parsed.
+	 */
+	private static class Element {
+
+		/** Are the child elements properties (rather than nodes)? */
+		boolean m_HasProperties;
+
+		/** A node: its subject, null for a blank node */
+		String m_Subject;
+
+		/** A property: the local name of the predicate */
+		String m_Property;
+
+		/** A property: its object, if it is a resource */
+		String m_Resource;
+
+		/** A property: does it have a resource (or blank node) as object? */
+		boolean m_HasResource;
+
+		/** A kept literal property: its text */
+		StringBuffer m_Text;
+
+		/** The xml:lang in scope */
+		String m_Language;
+
+		/** The xml:base in scope */
+		String m_Base;
+	}
+
+	/**
+	 * Handles the SAX events of an RDF/XML document. Understands the
+	 * parts of the RDF/XML syntax that SKOS files use: node elements
+	 * with rdf:about, rdf:ID or rdf:nodeID, property elements with text,
+	 * rdf:resource, rdf:nodeID, nested node elements or
+	 * rdf:parseType="Resource", and property attributes.
+	 */
+	private class RDFXMLHandler extends DefaultHandler {
+
+		/** The open elements */
+		private final ArrayList<Element> m_Stack = new ArrayList<Element>();
+
+		/** The depth within an rdf:parseType="Literal" property */
+		private int m_LiteralDepth = 0;
+
+		public void startElement(String uri, String localName, String qName,
+				Attributes atts) {
+
+			if (m_LiteralDepth > 0) {
+				m_LiteralDepth++;
+				return;
+			}
+			Element parent = m_Stack.isEmpty() ? null : m_Stack.get(m_Stack.size() - 1);
+			Element element = new Element();
+			String language = atts.getValue(XML, "lang");
+			if (language == null) {
+				language = (parent == null) ? null : parent.m_Language;
+			} else if (language.length() == 0) {
+				language = null;
+			}
+			element.m_Language = language;
+			String base = atts.getValue(XML, "base");
+			element.m_Base = (base != null) ? base
+					: (parent == null) ? null : parent.m_Base;
+
+			if ((parent == null) && RDF.equals(uri) && localName.equals("RDF")) {
+				// Its children are nodes
+				element.m_HasProperties = false;
+			} else if ((parent == null) || !parent.m_HasProperties) {
+				startNode(parent, element, atts);
+			} else {
+				startProperty(parent, element, localName, atts);
+			}
+			m_Stack.add(element);
+		}
+
+		private void startNode(Element parent, Element element, Attributes atts) {
+
+			String subject = null;
+			String about = atts.getValue(RDF, "about");
+			String id = atts.getValue(RDF, "ID");
+			if (about != null) {
+				subject = resolve(element.m_Base, about);
+			} else if (id != null) {
+				subject = resolve(element.m_Base, "#" + id);
+			}
+			element.m_HasProperties = true;
+			element.m_Subject = subject;
+			if (parent != null) {
+				parent.m_Resource = subject;
+				parent.m_HasResource = true;
+			}
+
+			// Property attributes
+			for (int i = 0; i < atts.getLength(); i++) {
+				if (!RDF.equals(atts.getURI(i)) && !XML.equals(atts.getURI(i)) &&
+						(atts.getURI(i).length() > 0)) {
+					statement(subject, atts.getLocalName(i), null,
+							atts.getValue(i), element.m_Language);
+				}
+			}
+		}
+
+		private void startProperty(Element parent, Element element,
+				String localName, Attributes atts) {
+
+			element.m_Property = localName;
+			String resource = atts.getValue(RDF, "resource");
+			String parseType = atts.getValue(RDF, "parseType");
+			if (resource != null) {
+				element.m_Resource = resolve(element.m_Base, resource);
+				element.m_HasResource = true;
+			} else if (atts.getValue(RDF, "nodeID") != null) {
+				element.m_HasResource = true;
+			} else if ("Resource".equals(parseType)) {
+				// The children are the properties of a blank node
+				element.m_HasProperties = true;
+				element.m_HasResource = true;
+			} else if ("Literal".equals(parseType)) {
+				m_LiteralDepth = 1;
+			}
+			if (!element.m_HasResource && isKept(localName)) {
+				element.m_Text = new StringBuffer();
+			}
+		}
+
+		public void characters(char[] ch, int start, int length) {
+			if (!m_Stack.isEmpty()) {
+				Element element = m_Stack.get(m_Stack.size() - 1);
+				if (element.m_Text != null) {
+					element.m_Text.append(ch, start, length);
+				}
+			}
+		}
+
+		public void endElement(String uri, String localName, String qName) {
+
+			if (m_LiteralDepth > 1) {
+				m_LiteralDepth--;
+				return;
+			}
+			m_LiteralDepth = 0;
+			Element element = m_Stack.remove(m_Stack.size() - 1);
+			if (element.m_Property == null) {
+				return;
+			}
+			String subject = m_Stack.get(m_Stack.size() - 1).m_Subject;
+			if (element.m_HasResource) {
+				statement(subject, element.m_Property, element.m_Resource, null, null);
+			} else if (element.m_Text != null) {
+				statement(subject, element.m_Property, null,
+						element.m_Text.toString(), element.m_Language);
+			}
+		}
+	}
+
+	/**
+	 * Resolves a URI reference against the xml:base in scope, if any.
+	 */
+	private static String resolve(String base, String reference) {
+		if ((base == null) || (base.length() == 0)) {
+			return reference;
+		}
+		try {
+			return new URI(base).resolve(reference).toString();
+		} catch (Exception e) {
+			return reference;
+		}
+	}
+}
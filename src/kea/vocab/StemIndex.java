@@ -0,0 +1,178 @@
+package kea.vocab;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import kea.util.IntTupleMap;
+
+/**
+ * The terms of a vocabulary as sets of stem ids. The pseudo phrase of
+ * a term is its stems sorted and joined by spaces, so a term is also
+ * identified by the sorted ids of its stems, and an n-gram of plain
+ * words can be looked up from the stem ids of its words without building
+ * its pseudo phrase. The index also holds every part of a term (every
+ * sub-multiset of its stems), so that growing an n-gram can stop as
+ * soon as its stems are not part of any term. Terms with very many
+ * stems have too many parts to index; their stems are marked instead,
+ * and any n-gram made of marked stems counts as part of a term.
+ *
+ * The index is built once and only read afterwards, so it can be used
+ * from several threads at the same time.
+ *
+ * @version 1.0
+ */
+class StemIndex {
+
+	/** Parts of terms are only indexed up to this number of stems */
+	static final int MAX_PART_LENGTH = 8;
+
+	/** The parts of terms with more stems than this are not indexed */
+	static final int MAX_TERM_LENGTH = 16;
+
+	/** The ids of the stems occurring in the terms */
+	private final HashMap<String,Integer> m_StemIds = new HashMap<String,Integer>();
+
+	/** The terms, by their sorted stem ids */
+	private final IntTupleMap m_Terms = new IntTupleMap();
+
+	/** Per term: its id, with non-descriptors replaced by their descriptor */
+	private String[] m_TermIds;
+
+	/** The parts of the terms, by their sorted stem ids */
+	private final IntTupleMap m_Parts = new IntTupleMap();
+
+	/** Per stem: does it occur in a term whose parts are not indexed? */
+	private boolean[] m_InLongTerm = new boolean[0];
+
+	/**
+	 * Builds the index of a vocabulary.
+	 *
+	 * @param concepts the terms of the vocabulary and their concepts
+	 */
+	StemIndex(ConceptTable concepts) {
+
+		m_TermIds = new String[concepts.numTerms()];
+		int[] stems = new int[16];
+		int[] part = new int[MAX_PART_LENGTH];
+		for (int t = 0; t < concepts.numTerms(); t++) {
+			String pseudo = concepts.termPhrase(t);
+			String[] words = pseudo.split(" ", -1);
+			if (!isSorted(words)) {
+				// Can't be the pseudo phrase of an n-gram
+				continue;
+			}
+			if (words.length > stems.length) {
+				stems = new int[words.length];
+			}
+			for (int i = 0; i < words.length; i++) {
+				stems[i] = stemId(words[i]);
+			}
+			Arrays.sort(stems, 0, words.length);
+
+			// Different pseudo phrases have different stems,
+			// so there is a new term for every pseudo phrase
+			int term = m_Terms.add(stems, words.length);
+			int concept = concepts.termConcept(t);
+			if (concepts.descriptor(concept) >= 0) {
+				concept = concepts.descriptor(concept);
+			}
+			m_TermIds[term] = concepts.id(concept);
+
+			if (words.length <= MAX_TERM_LENGTH) {
+				addParts(stems, words.length, 0, part, 0);
+			} else {
+				if (m_InLongTerm.length < m_StemIds.size()) {
+					m_InLongTerm = Arrays.copyOf(m_InLongTerm,
+							Math.max(m_StemIds.size(), 2 * m_InLongTerm.length));
+				}
+				for (int i = 0; i < words.length; i++) {
+					m_InLongTerm[stems[i]] = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the id of a stem, or -1 if no term contains the stem.
+	 */
+	int getStemId(String stem) {
+		Integer id = m_StemIds.get(stem);
+		return (id == null) ? -1 : id.intValue();
+	}
+
+	/**
+	 * Returns the id of the term with the given stems, or null.
+	 *
+	 * @param stems the stem ids, in ascending order
+	 * @param numStems the number of stems
+	 */
+	String getID(int[] stems, int numStems) {
+		int term = m_Terms.indexOf(stems, numStems);
+		return (term < 0) ? null : m_TermIds[term];
+	}
+
+	/**
+	 * Returns false if no term contains the given stems, true if some
+	 * term may contain them.
+	 *
+	 * @param stems the stem ids, in ascending order
+	 * @param numStems the number of stems
+	 */
+	boolean isPartOfTerm(int[] stems, int numStems) {
+
+		if ((numStems > MAX_PART_LENGTH) || (m_Parts.indexOf(stems, numStems) >= 0)) {
+			return true;
+		}
+		for (int i = 0; i < numStems; i++) {
+			if ((stems[i] >= m_InLongTerm.length) || !m_InLongTerm[stems[i]]) {
+				return false;
+			}
+		}
+		return numStems > 0;
+	}
+
+	private int stemId(String stem) {
+		Integer id = m_StemIds.get(stem);
+		if (id == null) {
+			id = Integer.valueOf(m_StemIds.size());
+			m_StemIds.put(stem, id);
+		}
+		return id.intValue();
+	}
+
+	/**
+	 * Returns true if the words are non-empty and in the order
+	 * in which pseudo phrases sort them.
+	 */
+	private static boolean isSorted(String[] words) {
+		for (int i = 0; i < words.length; i++) {
+			if ((words[i].length() == 0) ||
+					((i > 0) && (words[i - 1].compareTo(words[i]) > 0))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds all parts of the sorted stems that extend the first length
+	 * elements of part with stems from index from onwards.
+	 */
+	private void addParts(int[] stems, int numStems, int from, int[] part, int length) {
+
+		if (length > 0) {
+			m_Parts.add(part, length);
+		}
+		if (length == MAX_PART_LENGTH) {
+			return;
+		}
+		for (int i = from; i < numStems; i++) {
+			// Equal stems give the same parts
+			if ((i > from) && (stems[i] == stems[i - 1])) {
+				continue;
+			}
+			part[length] = stems[i];
+			addParts(stems, numStems, i + 1, part, length + 1);
+		}
+	}
+}
@@ -3,24 +3,18 @@ package kea.vocab;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import kea.stemmers.SpanishStemmerSB;
 import kea.stemmers.Stemmer;
 import kea.stopwords.Stopwords;
-
-import com.hp.hpl.jena.rdf.model.Model;
-import com.hp.hpl.jena.rdf.model.ModelFactory;
-import com.hp.hpl.jena.rdf.model.Property;
-import com.hp.hpl.jena.rdf.model.RDFNode;
-import com.hp.hpl.jena.rdf.model.Resource;
-import com.hp.hpl.jena.rdf.model.Statement;
-import com.hp.hpl.jena.rdf.model.StmtIterator;
+import kea.util.PhraseNormalizer;
 
 
 /**
@@ -39,16 +33,16 @@ public class Vocabulary implements Serializable {
 	
 	/** Location of the rdf version of the controlled vocabulary
 	 * it needs to be in the SKOS format! */
-	public static File SKOS;
+	private File SKOS;
 	/** Location of the vocabulary's *.en file
 	 * containing all terms of the vocabularies and their ids.*/
-	public static File EN;
+	private File EN;
 	/** Location of the vocabulary's *.use file
 	 * containing ids of non-descriptor with the corresponding ids of descriptors.*/
-	public static File USE;
+	private File USE;
 	/** Location of the vocabulary's *.rel file
 	 * containing semantically related terms for each descriptor in the vocabulary.*/
-	public static File REL;
+	private File REL;
 	
 	// if the type of the semantic relation will be required later 
 	// this could be a file containing
@@ -61,15 +55,27 @@ public class Vocabulary implements Serializable {
 	 */
 	private boolean useSkos;
 	
-	/** <i>Vocabulary</i> index */
-	private HashMap<String,String> VocabularyEN = null;
-	/** <i>Vocabulary</i> reverse index */
-	private HashMap<String,String> VocabularyENrev = null;
-	/** <i>Vocabulary</i> non-descriptors - descriptors list */
-	private HashMap<String,String> VocabularyUSE = null;
-	/** <i>Vocabulary</i> related terms */
+	/** Location of the snapshot of the indexes, see VocabularySnapshot */
+	private File SNAPSHOT;
+	
+	/** Were the indexes read from the snapshot? */
+	private boolean m_FromSnapshot = false;
+	
+	/** Did reading a file fail while building the indexes? */
+	private boolean m_Incomplete = false;
+	
+	/**
+	 * <i>Vocabulary</i> index, reverse index and
+	 * non-descriptors - descriptors list
+	 */
+	private transient ConceptTable m_Concepts = null;
+	/** <i>Vocabulary</i> related terms, until buildConceptGraph() */
 	private HashMap<String,Vector<String>> VocabularyREL = null;
 	private HashMap<String,String> VocabularyRT = null;
+	/** <i>Vocabulary</i> related terms, see buildConceptGraph() */
+	private transient ConceptGraph m_ConceptGraph = null;
+	/** The number of non-descriptors read from the SKOS file */
+	private int m_NumNonDescriptors = 0;
 	
 	/** The document language */
 	private String m_language;
@@ -80,13 +86,25 @@ public class Vocabulary implements Serializable {
 	/** The list of stop words to be used */
 	private Stopwords m_Stopwords;
 	
+	/** The terms by the ids of their stems, see buildStemIndex() */
+	private transient StemIndex m_StemIndex = null;
+	
+	/** getStemId() of a stop word */
+	public static final int STOPWORD = -1;
+	
+	/** getStemId() of a word whose stem occurs in no term */
+	public static final int UNKNOWN_STEM = -2;
+	
+	/** getStemId() of a word that has to be looked up with getID() */
+	public static final int COMPLEX_WORD = -3;
+	
 	
 	
 	/** Vocabulary constructor. 
 	 * 
 	 * Given the name of the vocabulary and the format it first checks whether
 	 * the VOCABULARIES directory contains the specified files:
-	 * - vocabularyName.rdf if skos format is selected
+	 * - vocabularyName.rdf (or vocabularyName.nt) if skos format is selected
 	 * - or a set of 3 flat files starting with vocabularyName and with extensions
 	 * .en (id term)
 	 * .use (non-descriptor \t descriptor)
@@ -99,8 +117,14 @@ public class Vocabulary implements Serializable {
 	
 	public Vocabulary(String vocabularyName, String vocabularyFormat, String documentLanguage) {
 		m_language = documentLanguage;
+		SNAPSHOT = new File("VOCABULARIES/" + vocabularyName + "." + vocabularyFormat + "."
+				+ documentLanguage + ".snapshot");
 		if (vocabularyFormat.equals("skos")) {
 			SKOS = new File("VOCABULARIES/" + vocabularyName + ".rdf");
+			if (!SKOS.exists() && new File("VOCABULARIES/" + vocabularyName + ".nt").exists()) {
+				// N-Triples
+				SKOS = new File("VOCABULARIES/" + vocabularyName + ".nt");
+			}
 			if (!SKOS.exists()){
 				System.err.println("File VOCABULARIES/" + vocabularyName + ".rdf does not exist.");
 				System.exit(1);
@@ -141,6 +165,9 @@ public class Vocabulary implements Serializable {
 	public void initialize() {
 		
 		System.err.println("-- Loading the Index...");
+		if (readSnapshot(null)) {
+			return;
+		}
 		if (useSkos) {
 			try {
 				buildSKOS();
@@ -158,6 +185,82 @@ public class Vocabulary implements Serializable {
 		}	
 	}
 	
+	/**
+	 * Returns the fingerprint of the sources and the settings
+	 * the indexes are built from, or null if they are not known.
+	 */
+	private byte[] fingerprint() throws IOException {
+		if ((m_Stemmer == null) || (m_Stopwords == null)) {
+			return null;
+		}
+		File[] sources = useSkos ? new File[] {SKOS} : new File[] {EN, USE, REL};
+		return VocabularySnapshot.fingerprint(useSkos ? "skos" : "text", m_language,
+				sources, m_Stemmer, m_Stopwords);
+	}
+	
+	/**
+	 * Reads the indexes from the snapshot of the vocabulary, if there is
+	 * one and it is up to date.
+	 * 
+	 * @param graph the graph of related terms, if it is already known
+	 * (then it is not read from the snapshot), or null
+	 * @return true if the indexes were read
+	 */
+	private boolean readSnapshot(ConceptGraph graph) {
+		try {
+			byte[] fingerprint = fingerprint();
+			VocabularySnapshot snapshot = (fingerprint == null) ? null
+					: VocabularySnapshot.read(SNAPSHOT, fingerprint, graph == null);
+			if (snapshot == null) {
+				return false;
+			}
+			m_Concepts = snapshot.m_Concepts;
+			m_ConceptGraph = (graph == null) ? snapshot.m_Graph : graph;
+			m_FromSnapshot = true;
+			System.err.println("-- Read the Vocabulary index from " + SNAPSHOT);
+			return true;
+		} catch (Exception e) {
+			// Build the indexes instead
+			System.err.println("Can't read " + SNAPSHOT + ": " + e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Saves the indexes to the snapshot of the vocabulary, so that the
+	 * next initialize() reads them from there instead of building them.
+	 * Must be called after the indexes have been built (initialize(),
+	 * buildUSE(), buildREL() and buildConceptGraph()). Does nothing if
+	 * they were read from the snapshot, or if they are incomplete because
+	 * a file could not be read. A vocabulary that can't be saved is only
+	 * reported.
+	 */
+	public void saveSnapshot() {
+		if (m_FromSnapshot) {
+			return;
+		}
+		if (m_Incomplete) {
+			System.err.println("Not saving " + SNAPSHOT + ": the index is incomplete");
+			return;
+		}
+		try {
+			byte[] fingerprint = fingerprint();
+			if (fingerprint != null) {
+				new VocabularySnapshot(m_Concepts, m_ConceptGraph).write(SNAPSHOT, fingerprint);
+			}
+		} catch (IOException e) {
+			System.err.println("Can't save " + SNAPSHOT + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Returns false if reading a file failed while building the indexes,
+	 * so that they are incomplete.
+	 */
+	public boolean isComplete() {
+		return !m_Incomplete;
+	}
+	
 	/**
 	 * Set the Stemmer value.
 	 * @param newStemmer The new Stemmer value.
@@ -180,170 +283,127 @@ public class Vocabulary implements Serializable {
 	 * Builds the vocabulary indexes from SKOS file.
 	 */
 	public void buildSKOS() throws Exception {
-		
+		buildSKOS(SKOS, new Vocabulary[] {this});
+	}
+	
+	/**
+	 * Builds the indexes of several vocabularies, for different languages,
+	 * from the same SKOS file in one pass. Each vocabulary indexes the
+	 * labels in its language with its own stemmer and stop words; the
+	 * graph of related terms is built once and shared by all of them.
+	 * 
+	 * @exception Exception if the SKOS file can't be read
+	 */
+	static void buildSKOS(File skos, final Vocabulary[] vocabularies) throws Exception {
 		
 		System.err.println("-- Building the Vocabulary index from SKOS file");
 		
-		VocabularyEN = new HashMap<String,String>();
-		VocabularyENrev = new HashMap<String,String>();
-		VocabularyUSE = new HashMap<String,String>();
-		VocabularyREL = new HashMap<String,Vector<String>>();
-		VocabularyRT = new HashMap<String,String>();
-		
+		HashSet<String> languages = new HashSet<String>();
+		final HashMap<String,Vector<String>> related = new HashMap<String,Vector<String>>();
+		final HashMap<String,String> types = new HashMap<String,String>();
+		for (int i = 0; i < vocabularies.length; i++) {
+			languages.add(vocabularies[i].m_language);
+			vocabularies[i].m_Concepts = new ConceptTable();
+			vocabularies[i].m_NumNonDescriptors = 0;
+		}
 		
-        // create an empty model
-        Model model = ModelFactory.createDefaultModel();
-        
-        
-        try {
+		// The statements are handled as they are read,
+		// the file is never held in memory as a whole
+		SkosReader reader = new SkosReader(languages, new SkosReader.Handler() {
 
-    	    model.read(new InputStreamReader(new FileInputStream(SKOS),"UTF-8"), "");
-            
-    	    StmtIterator iter;
-    	    Statement stmt;
-    	    Property relation;
-    	    Resource concept;
-    	    RDFNode value;
-    	    
-    	    
-    	    
-    	    int count = 1;
-    	    // Iterating over all statements in the SKOS file
-    	    iter = model.listStatements();
-    	    
-    	    while (iter.hasNext()) {
-    	    	stmt = iter.nextStatement();
+			public void label(String id, String rel, String val, String language) {
+				// Labels without a language belong to every language
+				for (int i = 0; i < vocabularies.length; i++) {
+					if ((language == null) || language.equals(vocabularies[i].m_language)) {
+						vocabularies[i].addLabel(id, rel, val);
+					}
+				}
+			}
 
-    	    	// id of the concept (Resource), e.g. "c_4828"
-    	    	concept = stmt.getSubject();    	    
-    	    	String id = concept.getURI();
-    	    	
-    	    	// relation or Property of the concept, e.g. "narrower"
-    	    	relation = stmt.getPredicate();
-    	    	String rel = relation.getLocalName();
-    	    	
-    	    	// value of the property, e.g. c_4828 has narrower term "c_4829"
-    	    	value = stmt.getObject();  	    	
-    	    	String val = value.toString();
-    	    	
-    	    	//System.out.println("Concept " + concept);
-    	    	//System.out.println("Relation " + rel);    	    	
-    	    	//System.out.println("Value " + val);
-    	    	
-    	    	if (rel.equals("prefLabel")) {
-    	    		
-    	    		String descriptor;
-    	    		
-    	    		if (val.contains("@")) {
-    	    			String[] val_components = val.split("@");
-    	    			// System.err.println(val_components[1] + " " + m_language);
-    	    			if (val_components[1].equals(m_language)) {
-    	    			//	System.err.println("Yes");
-    	    				descriptor = val_components[0];
-    	    			} else {
-    	    				continue;
-    	    			}
-    	    		} else {
-    	    			descriptor = val;
-    	    		}
-        	    	
-    	    		String avterm = pseudoPhrase(descriptor); 
-    	    		if (avterm.equals("")) {
-    	    			avterm = descriptor;
-    	    		}
-    	    		
-    	    		// System.out.println(descriptor + " ==> " + avterm);
-    	    		
-    				if (avterm.length() > 1) {    					
-    					VocabularyEN.put(avterm, id);
-    					VocabularyENrev.put(id,descriptor);
-    				}	
-    				
-    	    		// fill here the index hash
-    	    		
-    	    		// id => descriptor
-    	    		//if (id.equals("http://www.fao.org/aos/agrovoc#c_4314")) {
-    	    		//	System.out.println("Descriptor " + descriptor + " (" + id + ")");
-    	    		//}
-    	    		
-    	    	} else if (rel.equals("altLabel") || (rel.equals("hiddenLabel"))) {
-    	    		
-    	    		String non_descriptor;
-    	    		
-    	    		if (val.contains("@")) {
-    	    			String[] val_components = val.split("@");
-    	    			// System.err.println(val_components[1] + " " + m_language);
-    	    			if (val_components[1].equals(m_language)) {
-    	    			//	System.err.println("Yes");
-    	    				non_descriptor = val_components[0];
-    	    			} else {
-    	    				continue;
-    	    			}
-    	    		} else {
-    	    			non_descriptor = val;
-    	    		}
-    	    		// System.out.println("Descriptor " + non_descriptor);
-    	    		// first add the non_descriptor to the index hash	
-    	    		// then fill here non-descriptor hash
-    	    		
-    	    		// id => id_non_descriptor
-    	    		 addNonDescriptor (count, id, non_descriptor);                   
-                     count++;
-    				
-    	    		//System.out.println("Descriptor " + VocabularyENrev.get(id) + " with id (" + id + ")" +
-    	    			//	" has a non-descriptor " + non_descriptor + " (" + id_non_descriptor + ")");    	    		
-    	    		
-    	    	} else if (rel.equals("broader") 
-    	    		|| rel.equals("narrower") 
-    	    		|| rel.equals("composite")
-    	    		|| rel.equals("compositeOf")
-    	    		|| rel.equals("hasTopConcept")
-    	    		|| rel.equals("related")) {
-    	    		    	    	
-        	    	String id_related = val;
-        	    	
-        	    	// System.out.println("Descriptor " + VocabularyENrev.get(id) + " with id " + id + 
-    	    		//		" has a " + rel + " term " + VocabularyENrev.get(id_related) + " with id (" + id_related + ")");    
-        	    	
-        	    	// fill here semantic relations hash
-        	    	// id => id_related
-        	    	
-        	    	if (VocabularyREL.get(id) == null) {
-        	    		Vector rt = new Vector();
-        	    		rt.add(id_related);         	    		
-        	    		VocabularyREL.put(id,rt);
-        	    	}	else {      	    		
-        	    		Vector rt = (Vector)VocabularyREL.get(id);
-        	    		rt.add(id_related);         	    		
-        	    		VocabularyREL.put(id,rt);        	    		        	    		
-        	    	}
-        	    	
-        	    	VocabularyRT.put(id + "-" + id_related,rel);
-        	    	if (rel.equals("related")) {
-        	    		VocabularyRT.put(id_related + "-" + id,rel);
-        	    	}
-    				
-        	    	
-        	    	// VocabularyRT.put("id-id_related","1");
-        	    	// VocabularyRT.put("id_related-id","1");
-    				
-    	    	}
-    	    	
-    	    }
-    	   
-    	    // Some statistics:
-    	 //    System.out.println(VocabularyEN.size() + " terms in total");
-    	 //   System.out.println(VocabularyUSE.size() + " non-descriptors");
-    	  //   System.out.println(VocabularyREL.size() + " terms have related terms");
-    	    
-    	} catch (Exception e) {
-    	   e.printStackTrace(); 
-    	}
+			public void relation(String id, String rel, String id_related) {
+
+				// fill here semantic relations hash
+				// id => id_related
+				Vector<String> rt = related.get(id);
+				if (rt == null) {
+					rt = new Vector<String>();
+					related.put(id, rt);
+				}
+				rt.add(id_related);
+
+				types.put(id + "-" + id_related, rel);
+				if (rel.equals("related")) {
+					types.put(id_related + "-" + id, rel);
+				}
+			}
+		});
+
+		reader.read(skos);
+		
+		ConceptGraph graph = ConceptGraph.build(related, types);
+		for (int i = 0; i < vocabularies.length; i++) {
+			vocabularies[i].m_ConceptGraph = graph;
+		}
 	}
 	
+	/**
+	 * Adds a label of a concept from the SKOS file to the index.
+	 */
+	private void addLabel(String id, String rel, String val) {
+		
+		if (rel.equals("prefLabel")) {
+			
+			String descriptor = val;
+			String avterm = pseudoPhrase(descriptor);
+			if (avterm.equals("")) {
+				avterm = descriptor;
+			}
+			if (avterm.length() > 1) {
+				m_Concepts.putTerm(avterm, id);
+				m_Concepts.putLabel(id, descriptor);
+			}
+		} else {
+			
+			// altLabel or hiddenLabel:
+			// id => id_non_descriptor
+			m_NumNonDescriptors++;
+			addNonDescriptor(m_NumNonDescriptors, id, val);
+		}
+	}
+	
+	/**
+	 * Initializes several vocabularies of the same SKOS file, for
+	 * different languages, as initialize(), buildUSE(), buildREL() and
+	 * buildConceptGraph() would, and saves their snapshots. Reads the
+	 * snapshots if all of them are up to date, otherwise reads the SKOS
+	 * file once for all languages (see buildSKOS(File, Vocabulary[])).
+	 * Either way, the vocabularies share one graph of related terms.
+	 * No snapshot is saved if the SKOS file can't be read.
+	 * 
+	 * @param vocabularies the vocabularies, with their stemmers and stop words
+	 * @exception Exception if the SKOS file can't be read
+	 */
+	static void initializeSKOS(Vocabulary[] vocabularies) throws Exception {
+		
+		System.err.println("-- Loading the Index...");
+		ConceptGraph graph = null;
+		boolean fromSnapshots = true;
+		for (int i = 0; (i < vocabularies.length) && fromSnapshots; i++) {
+			fromSnapshots = vocabularies[i].readSnapshot(graph);
+			graph = vocabularies[i].m_ConceptGraph;
+		}
+		if (fromSnapshots) {
+			return;
+		}
+		for (int i = 0; i < vocabularies.length; i++) {
+			vocabularies[i].m_FromSnapshot = false;
+		}
+		buildSKOS(vocabularies[0].SKOS, vocabularies);
+		for (int i = 0; i < vocabularies.length; i++) {
+			vocabularies[i].saveSnapshot();
+		}
+	}
 	
-
-   
     private void addNonDescriptor (int count, String id_descriptor, String non_descriptor) {
         //     id => id_non_descriptor
         String id_non_descriptor = "d_" + count;
@@ -351,10 +411,10 @@ public class Vocabulary implements Serializable {
    
         String avterm = pseudoPhrase(non_descriptor);
         if (avterm.length() > 2) {                       
-            VocabularyEN.put(avterm, id_non_descriptor);
-            VocabularyENrev.put(id_non_descriptor,non_descriptor);
+            m_Concepts.putTerm(avterm, id_non_descriptor);
+            m_Concepts.putLabel(id_non_descriptor,non_descriptor);
         }   
-        VocabularyUSE.put(id_non_descriptor,id_descriptor);
+        m_Concepts.putDescriptor(id_non_descriptor,id_descriptor);
     }
    
     public String remove (String[] words, int i) {
@@ -381,8 +441,7 @@ public class Vocabulary implements Serializable {
 		
 		System.err.println("-- Building the Vocabulary index");
 		
-		VocabularyEN = new HashMap<String,String>();
-		VocabularyENrev = new HashMap<String,String>();
+		m_Concepts = new ConceptTable();
 		
 		String readline;
 		String term;
@@ -400,12 +459,13 @@ public class Vocabulary implements Serializable {
 				
 				if (avterm.length() > 2) {
 					id = readline.substring(0,i); 
-					VocabularyEN.put(avterm, id);
-					VocabularyENrev.put(id,term);
+					m_Concepts.putTerm(avterm, id);
+					m_Concepts.putLabel(id,term);
 				}				
 			}
 		} catch (Exception e) {
 			e.printStackTrace();	
+			m_Incomplete = true;
 		}
 		
 	}   
@@ -415,8 +475,7 @@ public class Vocabulary implements Serializable {
 	 * Builds the vocabulary index with descriptors/non-descriptors relations.
 	 */
 	public void buildUSE() throws Exception {
-		if (!useSkos) {
-			VocabularyUSE = new HashMap<String,String>();
+		if (!useSkos && !m_FromSnapshot) {
 			String readline;
 			String[] entry;
 			
@@ -432,11 +491,12 @@ public class Vocabulary implements Serializable {
 //					probably just related terms (cf. latest edition of Agrovoc)
 					
 					if ((entry[1].indexOf(" ")) == -1) {
-						VocabularyUSE.put(entry[0],entry[1]);
+						m_Concepts.putDescriptor(entry[0],entry[1]);
 					}
 				}
 			} catch (Exception e) {
 				e.printStackTrace();				 	
+				m_Incomplete = true;
 			}
 		}
 		
@@ -446,7 +506,7 @@ public class Vocabulary implements Serializable {
 	 * Builds the vocabulary index with semantically related terms.
 	 */
 	public void buildREL() throws Exception {
-		if (!useSkos) {
+		if (!useSkos && !m_FromSnapshot) {
 			
 			System.err.println("-- Building the Vocabulary index with related pairs");
 			
@@ -471,6 +531,7 @@ public class Vocabulary implements Serializable {
 				}
 			} catch (Exception e) {
 				e.printStackTrace(); 	
+				m_Incomplete = true;
 			}
 		}
 		
@@ -510,7 +571,7 @@ public class Vocabulary implements Serializable {
 	 * @return true if phrase is in the vocabulary
 	 */
 	public boolean containsEntry(String phrase) {
-		return VocabularyEN.containsKey(phrase);
+		return m_Concepts.conceptOf(phrase) >= 0;
 	}
 	
 	/**
@@ -522,21 +583,118 @@ public class Vocabulary implements Serializable {
 		String pseudo = pseudoPhrase(phrase);
 		String id = null;
 		if (pseudo != null) {
-			id = (String)VocabularyEN.get(pseudo);
-			if (VocabularyUSE.containsKey(id)) {
-				id = (String)VocabularyUSE.get(id);
+			int concept = m_Concepts.conceptOf(pseudo);
+			if (concept >= 0) {
+				int descriptor = m_Concepts.descriptor(concept);
+				id = m_Concepts.id((descriptor >= 0) ? descriptor : concept);
 			}
 		}
 		return id;
 	}
 	
+	/**
+	 * Builds the index of the terms by the ids of their stems, which
+	 * getStemId(), getID(int[], int) and isPartOfTerm() use. Must be
+	 * called after the index and the non-descriptors have been built.
+	 */
+	public void buildStemIndex() {
+		m_StemIndex = new StemIndex(m_Concepts);
+	}
+	
+	/**
+	 * Returns the id of the stem of a word in the stem index. A word
+	 * made of letters and digits only adds its stem to the pseudo phrase
+	 * of any phrase it is part of, unless it is a stop word, so phrases
+	 * of such words can be looked up by the ids of their stems. Other
+	 * words return COMPLEX_WORD: phrases containing them have to be
+	 * looked up with getID(String). So do all words if there is no
+	 * stem index.
+	 * 
+	 * @param word a word as it occurs in a document
+	 * @return the id of its stem, STOPWORD, UNKNOWN_STEM or COMPLEX_WORD
+	 */
+	public int getStemId(String word) {
+		
+		if ((m_StemIndex == null) || !isLetterOrDigit(word)) {
+			return COMPLEX_WORD;
+		}
+		String lower = word.toLowerCase();
+		if (!isLowerCaseLetterOrDigit(lower)) {
+			return COMPLEX_WORD;
+		}
+		if (m_Stopwords.isStopword(lower)) {
+			return STOPWORD;
+		}
+		String stem = m_Stemmer.stemCached(lower);
+		if ((stem.length() == 0) || (stem.indexOf(' ') >= 0)) {
+			return COMPLEX_WORD;
+		}
+		int id = m_StemIndex.getStemId(stem);
+		return (id < 0) ? UNKNOWN_STEM : id;
+	}
+	
+	private static boolean isLetterOrDigit(String word) {
+		if (word.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < word.length(); i++) {
+			if (!Character.isLetterOrDigit(word.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns true if the word is made of letters and digits that
+	 * lower-casing leaves as they are.
+	 */
+	private static boolean isLowerCaseLetterOrDigit(String word) {
+		if (word.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (!Character.isLetterOrDigit(c) || (Character.toLowerCase(c) != c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Given the stem ids of the words of a phrase (from getStemId()),
+	 * returns the id of the phrase in the vocabulary, like getID(String).
+	 * 
+	 * @param stems the stem ids, in ascending order
+	 * @param numStems the number of stem ids
+	 * @return id of the phrase in the vocabulary index, or null
+	 */
+	public String getID(int[] stems, int numStems) {
+		return m_StemIndex.getID(stems, numStems);
+	}
+	
+	/**
+	 * Returns false if no term of the vocabulary contains the given
+	 * stems (from getStemId()), so that no phrase containing words
+	 * with these stems can be a term.
+	 * 
+	 * @param stems the stem ids, in ascending order
+	 * @param numStems the number of stem ids
+	 * @return false if no term contains the stems
+	 */
+	public boolean isPartOfTerm(int[] stems, int numStems) {
+		return m_StemIndex.isPartOfTerm(stems, numStems);
+	}
+	
 	/**
 	 * Given id, gets the original version of vocabulary term.
 	 * @param id
 	 * @return original version of the vocabulary term
 	 */
 	public String getOrig(String id) {
-		return (String)VocabularyENrev.get(id);
+		int concept = m_Concepts.indexOf(id);
+		return (concept < 0) ? null : m_Concepts.label(concept);
 	}
 	
 	/**
@@ -545,16 +703,111 @@ public class Vocabulary implements Serializable {
 	 * @return id of the descriptor
 	 */
 	public String getDescriptor(String id) {
-		return (String)VocabularyUSE.get(id);
+		int concept = m_Concepts.indexOf(id);
+		int descriptor = (concept < 0) ? -1 : m_Concepts.descriptor(concept);
+		return (descriptor < 0) ? null : m_Concepts.id(descriptor);
+	}
+	
+	/**
+	 * Builds the graph of related terms from the related terms and the
+	 * types of relations read from the files, which are not needed
+	 * afterwards. Must be called after buildREL(); does nothing if the
+	 * graph was read from the snapshot.
+	 */
+	public void buildConceptGraph() {
+		if (m_ConceptGraph == null) {
+			m_ConceptGraph = ConceptGraph.build(VocabularyREL, VocabularyRT);
+		}
+		VocabularyREL = null;
+		VocabularyRT = null;
+	}
+	
+	/**
+	 * Returns the graph of related terms.
+	 */
+	public ConceptGraph getConceptGraph() {
+		return m_ConceptGraph;
+	}
+	
+	/**
+	 * Returns the number of a term in the graph of related terms, for
+	 * firstRelated() and endRelated(). Together they go through the
+	 * related terms without allocating anything:
+	 * 
+	 * <pre>
+	 * int concept = vocabulary.getConcept(id);
+	 * if (concept >= 0) {
+	 *   for (int r = vocabulary.firstRelated(concept, null);
+	 *        r < vocabulary.endRelated(concept, null); r++) {
+	 *     String relatedId = vocabulary.getRelatedID(r);
+	 *     ...
+	 * </pre>
+	 * 
+	 * @param id the id of the term
+	 * @return its number, or -1 if it has no related terms
+	 */
+	public int getConcept(String id) {
+		return m_ConceptGraph.indexOf(id);
+	}
+	
+	/**
+	 * Returns the first relation of a term with the given type of relation.
+	 * 
+	 * @param concept the number of the term (from getConcept())
+	 * @param relation the type of relation, or null for all relations
+	 * @return the first relation
+	 */
+	public int firstRelated(int concept, String relation) {
+		if (relation == null) {
+			return m_ConceptGraph.firstRelation(concept);
+		}
+		byte type = ConceptGraph.relationType(relation);
+		return (type == ConceptGraph.UNKNOWN) ? m_ConceptGraph.endRelation(concept)
+				: m_ConceptGraph.firstRelation(concept, type);
+	}
+	
+	/**
+	 * Returns the relation after the last relation of a term with the
+	 * given type of relation.
+	 * 
+	 * @param concept the number of the term (from getConcept())
+	 * @param relation the type of relation, or null for all relations
+	 * @return the relation after the last one
+	 */
+	public int endRelated(int concept, String relation) {
+		if (relation == null) {
+			return m_ConceptGraph.endRelation(concept);
+		}
+		byte type = ConceptGraph.relationType(relation);
+		return (type == ConceptGraph.UNKNOWN) ? m_ConceptGraph.endRelation(concept)
+				: m_ConceptGraph.endRelation(concept, type);
+	}
+	
+	/**
+	 * Returns the id of the related term of a relation.
+	 * 
+	 * @param relation the relation (from firstRelated() and endRelated())
+	 * @return the id of the related term
+	 */
+	public String getRelatedID(int relation) {
+		return m_ConceptGraph.id(m_ConceptGraph.target(relation));
 	}
 	
 	/**
 	 * Given id of a term returns the list with ids of terms related to this term.
 	 * @param id
-	 * @return a vector with ids related to the input id
+	 * @return a vector with ids related to the input id, or null if there are none
 	 */
 	public Vector<String> getRelated(String id) {
-		return VocabularyREL.get(id);
+		int concept = getConcept(id);
+		if ((concept < 0) || (firstRelated(concept, null) == endRelated(concept, null))) {
+			return null;
+		}
+		Vector<String> related = new Vector<String>();
+		for (int r = firstRelated(concept, null); r < endRelated(concept, null); r++) {
+			related.add(getRelatedID(r));
+		}
+		return related;
 	}
 	
 	
@@ -567,21 +820,10 @@ public class Vocabulary implements Serializable {
 	 */
 	public Vector getRelated (String id, String relation) {
 		Vector related = new Vector(); 
-		Vector all_related = (Vector)VocabularyREL.get(id);
-		if (all_related != null) {
-    	
-			for (int d = 0; d < all_related.size(); d++) {
-				String rel_id = (String)all_related.elementAt(d);	
-			
-				String rel = (String)VocabularyRT.get(id + "-" + rel_id);
-
-				if (rel != null) { 
-					if (rel.equals(relation)) {
-						related.add(rel_id);
-					}
-				} else {
-					System.err.println("Problem with " + getOrig(id) + " and " + getOrig(rel_id));	
-				}
+		int concept = getConcept(id);
+		if ((concept >= 0) && (relation != null)) {
+			for (int r = firstRelated(concept, relation); r < endRelated(concept, relation); r++) {
+				related.add(getRelatedID(r));
 			}
     	}
     	return related;
@@ -595,93 +837,9 @@ public class Vocabulary implements Serializable {
 	 * which are stemmed and sorted into alphabetical order. 
 	 */
 	public String pseudoPhrase(String str) {
-		// System.err.print(str + "\t");
-		String[] pseudophrase;
-		String[] words;
-		String str_nostop;
-		String stemmed;
-		
-		
-		str = str.toLowerCase();
-		
-		
-		// This is often the case with Mesh Terms,
-		// where a term is accompanied by another specifying term
-		// e.g. Monocytes/*immunology/microbiology
-		// we ignore everything after the "/" symbol.
-		if (str.matches(".+?/.+?")) {
-			String[] elements = str.split("/");		
-			str = elements[0];
-		}	
-				
-		// removes scop notes in brackets
-		// should be replaced with a cleaner solution !!
-		if (str.matches(".+?\\(.+?")) {
-			String[] elements = str.split("\\(");		
-			str = elements[0];			
-		}	
-
-	
-		
-		// Remove some non-alphanumeric characters
-		
-		// str = str.replace('/', ' ');
-		str = str.replace('-', ' ');
-		str = str.replace('&', ' ');
-		
-
-		str = str.replaceAll("\\*", "");
-		str = str.replaceAll("\\, "," ");
-		str = str.replaceAll("\\. "," ");
-		str = str.replaceAll("\\:","");
-	
-		
-		str = str.trim();
-		
-		// Stem string
-		words = str.split(" ");
-		str_nostop = "";
-	
-		for (int i = 0; i < words.length; i++) {
-			String word = words[i];
-			if (!m_Stopwords.isStopword(word)) {
-				
-				if (word.matches(".+?\\'.+?")) {
-					String[] elements = word.split("\\'");		
-					word = elements[1];			
-				}	
-
-				
-				if (str_nostop.equals("")) {
-					str_nostop = word;
-				} else {
-					str_nostop = str_nostop + " " + word;
-				}
-			}
-		}
-
-		stemmed = m_Stemmer.stemString(str_nostop);
-		// System.err.println(stemmed + "\t" + str_nostop + "\t"+ str);
-		pseudophrase = stemmed.split(" ");
-		Arrays.sort(pseudophrase);
-		//System.err.println(join(pseudophrase));
-		return join(pseudophrase);
+		return PhraseNormalizer.vocabularyPseudoPhrase(str, m_Stemmer, m_Stopwords);
 	}
 	
-	/** 
-	 * Joins an array of strings to a single string.
-	 */
-	private static String join(String[] str) {
-		String result = "";
-		for(int i = 0; i < str.length; i++) {
-			if (result != "") {
-				result = result + " " + str[i];
-			} else {
-				result = str[i];
-			}
-		}
-		return result;
-	}	
 	
 }
 
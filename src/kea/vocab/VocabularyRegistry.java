@@ -0,0 +1,252 @@
+package kea.vocab;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import kea.stemmers.Stemmer;
+import kea.stopwords.Stopwords;
+
+/**
+ * Process-wide cache of loaded vocabularies. Building a vocabulary index
+ * means parsing the SKOS or text files and normalizing every term, so each
+ * vocabulary is loaded only once per JVM and then shared by all filters
+ * that use it. The indexes are also saved to a snapshot file (see
+ * VocabularySnapshot), so that later processes read them instead of
+ * building them again. A vocabulary is identified by its name, format and
+ * language together with the stemmer class and the stop words that were
+ * used to normalize its terms.
+ *
+ * Vocabularies handed out by the registry are shared and must be treated
+ * as read-only.
+ *
+ * @version 1.0
+ */
+public class VocabularyRegistry {
+
+	/** The loaded (or loading) vocabularies */
+	private static final ConcurrentHashMap<Key,Entry> m_Vocabularies =
+		new ConcurrentHashMap<Key,Entry>();
+
+	private VocabularyRegistry() {
+	}
+
+	/**
+	 * Returns the vocabulary with the given settings, loading it
+	 * if this is the first request for it. Loading happens at most
+	 * once per vocabulary; concurrent requests for the same vocabulary
+	 * wait for the first one to finish.
+	 *
+	 * @param vocabularyName the name of the vocabulary file (before extension)
+	 * @param vocabularyFormat the format of the vocabulary (skos or text)
+	 * @param documentLanguage the language of the terms to index
+	 * @param stemmer the stemmer used to normalize the terms
+	 * @param stopwords the stop words removed from the terms
+	 * @return the fully built vocabulary
+	 * @exception IllegalStateException if the vocabulary can't be built
+	 */
+	public static Vocabulary getVocabulary(String vocabularyName, String vocabularyFormat,
+			String documentLanguage, Stemmer stemmer, Stopwords stopwords) {
+
+		Key key = new Key(vocabularyName, vocabularyFormat, documentLanguage,
+				stemmer, stopwords);
+		return getEntry(key, stemmer, stopwords).get();
+	}
+
+	/**
+	 * Loads a SKOS vocabulary for several languages at once. The SKOS
+	 * file is read only once (or not at all, if the snapshots of all
+	 * languages are up to date), and the vocabularies of the languages
+	 * share one graph of related terms. getVocabulary() then returns
+	 * these vocabularies for the same languages, stemmers and stop words,
+	 * waiting for them if they are still being loaded. Languages whose
+	 * vocabulary is already in the registry keep it.
+	 *
+	 * @param vocabularyName the name of the vocabulary file (before extension)
+	 * @param languages the languages of the terms to index
+	 * @param stemmers the stemmer of each language
+	 * @param stopwords the stop words of each language
+	 * @exception Exception if the SKOS file can't be read; the languages
+	 * are then not loaded
+	 */
+	public static synchronized void loadLanguages(String vocabularyName, String[] languages,
+			Stemmer[] stemmers, Stopwords[] stopwords) throws Exception {
+
+		// The entries of the languages are locked while they are loaded,
+		// so getVocabulary() waits for them instead of loading them too.
+		// getVocabulary() locks only one entry at a time and loadLanguages()
+		// is synchronized, so this can't deadlock.
+		ArrayList<Entry> locked = new ArrayList<Entry>();
+		try {
+			ArrayList<Entry> entries = new ArrayList<Entry>();
+			for (int i = 0; i < languages.length; i++) {
+				Key key = new Key(vocabularyName, "skos", languages[i], stemmers[i], stopwords[i]);
+				Entry entry = getEntry(key, stemmers[i], stopwords[i]);
+				if (!locked.contains(entry)) {
+					entry.m_Lock.lock();
+					locked.add(entry);
+					if (entry.m_Vocabulary == null) {
+						entries.add(entry);
+					}
+				}
+			}
+			if (entries.isEmpty()) {
+				return;
+			}
+
+			Vocabulary[] vocabularies = new Vocabulary[entries.size()];
+			for (int i = 0; i < vocabularies.length; i++) {
+				vocabularies[i] = entries.get(i).create();
+			}
+			Vocabulary.initializeSKOS(vocabularies);
+			for (int i = 0; i < vocabularies.length; i++) {
+				vocabularies[i].buildStemIndex();
+			}
+			for (int i = 0; i < vocabularies.length; i++) {
+				entries.get(i).set(vocabularies[i]);
+			}
+		} finally {
+			for (int i = 0; i < locked.size(); i++) {
+				locked.get(i).m_Lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the entry of a vocabulary, adding it if needed.
+	 */
+	private static Entry getEntry(Key key, Stemmer stemmer, Stopwords stopwords) {
+		Entry entry = m_Vocabularies.get(key);
+		if (entry == null) {
+			Entry newEntry = new Entry(key, stemmer, stopwords);
+			entry = m_Vocabularies.putIfAbsent(key, newEntry);
+			if (entry == null) {
+				entry = newEntry;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Removes all vocabularies from the registry. Filters that already
+	 * hold a vocabulary keep using it.
+	 */
+	public static void clear() {
+		m_Vocabularies.clear();
+	}
+
+	/**
+	 * A vocabulary that is loaded on first access. A vocabulary whose
+	 * files could not be read completely is handed out, but loaded
+	 * again on the next access.
+	 */
+	private static class Entry {
+
+		/** Held while the vocabulary is being loaded */
+		private final ReentrantLock m_Lock = new ReentrantLock();
+
+		private final Key m_Key;
+		private Stemmer m_Stemmer;
+		private Stopwords m_Stopwords;
+		private Vocabulary m_Vocabulary = null;
+
+		Entry(Key key, Stemmer stemmer, Stopwords stopwords) {
+			m_Key = key;
+			m_Stemmer = stemmer;
+			m_Stopwords = stopwords;
+		}
+
+		Vocabulary get() {
+			m_Lock.lock();
+			try {
+				if (m_Vocabulary == null) {
+					Vocabulary vocabulary = create();
+					vocabulary.initialize();
+					try {
+						vocabulary.buildUSE();
+						vocabulary.buildREL();
+						vocabulary.buildConceptGraph();
+						vocabulary.saveSnapshot();
+						vocabulary.buildStemIndex();
+					} catch (Exception e) {
+						throw new IllegalStateException("Can't build the vocabulary " + m_Key.m_Name, e);
+					}
+					if (!vocabulary.isComplete()) {
+						// Not kept, so that the next request loads it again
+						return vocabulary;
+					}
+					set(vocabulary);
+				}
+				return m_Vocabulary;
+			} finally {
+				m_Lock.unlock();
+			}
+		}
+
+		/**
+		 * Returns a new, empty vocabulary with the settings of the entry.
+		 */
+		Vocabulary create() {
+			Vocabulary vocabulary = new Vocabulary(m_Key.m_Name, m_Key.m_Format,
+					m_Key.m_Language);
+			vocabulary.setStemmer(m_Stemmer);
+			vocabulary.setStopwords(m_Stopwords);
+			return vocabulary;
+		}
+
+		/**
+		 * Sets the loaded vocabulary. Must be called with the lock held.
+		 */
+		void set(Vocabulary vocabulary) {
+			m_Vocabulary = vocabulary;
+			m_Stemmer = null;
+			m_Stopwords = null;
+		}
+	}
+
+	/**
+	 * Identifies a vocabulary by everything that affects its index.
+	 */
+	private static class Key {
+
+		private final String m_Name;
+		private final String m_Format;
+		private final String m_Language;
+		private final String m_StemmerClass;
+		private final String m_StopwordsClass;
+		private final Set<String> m_StopwordSet;
+
+		Key(String name, String format, String language, Stemmer stemmer,
+				Stopwords stopwords) {
+			m_Name = name;
+			m_Format = format;
+			m_Language = language;
+			m_StemmerClass = stemmer.getClass().getName();
+			m_StopwordsClass = stopwords.getClass().getName();
+			m_StopwordSet = stopwords.getStopwordSet();
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key)o;
+			return m_Name.equals(other.m_Name)
+				&& m_Format.equals(other.m_Format)
+				&& m_Language.equals(other.m_Language)
+				&& m_StemmerClass.equals(other.m_StemmerClass)
+				&& m_StopwordsClass.equals(other.m_StopwordsClass)
+				&& m_StopwordSet.equals(other.m_StopwordSet);
+		}
+
+		public int hashCode() {
+			int hash = m_Name.hashCode();
+			hash = 31 * hash + m_Format.hashCode();
+			hash = 31 * hash + m_Language.hashCode();
+			hash = 31 * hash + m_StemmerClass.hashCode();
+			hash = 31 * hash + m_StopwordsClass.hashCode();
+			return 31 * hash + m_StopwordSet.hashCode();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package kea.vocab;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import kea.stemmers.Stemmer;
+import kea.stopwords.Stopwords;
+
+/**
+ * The indexes of a vocabulary, as built from its SKOS or text files,
+ * saved to a binary file so that they don't have to be built again.
+ * Building the indexes means parsing the files and normalizing every
+ * term with the stemmer and the stop words; reading a snapshot only
+ * copies the strings out of the mapped file.
+ *
+ * A snapshot starts with a fingerprint of everything its indexes depend
+ * on: the format and language of the vocabulary, the classes of the
+ * stemmer and the stop words, the stop words themselves, and the path,
+ * length and modification time of each source file. A snapshot whose
+ * fingerprint differs from the current one is out of date and is not
+ * used. The file is laid out as
+ *
+ * <pre>
+ * int magic, version
+ * int fingerprintLength
+ * byte fingerprint[fingerprintLength]
+ * the terms and concepts, see ConceptTable.write()
+ * the graph of related concepts, see ConceptGraph.write()
+ * </pre>
+ *
+ * @version 1.0
+ */
+class VocabularySnapshot {
+
+	/** The first bytes of a snapshot ("KEAV") */
+	static final int MAGIC = 0x4B454156;
+
+	/**
+	 * The version of the format. Must also be increased when the way
+	 * terms are normalized changes, so that old snapshots are rebuilt.
+	 * Version 1 stored all indexes as maps of strings; version 2
+	 * stores the related concepts as a graph; version 3 stores the
+	 * terms and concepts as a table.
+	 */
+	static final int VERSION = 3;
+
+	/** The terms and concepts */
+	ConceptTable m_Concepts;
+
+	/** The related concepts */
+	ConceptGraph m_Graph;
+
+	/**
+	 * Creates a snapshot of the given indexes.
+	 */
+	VocabularySnapshot(ConceptTable concepts, ConceptGraph graph) {
+		m_Concepts = concepts;
+		m_Graph = graph;
+	}
+
+	/**
+	 * Returns the fingerprint of a vocabulary.
+	 *
+	 * @param format the format of the vocabulary (skos or text)
+	 * @param language the language of the terms
+	 * @param sources the files the vocabulary is built from
+	 * @param stemmer the stemmer used to normalize the terms
+	 * @param stopwords the stop words removed from the terms
+	 */
+	static byte[] fingerprint(String format, String language, File[] sources,
+			Stemmer stemmer, Stopwords stopwords) throws IOException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(format);
+		out.writeUTF(language);
+		out.writeUTF(stemmer.getClass().getName());
+		out.writeUTF(stopwords.getClass().getName());
+		ArrayList<String> words = new ArrayList<String>(stopwords.getStopwordSet());
+		Collections.sort(words);
+		out.writeInt(words.size());
+		for (int i = 0; i < words.size(); i++) {
+			writeString(out, words.get(i));
+		}
+		out.writeInt(sources.length);
+		for (int i = 0; i < sources.length; i++) {
+			writeString(out, sources[i].getAbsolutePath());
+			out.writeLong(sources[i].length());
+			out.writeLong(sources[i].lastModified());
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads a snapshot, if the file holds one with the given fingerprint.
+	 *
+	 * @param file the file
+	 * @param fingerprint the fingerprint of the vocabulary
+	 * @param readGraph read the graph of related concepts too?
+	 * @return the snapshot, or null if there is no snapshot of
+	 * the vocabulary in its current state
+	 * @exception IOException if the file can't be read
+	 */
+	static VocabularySnapshot read(File file, byte[] fingerprint, boolean readGraph)
+	throws IOException {
+
+		if (!file.isFile()) {
+			return null;
+		}
+		MappedByteBuffer buffer;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if ((buffer.remaining() < 12) || (buffer.getInt() != MAGIC) ||
+				(buffer.getInt() != VERSION) || (buffer.getInt() != fingerprint.length) ||
+				(buffer.remaining() < fingerprint.length)) {
+			return null;
+		}
+		byte[] stored = new byte[fingerprint.length];
+		buffer.get(stored);
+		if (!Arrays.equals(stored, fingerprint)) {
+			return null;
+		}
+		ConceptTable concepts = ConceptTable.read(buffer);
+		return new VocabularySnapshot(concepts, readGraph ? ConceptGraph.read(buffer) : null);
+	}
+
+	/**
+	 * Writes the snapshot. It is written to a temporary file of its own
+	 * first, which then replaces the file at once, so that other processes
+	 * never read half a snapshot. If the file can't be replaced, it is
+	 * left as it is.
+	 *
+	 * @param file the file
+	 * @param fingerprint the fingerprint of the vocabulary
+	 * @exception IOException if the file can't be written
+	 */
+	void write(File file, byte[] fingerprint) throws IOException {
+
+		File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		boolean replaced = false;
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(fingerprint.length);
+				out.write(fingerprint);
+				m_Concepts.write(out);
+				m_Graph.write(out);
+			} finally {
+				out.close();
+			}
+			replaced = temp.renameTo(file);
+			if (!replaced) {
+				throw new IOException("Can't replace " + file);
+			}
+		} finally {
+			if (!replaced) {
+				temp.delete();
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		out.writeInt(str.length());
+		out.writeChars(str);
+	}
+}